@@ -16,8 +16,10 @@
 
 package com.android.providers.downloads;
 
+import android.net.Uri;
 import android.os.Build;
 import android.os.Environment;
+import android.provider.Downloads;
 import android.text.TextUtils;
 import android.util.Log;
 
@@ -45,6 +47,208 @@ public class Constants {
     /** The column that is used for the initiating app's UID */
     public static final String UID = "uid";
 
+    /** The column that holds the change sequence of the latest write to a download */
+    public static final String CHANGE_SEQ = "change_seq";
+
+    /**
+     * The column holding a counter bumped by every change to a download's
+     * status, control or deleted flag, so the thread running it can write
+     * with a compare-and-set instead of re-checking those columns.
+     */
+    public static final String VERSION = "version";
+
+    /**
+     * The column caching the canonical form of {@link Downloads.Impl#_DATA}
+     * once it has passed {@link Helpers#isFilenameValid}, so opening the file
+     * again can skip those checks. Stale whenever it differs from the
+     * canonical form of the current _data.
+     */
+    public static final String VALIDATED_DATA = "validated_data";
+
+    /**
+     * The column holding the priority class of a download, one of the
+     * {@code PRIORITY_*} values. Higher priority downloads start first and
+     * may pause running lower priority downloads of the same app.
+     */
+    public static final String PRIORITY = "priority";
+    /** Background work that should make way for anything else */
+    public static final int PRIORITY_LOW = -1;
+    /** Priority of downloads that don't ask for one */
+    public static final int PRIORITY_DEFAULT = 0;
+    /** Downloads the user is waiting on */
+    public static final int PRIORITY_HIGH = 1;
+    /**
+     * Delay of the job left behind for a download parked behind higher
+     * priority ones, queued for a free slot or running under another
+     * download's job, which only runs if the download isn't resumed or
+     * finished first, such as when the process dies meanwhile.
+     */
+    public static final long PARKED_RECHECK_DELAY = 5 * 60 * 1000;
+
+    /**
+     * The column naming the group a download belongs to, or null. Downloads
+     * of one app with the same group are scheduled, notified and reported
+     * as a unit: they run back to back under shared jobs, show one
+     * notification, and a single completion broadcast goes out once none of
+     * them is left to run, carrying {@link #EXTRA_GROUP_DOWNLOAD_IDS}.
+     */
+    public static final String GROUP_ID = "group_id";
+    /**
+     * The column holding what happens to a group when one of its downloads
+     * fails, one of the {@code GROUP_FAILURE_*} values. Only read from the
+     * download that failed, so callers should set it alike on every member.
+     */
+    public static final String GROUP_FAILURE_POLICY = "group_failure_policy";
+    /** The rest of the group carries on; the broadcast reports the failure */
+    public static final int GROUP_FAILURE_CONTINUE = 0;
+    /** The rest of the group is canceled, since it's useless without it */
+    public static final int GROUP_FAILURE_CANCEL = 1;
+
+    /** Group of the downloads a completion broadcast stands for */
+    public static final String EXTRA_GROUP_ID = "extra_group_id";
+    /** Every download a group completion broadcast stands for, as a long[] */
+    public static final String EXTRA_GROUP_DOWNLOAD_IDS = "extra_group_download_ids";
+
+    /**
+     * Uri under which progress-only changes to a download are notified, with
+     * the download id appended. Not queryable; only for observers.
+     */
+    public static final Uri PROGRESS_CONTENT_URI = Uri.parse("content://downloads/progress");
+
+    /**
+     * Query parameter marking an update from our own process as only moving
+     * a download's progress, so it can be notified on the cheaper channel.
+     */
+    public static final String QUERY_PARAM_PROGRESS = "progress";
+
+    /**
+     * Query parameter limiting a read to downloads that haven't been archived,
+     * which covers everything that's still running or notifying.
+     */
+    public static final String QUERY_PARAM_EXCLUDE_ARCHIVED = "exclude_archived";
+
+    /** All downloads that haven't been moved to the archive */
+    public static final Uri ACTIVE_DOWNLOADS_CONTENT_URI =
+            Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI.buildUpon()
+                    .appendQueryParameter(QUERY_PARAM_EXCLUDE_ARCHIVED, "true").build();
+
+    /**
+     * Query arguments for keyset pagination: only return downloads that sort
+     * after the row with this {@link Downloads.Impl#COLUMN_LAST_MODIFICATION}
+     * and id, both as longs, in {@link #KEYSET_SORT_ORDER}. Pass the values
+     * from the last row of the previous page.
+     */
+    public static final String QUERY_ARG_SEEK_LASTMOD = "seek_lastmod";
+    public static final String QUERY_ARG_SEEK_ID = "seek_id";
+
+    /** Order that pages are returned in when seeking, newest first */
+    public static final String KEYSET_SORT_ORDER = Downloads.Impl.COLUMN_LAST_MODIFICATION
+            + " DESC, " + Downloads.Impl._ID + " DESC";
+
+    /**
+     * Query argument limiting results to downloads whose title, description
+     * or file name has words starting with every word of this string.
+     */
+    public static final String QUERY_ARG_SEARCH = "search";
+
+    /**
+     * {@link DownloadProvider#call} method returning the downloads that changed
+     * after {@link #EXTRA_SINCE_SEQ}. The arg is the base uri to read through,
+     * either my_downloads (default) or all_downloads.
+     */
+    public static final String CALL_GET_CHANGES = "get_changes";
+    /** Only return changes with a sequence greater than this long */
+    public static final String EXTRA_SINCE_SEQ = "since_seq";
+    /** Columns to return for changed rows, as a String[]; null for all */
+    public static final String EXTRA_PROJECTION = "projection";
+    /** Maximum number of changed rows to return, as an int */
+    public static final String EXTRA_LIMIT = "limit";
+    /** Changed rows, as a ContentValues[] ordered by {@link #CHANGE_SEQ} */
+    public static final String EXTRA_CHANGED_ROWS = "changed_rows";
+    /** Ids of downloads deleted in the returned range, as a long[] */
+    public static final String EXTRA_DELETED_IDS = "deleted_ids";
+    /** Sequence to pass as {@link #EXTRA_SINCE_SEQ} on the next call, as a long */
+    public static final String EXTRA_NEXT_SEQ = "next_seq";
+    /** Whether more changes are pending beyond {@link #EXTRA_NEXT_SEQ} */
+    public static final String EXTRA_HAS_MORE = "has_more";
+    /**
+     * Set when deletions older than {@link #EXTRA_SINCE_SEQ} have been
+     * forgotten, so the caller has to fall back to a full query.
+     */
+    public static final String EXTRA_RESYNC_REQUIRED = "resync_required";
+
+    /**
+     * {@link DownloadProvider#call} method returning the progress of the
+     * downloads visible through the base uri given as arg, as parallel
+     * primitive arrays indexed like {@link #EXTRA_IDS}. Meant for clients
+     * polling progress bars, which would otherwise run a full query.
+     */
+    public static final String CALL_GET_PROGRESS = "get_progress";
+    /**
+     * Download ids, as a long[]. Optional on input to only return those
+     * downloads; always set on output.
+     */
+    public static final String EXTRA_IDS = "ids";
+    /** {@link Downloads.Impl#COLUMN_STATUS} of each download, as an int[] */
+    public static final String EXTRA_STATUSES = "statuses";
+    /** {@link Downloads.Impl#COLUMN_CURRENT_BYTES} of each download, as a long[] */
+    public static final String EXTRA_CURRENT_BYTES = "current_bytes";
+    /** {@link Downloads.Impl#COLUMN_TOTAL_BYTES} of each download, as a long[] */
+    public static final String EXTRA_TOTAL_BYTES = "total_bytes";
+    /** Current speed of each download in bytes per second, as a long[] */
+    public static final String EXTRA_SPEEDS = "speeds";
+
+    /**
+     * {@link DownloadProvider#call} method returning the latency and row count
+     * histograms of provider operations, keyed by "operation/uri match".
+     * Requires {@link android.Manifest.permission#DUMP}.
+     */
+    public static final String CALL_GET_STATS = "get_stats";
+    /** Latency histogram of an operation in microseconds, as a long[] of bucket counts */
+    public static final String EXTRA_LATENCY_BUCKETS = "latency_buckets";
+    /** Row count histogram of an operation, as a long[] of bucket counts */
+    public static final String EXTRA_ROW_BUCKETS = "row_buckets";
+
+    /**
+     * {@link DownloadProvider#call} method returning download totals for the
+     * base uri given as arg, read from counters maintained on every write
+     * rather than by scanning downloads.
+     */
+    public static final String CALL_GET_TOTALS = "get_totals";
+    /**
+     * Totals per combination of {@link #UID}, other uid, status and visibility, as a
+     * ContentValues[] that also holds {@link #TOTALS_COUNT},
+     * {@link Downloads.Impl#COLUMN_TOTAL_BYTES},
+     * {@link Downloads.Impl#COLUMN_CURRENT_BYTES} and
+     * {@link #TOTALS_REMAINING_BYTES}
+     */
+    public static final String EXTRA_TOTALS = "totals";
+    /** Number of downloads that haven't completed, as a long */
+    public static final String EXTRA_ACTIVE_COUNT = "active_count";
+    /** Bytes left to transfer for downloads that haven't completed, as a long */
+    public static final String EXTRA_REMAINING_BYTES = "remaining_bytes";
+    /** Column of download totals holding the number of downloads */
+    public static final String TOTALS_COUNT = "num_downloads";
+    /** Column of download totals holding the bytes left to transfer */
+    public static final String TOTALS_REMAINING_BYTES = "remaining_bytes";
+
+    /**
+     * {@link DownloadProvider#call} method that waits for the download given
+     * as arg, added through {@link android.app.DownloadManager#addCompletedDownload},
+     * to be registered with MediaStore. Registration happens in the background
+     * after insert, and fills in {@code mediastore_uri} through a regular update
+     * of the download, so most callers should observe the download's uri
+     * instead. This is only for callers that can't wait for a notification, and
+     * it blocks for a few seconds at most.
+     */
+    public static final String CALL_AWAIT_MEDIA_REGISTRATION = "await_media_registration";
+    /** Longest time to wait in milliseconds, as a long; capped at five seconds */
+    public static final String EXTRA_TIMEOUT_MILLIS = "timeout_millis";
+    /** Whether registration finished before the timeout, as a boolean */
+    public static final String EXTRA_REGISTERED = "registered";
+    /** MediaStore uri of the download, as a String; missing if it isn't indexed */
+    public static final String EXTRA_MEDIASTORE_URI = "mediastore_uri";
+
     /** the intent that gets sent when clicking a successful download */
     public static final String ACTION_OPEN = "android.intent.action.DOWNLOAD_OPEN";
 
@@ -103,6 +307,22 @@ public class Constants {
      */
     public static final int MEDIA_SCAN_TRIGGER_JOB_ID = -101;
 
+    /**
+     * Bit in {@link Downloads.Impl#COLUMN_FLAGS} that lets a download run back
+     * to back with other compatible downloads under a single job instead of
+     * getting its own. Meant for clients enqueueing lots of small files.
+     */
+    public static final int FLAG_BATCHABLE = 1 << 16;
+
+    /** Batchable downloads known to be larger than this still get their own job */
+    public static final long BATCH_MAX_BYTES = 100 * 1024;
+
+    /**
+     * Number of downloads run at once; jobs started beyond this wait in
+     * {@link DownloadJobService} until {@link DownloadQueuePolicy} picks them.
+     */
+    public static final int MAX_RUNNING_DOWNLOADS = 6;
+
     static {
         final StringBuilder builder = new StringBuilder();
 
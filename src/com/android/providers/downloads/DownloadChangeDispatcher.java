@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.net.Uri;
+import android.os.Handler;
+import android.util.ArrayMap;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+
+/**
+ * Coalesces content change notifications for {@link DownloadProvider}.
+ * Instead of calling notifyChange() for every write, changed downloads are
+ * collected over a short window and delivered with one multi-uri
+ * notifyChange() for each kind of change seen in that window.
+ * <p>
+ * Writes that only move a running download's progress go through a separate,
+ * slower channel. They are delivered under {@link Constants#PROGRESS_CONTENT_URI}
+ * as well as the regular download uris, so observers that only track
+ * progress can register there without seeing every other change.
+ */
+public class DownloadChangeDispatcher {
+    /** Window over which state changes are collected before notifying */
+    @VisibleForTesting
+    static final long CHANGE_WINDOW_MILLIS = 100;
+    /** Window over which progress-only changes are collected before notifying */
+    @VisibleForTesting
+    static final long PROGRESS_WINDOW_MILLIS = 1000;
+
+    /** Pseudo-id standing for "the whole table changed" */
+    private static final long ALL_IDS = -1;
+
+    private final ContentResolver mResolver;
+    private final Handler mHandler;
+    private final Uri[] mBaseUris;
+
+    private final Channel mChanges = new Channel(CHANGE_WINDOW_MILLIS, false);
+    private final Channel mProgress = new Channel(PROGRESS_WINDOW_MILLIS, true);
+
+    public DownloadChangeDispatcher(ContentResolver resolver, Handler handler, Uri[] baseUris) {
+        mResolver = resolver;
+        mHandler = handler;
+        mBaseUris = baseUris;
+    }
+
+    /**
+     * Notify that the given download, or every download when {@code id} is
+     * null, changed in the way described by {@code flags}.
+     */
+    public void notifyChanged(Long id, int flags) {
+        mChanges.add(id != null ? id : ALL_IDS, flags);
+    }
+
+    /**
+     * Notify that only the progress of the given download changed.
+     */
+    public void notifyProgress(long id) {
+        mProgress.add(id, ContentResolver.NOTIFY_UPDATE);
+    }
+
+    /**
+     * Deliver everything collected so far right away.
+     */
+    @VisibleForTesting
+    public void flush() {
+        mHandler.removeCallbacks(mChanges);
+        mHandler.removeCallbacks(mProgress);
+        mChanges.run();
+        mProgress.run();
+    }
+
+    private class Channel implements Runnable {
+        private final long mWindowMillis;
+        private final boolean mIsProgress;
+
+        /** Changed ids and how each of them changed */
+        @GuardedBy("this")
+        private final ArrayMap<Long, Integer> mFlags = new ArrayMap<>();
+
+        Channel(long windowMillis, boolean isProgress) {
+            mWindowMillis = windowMillis;
+            mIsProgress = isProgress;
+        }
+
+        synchronized void add(long id, int flags) {
+            final boolean idle = mFlags.isEmpty();
+            final Integer previous = mFlags.get(id);
+            mFlags.put(id, (previous != null) ? (previous | flags) : flags);
+            if (idle) {
+                mHandler.postDelayed(this, mWindowMillis);
+            }
+        }
+
+        @Override
+        public void run() {
+            final ArrayMap<Long, Integer> changes;
+            synchronized (this) {
+                if (mFlags.isEmpty()) {
+                    return;
+                }
+                changes = new ArrayMap<>(mFlags);
+                mFlags.clear();
+            }
+
+            // One notifyChange() per distinct set of flags, so an update
+            // isn't reported as a delete just because it shared a window
+            final SparseArray<ArrayList<Uri>> urisByFlags = new SparseArray<>();
+            for (int i = 0; i < changes.size(); i++) {
+                final long id = changes.keyAt(i);
+                final int flags = changes.valueAt(i);
+                ArrayList<Uri> uris = urisByFlags.get(flags);
+                if (uris == null) {
+                    uris = new ArrayList<>();
+                    urisByFlags.put(flags, uris);
+                }
+                for (Uri baseUri : mBaseUris) {
+                    uris.add((id == ALL_IDS) ? baseUri : ContentUris.withAppendedId(baseUri, id));
+                }
+                if (mIsProgress && id != ALL_IDS) {
+                    uris.add(ContentUris.withAppendedId(Constants.PROGRESS_CONTENT_URI, id));
+                }
+            }
+            for (int i = 0; i < urisByFlags.size(); i++) {
+                mResolver.notifyChange(urisByFlags.valueAt(i), null, urisByFlags.keyAt(i));
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import static com.android.providers.downloads.Constants.TAG;
+
+import android.app.job.JobScheduler;
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Environment;
+import android.os.RemoteException;
+import android.provider.Downloads;
+import android.provider.MediaStore;
+import android.util.ArraySet;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Background cleanup after deleted downloads: their jobs, URI grants, files
+ * and MediaStore entries. {@link DownloadProvider#delete} only removes
+ * database rows on the calling thread and hands the rest to this queue,
+ * which drains it on {@link Helpers#getAsyncHandler()} one batch per
+ * message, so a large backlog doesn't hold up everything else sharing that
+ * handler.
+ */
+public class DownloadDeleteQueue {
+    /** Maximum number of MediaStore operations sent in one applyBatch() call. */
+    @VisibleForTesting
+    static final int BATCH_SIZE = 100;
+
+    /**
+     * Receives progress updates as the queue drains. Always called on the
+     * async handler thread.
+     */
+    public interface ProgressListener {
+        /**
+         * @param completed number of downloads cleaned up since the queue was
+         *            last empty
+         * @param remaining number of downloads still waiting
+         */
+        void onDeleteProgress(int completed, int remaining);
+    }
+
+    /** A single deleted download that still needs to be cleaned up after. */
+    static class Entry {
+        final long mId;
+        /** File of the download, or null if it never had one */
+        final String mFileName;
+        final String mMediaStoreUri;
+
+        Entry(long id, String fileName, String mediaStoreUri) {
+            mId = id;
+            mFileName = fileName;
+            mMediaStoreUri = mediaStoreUri;
+        }
+    }
+
+    private final Context mContext;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final ArrayList<Entry> mPending = new ArrayList<>();
+    @GuardedBy("mLock")
+    private int mCompleted;
+
+    private final CopyOnWriteArrayList<ProgressListener> mListeners =
+            new CopyOnWriteArrayList<>();
+
+    public DownloadDeleteQueue(Context context) {
+        mContext = context;
+    }
+
+    public void addProgressListener(ProgressListener listener) {
+        mListeners.add(listener);
+    }
+
+    public void removeProgressListener(ProgressListener listener) {
+        mListeners.remove(listener);
+    }
+
+    /**
+     * Schedule cleanup for the given entries. Safe to call from any thread.
+     */
+    void enqueue(List<Entry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        final boolean wasIdle;
+        synchronized (mLock) {
+            wasIdle = mPending.isEmpty();
+            mPending.addAll(entries);
+        }
+        if (wasIdle) {
+            Helpers.getAsyncHandler().post(this::drain);
+        }
+    }
+
+    /**
+     * Clean up one batch, then post again for the next one, if any.
+     */
+    private void drain() {
+        final ArrayList<Entry> batch;
+        synchronized (mLock) {
+            if (mPending.isEmpty()) {
+                return;
+            }
+            final int size = Math.min(BATCH_SIZE, mPending.size());
+            final List<Entry> head = mPending.subList(0, size);
+            batch = new ArrayList<>(head);
+            head.clear();
+        }
+
+        processBatch(batch);
+
+        final int completed;
+        final int remaining;
+        synchronized (mLock) {
+            mCompleted += batch.size();
+            completed = mCompleted;
+            remaining = mPending.size();
+            if (remaining == 0) {
+                mCompleted = 0;
+            }
+        }
+        if (Constants.LOGV || remaining == 0) {
+            Log.v(TAG, "Cleaned up " + completed + " deleted downloads, "
+                    + remaining + " remaining");
+        }
+        for (ProgressListener listener : mListeners) {
+            listener.onDeleteProgress(completed, remaining);
+        }
+        if (remaining > 0) {
+            Helpers.getAsyncHandler().post(this::drain);
+        }
+    }
+
+    /**
+     * Return the paths among the given ones that a download still in the
+     * database points at, such as one that was downloaded again to the same
+     * place after the old row was deleted.
+     */
+    private ArraySet<String> getLivePaths(ArrayList<String> paths) {
+        final ArraySet<String> live = new ArraySet<>();
+        if (paths.isEmpty()) {
+            return live;
+        }
+        final StringBuilder selection = new StringBuilder(Downloads.Impl._DATA + " IN (");
+        for (int i = 0; i < paths.size(); i++) {
+            selection.append((i == 0) ? "?" : ",?");
+        }
+        selection.append(')');
+        try (Cursor cursor = mContext.getContentResolver().query(
+                Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, new String[] { Downloads.Impl._DATA },
+                selection.toString(), paths.toArray(new String[paths.size()]), null)) {
+            while (cursor != null && cursor.moveToNext()) {
+                live.add(cursor.getString(0));
+            }
+        }
+        return live;
+    }
+
+    private void processBatch(List<Entry> batch) {
+        // Each of these is an IPC per download, which is why they're done here
+        // rather than on the thread that asked for the delete
+        final JobScheduler scheduler = mContext.getSystemService(JobScheduler.class);
+        for (int i = 0; i < batch.size(); i++) {
+            final long id = batch.get(i).mId;
+            scheduler.cancel((int) id);
+            mContext.revokeUriPermission(
+                    ContentUris.withAppendedId(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, id), ~0);
+            DownloadStorageProvider.onDownloadProviderDelete(mContext, id);
+        }
+
+        final File[] files = new File[batch.size()];
+        final ArrayList<String> paths = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            final Entry entry = batch.get(i);
+            if (entry.mFileName == null) {
+                continue;
+            }
+            try {
+                files[i] = new File(entry.mFileName).getCanonicalFile();
+            } catch (IOException e) {
+                Log.e(TAG, "Couldn't delete file: " + entry.mFileName, e);
+                continue;
+            }
+            paths.add(entry.mFileName);
+            paths.add(files[i].getPath());
+        }
+        final ArraySet<String> livePaths = getLivePaths(paths);
+
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        final ArrayList<File> opFiles = new ArrayList<>();
+        final ArrayList<File> toScan = new ArrayList<>();
+        for (int i = 0; i < batch.size(); i++) {
+            final Entry entry = batch.get(i);
+            final File file = files[i];
+            if (file == null) {
+                continue;
+            }
+            if (!Helpers.isFilenameValid(mContext, file)) {
+                Log.d(TAG, "Ignoring invalid file: " + file);
+                continue;
+            }
+            if (livePaths.contains(entry.mFileName) || livePaths.contains(file.getPath())) {
+                Log.d(TAG, "Keeping " + file + "; another download owns it now");
+                continue;
+            }
+            Log.v(TAG, "Deleting " + file + " via provider delete");
+            file.delete();
+
+            if (entry.mMediaStoreUri != null) {
+                ops.add(ContentProviderOperation.newDelete(Uri.parse(entry.mMediaStoreUri))
+                        .build());
+                opFiles.add(file);
+            } else {
+                toScan.add(file);
+            }
+        }
+
+        if (!ops.isEmpty()) {
+            try (ContentProviderClient client = mContext.getContentResolver()
+                    .acquireContentProviderClient(MediaStore.AUTHORITY)) {
+                if (client != null) {
+                    client.applyBatch(ops);
+                    opFiles.clear();
+                } else {
+                    Log.w(TAG, "Failed to acquire ContentProviderClient for MediaStore");
+                }
+            } catch (RemoteException | OperationApplicationException e) {
+                Log.w(TAG, "Failed to remove MediaStore entries in batch", e);
+            }
+            // Anything left didn't make it through the batch; fall back to
+            // letting the scanner notice the files are gone
+            toScan.addAll(opFiles);
+        }
+
+        if (toScan.isEmpty()) {
+            return;
+        }
+        // if external_primary volume is mounted, then do the scan
+        if (!Environment.getExternalStorageState().equals(Environment.MEDIA_MOUNTED)) {
+            Log.w(TAG, "external_primary volume is not mounted, skipping scan");
+            return;
+        }
+        final ContentResolver resolver = mContext.getContentResolver();
+        for (File file : toScan) {
+            MediaStore.scanFile(resolver, file);
+        }
+    }
+}
@@ -26,6 +26,7 @@ import android.app.job.JobParameters;
 import android.app.job.JobScheduler;
 import android.app.job.JobService;
 import android.content.ComponentName;
+import android.content.ContentProviderClient;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.Context;
@@ -65,6 +66,7 @@ public class DownloadIdleService extends JobService {
         @Override
         public void run() {
             cleanStale();
+            archiveFinished();
             cleanOrphans();
             jobFinished(mParams, false);
         }
@@ -136,6 +138,20 @@ public class DownloadIdleService extends JobService {
         Slog.d(TAG, "Removed " + count + " stale downloads");
     }
 
+    /**
+     * Move downloads that finished over a day ago, and whose completion
+     * notification is gone, out of the table that active work queries.
+     */
+    public void archiveFinished() {
+        try (ContentProviderClient client = getContentResolver()
+                .acquireContentProviderClient(Downloads.Impl.AUTHORITY)) {
+            final DownloadProvider provider = (DownloadProvider) client.getLocalContentProvider();
+            final long modifiedBefore = System.currentTimeMillis() - DateUtils.DAY_IN_MILLIS;
+            final int count = provider.archiveFinishedDownloads(modifiedBefore);
+            Slog.d(TAG, "Archived " + count + " finished downloads");
+        }
+    }
+
     private interface OrphanQuery {
         final String[] PROJECTION = new String[] {
                 Downloads.Impl._ID,
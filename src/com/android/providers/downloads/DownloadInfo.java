@@ -53,6 +53,34 @@ public class DownloadInfo {
     // TODO: move towards these in-memory objects being sources of truth, and
     // periodically pushing to provider.
 
+    /**
+     * Columns read by {@link Reader#updateSchedulingState}, which is everything
+     * {@link Helpers#buildJobInfo} looks at.
+     */
+    public static final String[] SCHEDULING_PROJECTION = new String[] {
+            Downloads.Impl._ID,
+            Downloads.Impl.COLUMN_URI,
+            Downloads.Impl.COLUMN_VISIBILITY,
+            Downloads.Impl.COLUMN_CONTROL,
+            Downloads.Impl.COLUMN_STATUS,
+            Downloads.Impl.COLUMN_FAILED_CONNECTIONS,
+            Constants.RETRY_AFTER_X_REDIRECT_COUNT,
+            Downloads.Impl.COLUMN_LAST_MODIFICATION,
+            Downloads.Impl.COLUMN_NOTIFICATION_PACKAGE,
+            Downloads.Impl.COLUMN_TOTAL_BYTES,
+            Downloads.Impl.COLUMN_CURRENT_BYTES,
+            Constants.ETAG,
+            Constants.UID,
+            Downloads.Impl.COLUMN_ALLOWED_NETWORK_TYPES,
+            Downloads.Impl.COLUMN_ALLOW_ROAMING,
+            Downloads.Impl.COLUMN_ALLOW_METERED,
+            Downloads.Impl.COLUMN_FLAGS,
+            Downloads.Impl.COLUMN_BYPASS_RECOMMENDED_SIZE_LIMIT,
+            Constants.PRIORITY,
+            Constants.GROUP_ID,
+            Constants.GROUP_FAILURE_POLICY,
+    };
+
     public static class Reader {
         private ContentResolver mResolver;
         private Cursor mCursor;
@@ -95,6 +123,9 @@ public class DownloadInfo {
             info.mAllowRoaming = getInt(Downloads.Impl.COLUMN_ALLOW_ROAMING) != 0;
             info.mAllowMetered = getInt(Downloads.Impl.COLUMN_ALLOW_METERED) != 0;
             info.mFlags = getInt(Downloads.Impl.COLUMN_FLAGS);
+            info.mPriority = getInt(Constants.PRIORITY);
+            info.mGroupId = getString(Constants.GROUP_ID);
+            info.mGroupFailurePolicy = getInt(Constants.GROUP_FAILURE_POLICY);
             info.mTitle = getString(Downloads.Impl.COLUMN_TITLE);
             info.mDescription = getString(Downloads.Impl.COLUMN_DESCRIPTION);
             info.mBypassRecommendedSizeLimit =
@@ -107,6 +138,39 @@ public class DownloadInfo {
             }
         }
 
+        /**
+         * Like {@link #updateFromDatabase}, but only reads the columns in
+         * {@link #SCHEDULING_PROJECTION}; everything else is left untouched.
+         */
+        public void updateSchedulingState(DownloadInfo info) {
+            info.mId = getLong(Downloads.Impl._ID);
+            info.mUri = getString(Downloads.Impl.COLUMN_URI);
+            info.mVisibility = getInt(Downloads.Impl.COLUMN_VISIBILITY);
+            info.mStatus = getInt(Downloads.Impl.COLUMN_STATUS);
+            info.mNumFailed = getInt(Downloads.Impl.COLUMN_FAILED_CONNECTIONS);
+            int retryRedirect = getInt(Constants.RETRY_AFTER_X_REDIRECT_COUNT);
+            info.mRetryAfter = retryRedirect & 0xfffffff;
+            info.mLastMod = getLong(Downloads.Impl.COLUMN_LAST_MODIFICATION);
+            info.mPackage = getString(Downloads.Impl.COLUMN_NOTIFICATION_PACKAGE);
+            info.mTotalBytes = getLong(Downloads.Impl.COLUMN_TOTAL_BYTES);
+            info.mCurrentBytes = getLong(Downloads.Impl.COLUMN_CURRENT_BYTES);
+            info.mETag = getString(Constants.ETAG);
+            info.mUid = getInt(Constants.UID);
+            info.mAllowedNetworkTypes = getInt(Downloads.Impl.COLUMN_ALLOWED_NETWORK_TYPES);
+            info.mAllowRoaming = getInt(Downloads.Impl.COLUMN_ALLOW_ROAMING) != 0;
+            info.mAllowMetered = getInt(Downloads.Impl.COLUMN_ALLOW_METERED) != 0;
+            info.mFlags = getInt(Downloads.Impl.COLUMN_FLAGS);
+            info.mPriority = getInt(Constants.PRIORITY);
+            info.mGroupId = getString(Constants.GROUP_ID);
+            info.mGroupFailurePolicy = getInt(Constants.GROUP_FAILURE_POLICY);
+            info.mBypassRecommendedSizeLimit =
+                    getInt(Downloads.Impl.COLUMN_BYPASS_RECOMMENDED_SIZE_LIMIT);
+
+            synchronized (this) {
+                info.mControl = getInt(Downloads.Impl.COLUMN_CONTROL);
+            }
+        }
+
         public void readRequestHeaders(DownloadInfo info) {
             info.mRequestHeaders.clear();
             Uri headerUri = Uri.withAppendedPath(
@@ -184,6 +248,9 @@ public class DownloadInfo {
     public boolean mAllowRoaming;
     public boolean mAllowMetered;
     public int mFlags;
+    public int mPriority;
+    public String mGroupId;
+    public int mGroupFailurePolicy;
     public String mTitle;
     public String mDescription;
     public int mBypassRecommendedSizeLimit;
@@ -215,6 +282,40 @@ public class DownloadInfo {
         return null;
     }
 
+    /**
+     * Load just enough of the given download to schedule its job, without
+     * reading request headers.
+     */
+    public static DownloadInfo querySchedulingState(Context context, long downloadId) {
+        final ArrayList<Long> ids = new ArrayList<>(1);
+        ids.add(downloadId);
+        final List<DownloadInfo> infos = querySchedulingState(context, ids);
+        return infos.isEmpty() ? null : infos.get(0);
+    }
+
+    /**
+     * Load just enough of the given downloads to schedule their jobs, in a
+     * single query. Downloads that no longer exist are left out.
+     */
+    public static List<DownloadInfo> querySchedulingState(Context context,
+            ArrayList<Long> downloadIds) {
+        final ArrayList<DownloadInfo> infos = new ArrayList<>(downloadIds.size());
+        if (downloadIds.isEmpty()) {
+            return infos;
+        }
+        final ContentResolver resolver = context.getContentResolver();
+        try (Cursor cursor = resolver.query(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
+                SCHEDULING_PROJECTION, Helpers.buildQueryWithIds(downloadIds), null, null)) {
+            final DownloadInfo.Reader reader = new DownloadInfo.Reader(resolver, cursor);
+            while (cursor.moveToNext()) {
+                final DownloadInfo info = new DownloadInfo(context);
+                reader.updateSchedulingState(info);
+                infos.add(info);
+            }
+        }
+        return infos;
+    }
+
     public Collection<Pair<String, String>> getHeaders() {
         return Collections.unmodifiableList(mRequestHeaders);
     }
@@ -228,6 +329,15 @@ public class DownloadInfo {
     }
 
     public void sendIntentIfRequested() {
+        sendIntentIfRequested(null);
+    }
+
+    /**
+     * Send the completion broadcast for this download. When given the
+     * downloads of its group, the broadcast stands for the whole group and
+     * lists them all.
+     */
+    public void sendIntentIfRequested(long[] groupIds) {
         if (mPackage == null) {
             return;
         }
@@ -251,6 +361,10 @@ public class DownloadInfo {
             //     sending spoofed intents.
             intent.setData(getMyDownloadsUri());
         }
+        if (groupIds != null) {
+            intent.putExtra(Constants.EXTRA_GROUP_ID, mGroupId);
+            intent.putExtra(Constants.EXTRA_GROUP_DOWNLOAD_IDS, groupIds);
+        }
         mSystemFacade.sendBroadcast(intent);
     }
 
@@ -282,8 +396,13 @@ public class DownloadInfo {
      * @see android.app.job.JobInfo.Builder#setMinimumLatency(long)
      */
     public long getMinimumLatency() {
+        final long now = mSystemFacade.currentTimeMillis();
+
+        // Whole host is backing off, whatever state this download is in
+        final long hostDelay = Helpers.getHostHealthTracker().getDelay(
+                HostHealthTracker.getHost(mUri), mId, now);
+
         if (mStatus == Downloads.Impl.STATUS_WAITING_TO_RETRY) {
-            final long now = mSystemFacade.currentTimeMillis();
             final long startAfter;
             if (mNumFailed == 0) {
                 startAfter = now;
@@ -294,9 +413,9 @@ public class DownloadInfo {
                         * (1 << (mNumFailed - 1)));
                 startAfter = mLastMod + fuzzDelay(delay);
             }
-            return Math.max(0, startAfter - now);
+            return Math.max(hostDelay, startAfter - now);
         } else {
-            return 0;
+            return hostDelay;
         }
     }
 
@@ -438,8 +557,15 @@ public class DownloadInfo {
         pw.printPair("mAllowRoaming", mAllowRoaming);
         pw.printPair("mAllowMetered", mAllowMetered);
         pw.printPair("mFlags", mFlags);
+        pw.printPair("mPriority", mPriority);
         pw.println();
 
+        if (mGroupId != null) {
+            pw.printPair("mGroupId", mGroupId);
+            pw.printPair("mGroupFailurePolicy", mGroupFailurePolicy);
+            pw.println();
+        }
+
         pw.decreaseIndent();
     }
 
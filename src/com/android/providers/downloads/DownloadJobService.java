@@ -17,14 +17,29 @@
 package com.android.providers.downloads;
 
 import static android.provider.Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI;
+import static android.provider.Downloads.Impl.FLAG_REQUIRES_CHARGING;
+import static android.provider.Downloads.Impl.FLAG_REQUIRES_DEVICE_IDLE;
 
 import static com.android.providers.downloads.Constants.TAG;
 
 import android.app.job.JobParameters;
 import android.app.job.JobService;
+import android.content.ContentResolver;
+import android.content.Context;
 import android.database.ContentObserver;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.os.Bundle;
+import android.provider.Downloads;
 import android.util.Log;
+import android.util.IntArray;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
 
 /**
  * Service that hosts download jobs. Each active download job is handled as a
@@ -32,15 +47,78 @@ import android.util.SparseArray;
  * <p>
  * The majority of downloads should have ETag values to enable resuming, so if a
  * given download isn't able to finish in the normal job timeout (10 minutes),
- * we just reschedule the job and resume again in the future.
+ * we just reschedule the job and resume again in the future. Visible
+ * downloads can instead run as user-initiated data transfer jobs, which
+ * aren't held to that timeout; those carry the download's notification and
+ * report their progress in bytes to the system.
+ * <p>
+ * Downloads flagged with {@link Constants#FLAG_BATCHABLE} don't need a job
+ * each: once one finishes, its job goes on to the next compatible pending
+ * download, one at a time, until none are left or the job is stopped.
+ * Downloads in a {@link Constants#GROUP_ID group} are handled the same way
+ * among themselves, and the rest of a group is taken on first.
+ * <p>
+ * Downloads of the same app are also ordered by {@link Constants#PRIORITY}:
+ * starting one asks any lower priority download of that app to pause at its
+ * next checkpoint, and a job for a lower priority download is turned away
+ * while a higher one runs. Either way the download is parked here and
+ * rescheduled once no higher priority download of the app is left running.
+ * Parked downloads also keep a delayed job, so they come back even if the
+ * process dies before that. Downloads that couldn't resume are never paused.
+ * <p>
+ * At most {@link Constants#MAX_RUNNING_DOWNLOADS} downloads run at once.
+ * Downloads whose jobs start beyond that are queued here, keeping a delayed
+ * job like parked ones rather than using up the time of the one that
+ * started, and whenever a download finishes the {@link DownloadQueuePolicy}
+ * configured for the device picks which of them gets its job back.
+ * User-initiated jobs are exempt, since they must show their notification
+ * as soon as they start.
  */
 public class DownloadJobService extends JobService {
+    /** Number of pending downloads looked at each time a batch moves on */
+    private static final int BATCH_QUERY_LIMIT = 20;
+
+    /** Flags that turn into job constraints, which batched downloads must share */
+    private static final int BATCH_CONSTRAINT_FLAGS =
+            FLAG_REQUIRES_CHARGING | FLAG_REQUIRES_DEVICE_IDLE;
+
+    /** Thread currently running under each job, keyed by job id */
     // @GuardedBy("mActiveThreads")
     private SparseArray<DownloadThread> mActiveThreads = new SparseArray<>();
+    /** Thread running each download, keyed by download id */
+    // @GuardedBy("mActiveThreads")
+    private SparseArray<DownloadThread> mRunningDownloads = new SparseArray<>();
+    /** Download that started each job still taking on batched downloads */
+    // @GuardedBy("mActiveThreads")
+    private SparseArray<DownloadInfo> mBatchLeads = new SparseArray<>();
+    /** Download whose notification each user-initiated job carries, keyed by job id */
+    // @GuardedBy("mActiveThreads")
+    private SparseArray<DownloadInfo> mNotifyingJobs = new SparseArray<>();
+    /** Downloads waiting for higher priority ones to finish, keyed by uid */
+    // @GuardedBy("mActiveThreads")
+    private SparseArray<ArrayList<DownloadInfo>> mParked = new SparseArray<>();
+
+    /** Downloads turned away while every slot was taken, in the order they came in */
+    // @GuardedBy("mActiveThreads")
+    private ArrayList<DownloadInfo> mQueued = new ArrayList<>();
+
+    /** Size of {@link #mRunningDownloads}, readable without the lock */
+    private static volatile int sRunningCount;
+
+    private DownloadQueuePolicy mQueuePolicy = DownloadQueuePolicy.FIFO;
+
+    /** Time from last change to start of each download, indexed by priority class */
+    private static final DownloadProviderStats.Histogram[] sQueueLatency =
+            new DownloadProviderStats.Histogram[] {
+                    new DownloadProviderStats.Histogram(),
+                    new DownloadProviderStats.Histogram(),
+                    new DownloadProviderStats.Histogram() };
 
     @Override
     public void onCreate() {
         super.onCreate();
+        mQueuePolicy = DownloadQueuePolicy.fromName(
+                getString(R.string.config_download_queue_policy));
 
         // While someone is bound to us, watch for database changes that should
         // trigger notification updates.
@@ -51,6 +129,26 @@ public class DownloadJobService extends JobService {
     public void onDestroy() {
         super.onDestroy();
         getContentResolver().unregisterContentObserver(mObserver);
+
+        // Nobody is left to resume parked or queued downloads, so hand them
+        // back to the scheduler now
+        final ArrayList<Long> waiting = new ArrayList<>();
+        synchronized (mActiveThreads) {
+            for (int i = 0; i < mParked.size(); i++) {
+                for (DownloadInfo info : mParked.valueAt(i)) {
+                    waiting.add(info.mId);
+                }
+            }
+            mParked.clear();
+            for (DownloadInfo info : mQueued) {
+                waiting.add(info.mId);
+            }
+            mQueued.clear();
+        }
+        if (!waiting.isEmpty()) {
+            final Context context = getApplicationContext();
+            Helpers.getAsyncHandler().post(() -> Helpers.scheduleJobs(context, waiting));
+        }
     }
 
     @Override
@@ -65,17 +163,150 @@ public class DownloadJobService extends JobService {
         }
 
         final DownloadThread thread;
+        boolean hostDown = false;
+        final ArrayList<DownloadThread> preempted = new ArrayList<>();
         synchronized (mActiveThreads) {
             if (mActiveThreads.indexOfKey(id) >= 0) {
                 Log.w(TAG, "Odd, already running download " + id);
                 return false;
             }
-            thread = new DownloadThread(this, params, info);
-            mActiveThreads.put(id, thread);
+            if (mRunningDownloads.indexOfKey(id) >= 0) {
+                // Running as part of another job's batch; keep a delayed job
+                // around in case we're gone before that finishes it
+                Log.d(TAG, "Download " + id + " already running under another job");
+                thread = null;
+            } else if (info.mPriority < getHighestRunningPriority(info.mUid)) {
+                Log.d(TAG, "Parking download " + id + " behind higher priority downloads");
+                park(info);
+                thread = null;
+            } else if (!params.isUserInitiatedJob()
+                    && mRunningDownloads.size() >= Constants.MAX_RUNNING_DOWNLOADS) {
+                // Wait for a slot without holding on to the job, which would
+                // only use up its time; user-initiated jobs have to show their
+                // notification right away, so they never wait
+                Log.d(TAG, "Queueing download " + id + " until a slot frees up");
+                if (!contains(mQueued, info.mId)) {
+                    mQueued.add(info);
+                }
+                thread = null;
+            } else if (!Helpers.getHostHealthTracker().tryStart(
+                    HostHealthTracker.getHost(info.mUri), info.mId,
+                    Helpers.getSystemFacade(this).currentTimeMillis())) {
+                // While its host is down, only the probe gets through; asked
+                // last, so the probe is always a download that really starts
+                hostDown = true;
+                thread = null;
+            } else {
+                thread = startLocked(params, info, preempted);
+            }
+        }
+        if (hostDown) {
+            // Wait out the host's backoff in a rescheduled job
+            Log.d(TAG, "Holding download " + id + " until its host recovers");
+            Helpers.scheduleJob(this, info);
+            return false;
+        }
+        if (thread == null) {
+            scheduleWaiting(info);
+            return false;
+        }
+        startThread(params, info, thread, preempted);
+        return true;
+    }
+
+    /**
+     * Register a new thread for the given download, collecting lower priority
+     * downloads of the same app that it should preempt.
+     */
+    // @GuardedBy("mActiveThreads")
+    private DownloadThread startLocked(JobParameters params, DownloadInfo info,
+            ArrayList<DownloadThread> preempted) {
+        final int id = params.getJobId();
+        for (int i = 0; i < mRunningDownloads.size(); i++) {
+            final DownloadInfo running = mRunningDownloads.valueAt(i).getInfo();
+            if (running.mUid == info.mUid && running.mPriority < info.mPriority) {
+                preempted.add(mRunningDownloads.valueAt(i));
+            }
+        }
+        final DownloadThread thread = new DownloadThread(this, params, info);
+        mActiveThreads.put(id, thread);
+        mRunningDownloads.put(id, thread);
+        sRunningCount = mRunningDownloads.size();
+        // User-initiated jobs carry a notification for their own download
+        if (params.isUserInitiatedJob()) {
+            mNotifyingJobs.put(id, info);
+        } else if ((info.mFlags & Constants.FLAG_BATCHABLE) != 0 || info.mGroupId != null) {
+            // Batchable downloads and group members pick up more under this job
+            mBatchLeads.put(id, info);
         }
+        return thread;
+    }
+
+    private void startThread(JobParameters params, DownloadInfo info, DownloadThread thread,
+            ArrayList<DownloadThread> preempted) {
+        if (params.isUserInitiatedJob()) {
+            final DownloadNotifier notifier = Helpers.getDownloadNotifier(this);
+            setNotification(params, notifier.attachJob(info), notifier.buildJobNotification(info),
+                    JOB_END_NOTIFICATION_POLICY_REMOVE);
+        }
+        for (DownloadThread running : preempted) {
+            running.requestPreemption();
+        }
+        recordQueueLatency(info);
         thread.start();
+    }
 
-        return true;
+    /**
+     * Give queued downloads their jobs back while there's room, in the order
+     * picked by the configured {@link DownloadQueuePolicy}.
+     */
+    private void startQueued() {
+        final ArrayList<Long> ids = new ArrayList<>();
+        synchronized (mActiveThreads) {
+            final SparseIntArray runningPerUid = new SparseIntArray();
+            for (int i = 0; i < mRunningDownloads.size(); i++) {
+                final int uid = mRunningDownloads.valueAt(i).getInfo().mUid;
+                runningPerUid.put(uid, runningPerUid.get(uid) + 1);
+            }
+            final int free = Constants.MAX_RUNNING_DOWNLOADS - mRunningDownloads.size();
+            while (!mQueued.isEmpty() && ids.size() < free) {
+                final DownloadInfo next = mQueued.remove(pickQueuedLocked(runningPerUid));
+                ids.add(next.mId);
+                runningPerUid.put(next.mUid, runningPerUid.get(next.mUid) + 1);
+            }
+        }
+        if (!ids.isEmpty()) {
+            Helpers.scheduleJobs(this, ids);
+        }
+    }
+
+    /**
+     * Return the index of the queued download to start next: the configured
+     * policy's pick among those of the highest priority.
+     */
+    // @GuardedBy("mActiveThreads")
+    private int pickQueuedLocked(SparseIntArray runningPerUid) {
+        int highest = Integer.MIN_VALUE;
+        for (DownloadInfo info : mQueued) {
+            highest = Math.max(highest, info.mPriority);
+        }
+        final ArrayList<DownloadInfo> candidates = new ArrayList<>();
+        final IntArray indexes = new IntArray();
+        for (int i = 0; i < mQueued.size(); i++) {
+            if (mQueued.get(i).mPriority == highest) {
+                candidates.add(mQueued.get(i));
+                indexes.add(i);
+            }
+        }
+        return indexes.get(mQueuePolicy.pickNext(candidates, runningPerUid));
+    }
+
+    /**
+     * Return whether another download could start without waiting for a
+     * running one to finish.
+     */
+    static boolean hasCapacity() {
+        return sRunningCount < Constants.MAX_RUNNING_DOWNLOADS;
     }
 
     @Override
@@ -86,6 +317,7 @@ public class DownloadJobService extends JobService {
         final DownloadThread thread;
         synchronized (mActiveThreads) {
             thread = mActiveThreads.removeReturnOld(id);
+            mBatchLeads.remove(id);
         }
         if (thread != null) {
             // If the thread is still running, asynchronously request a
@@ -96,14 +328,52 @@ public class DownloadJobService extends JobService {
         return false;
     }
 
-    public void jobFinishedInternal(JobParameters params, boolean needsReschedule) {
-        final int id = params.getJobId();
+    public void jobFinishedInternal(JobParameters params, long downloadId,
+            boolean needsReschedule) {
+        final int jobId = params.getJobId();
 
+        final DownloadInfo lead;
+        final boolean preempted;
+        final ArrayList<Long> resumed;
         synchronized (mActiveThreads) {
-            mActiveThreads.remove(params.getJobId());
+            final DownloadThread thread = mRunningDownloads.removeReturnOld((int) downloadId);
+            sRunningCount = mRunningDownloads.size();
+            lead = mBatchLeads.get(jobId);
+            preempted = !needsReschedule && thread != null && thread.wasPreempted();
+            if (preempted) {
+                park(thread.getInfo());
+            }
+            resumed = (thread != null) ? unparkRunnable(thread.getInfo().mUid) : null;
         }
         if (needsReschedule) {
-            Helpers.scheduleJob(this, DownloadInfo.queryDownloadInfo(this, id));
+            Helpers.scheduleJob(this, DownloadInfo.querySchedulingState(this, downloadId));
+        } else if (preempted && !resumed.contains(downloadId)) {
+            // It wrote itself back as pending, which no job covers anymore
+            scheduleWaiting(DownloadInfo.querySchedulingState(this, downloadId));
+        } else if (downloadId != jobId) {
+            // Drop the delayed job it kept while part of this batch, unless
+            // it still needs one, such as when it was paused
+            Helpers.scheduleJob(this, DownloadInfo.querySchedulingState(this, downloadId));
+        }
+        if (resumed != null && !resumed.isEmpty()) {
+            Helpers.scheduleJobs(this, resumed);
+        }
+
+        // Rescheduling the download that started the job replaced the job itself,
+        // and a paused one shouldn't hand its job to a download just like it
+        final boolean replaced = needsReschedule && downloadId == jobId;
+        if (lead != null && !replaced && !preempted && startNextInBatch(params, lead)) {
+            return;
+        }
+
+        final DownloadInfo notifying;
+        synchronized (mActiveThreads) {
+            mActiveThreads.remove(jobId);
+            mBatchLeads.remove(jobId);
+            notifying = mNotifyingJobs.removeReturnOld(jobId);
+        }
+        if (notifying != null) {
+            Helpers.getDownloadNotifier(this).detachJob(notifying);
         }
 
         // Update notifications one last time while job is protecting us
@@ -111,6 +381,219 @@ public class DownloadJobService extends JobService {
 
         // We do our own rescheduling above
         jobFinished(params, false);
+
+        startQueued();
+    }
+
+    @Override
+    public long getTransferredDownloadBytes(JobParameters params) {
+        final DownloadThread thread;
+        synchronized (mActiveThreads) {
+            thread = mActiveThreads.get(params.getJobId());
+        }
+        return (thread != null) ? thread.getTransferredBytes() : 0;
+    }
+
+    /**
+     * Start the next pending download that can run under the job started by
+     * {@code lead}, taking it over from its own job.
+     *
+     * @return whether a download was started
+     */
+    private boolean startNextInBatch(JobParameters params, DownloadInfo lead) {
+        String batchable = "(" + Downloads.Impl.COLUMN_FLAGS + " & " + Constants.FLAG_BATCHABLE
+                + ")!=0";
+        String order = Downloads.Impl._ID;
+        if (lead.mGroupId != null) {
+            // Rest of the lead's group goes first, so the group finishes as a unit
+            final String sameGroup = Constants.GROUP_ID + "="
+                    + DatabaseUtils.sqlEscapeString(lead.mGroupId);
+            batchable = "(" + batchable + " OR " + sameGroup + ")";
+            order = sameGroup + " DESC, " + order;
+        }
+
+        final Bundle queryArgs = new Bundle();
+        queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SELECTION, Constants.UID + "="
+                + lead.mUid + " AND " + Downloads.Impl.COLUMN_STATUS + " IN ("
+                + Downloads.Impl.STATUS_PENDING + ","
+                + Downloads.Impl.STATUS_WAITING_FOR_NETWORK + ","
+                + Downloads.Impl.STATUS_QUEUED_FOR_WIFI + ") AND " + batchable);
+        queryArgs.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, order);
+        queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, BATCH_QUERY_LIMIT);
+
+        final ContentResolver resolver = getContentResolver();
+        try (Cursor cursor = resolver.query(Constants.ACTIVE_DOWNLOADS_CONTENT_URI,
+                DownloadInfo.SCHEDULING_PROJECTION, queryArgs, null)) {
+            final DownloadInfo.Reader reader = new DownloadInfo.Reader(resolver, cursor);
+            final DownloadInfo candidate = new DownloadInfo(this);
+            while (cursor.moveToNext()) {
+                reader.updateSchedulingState(candidate);
+                if (!isBatchCompatible(lead, candidate)) {
+                    continue;
+                }
+
+                final DownloadInfo info = DownloadInfo.queryDownloadInfo(this, candidate.mId);
+                if (info == null) {
+                    continue;
+                }
+                final int id = (int) info.mId;
+                final DownloadThread thread;
+                synchronized (mActiveThreads) {
+                    if (mBatchLeads.get(params.getJobId()) != lead) {
+                        // Job was stopped while we were looking
+                        return false;
+                    }
+                    if (mRunningDownloads.indexOfKey(id) >= 0
+                            || !Helpers.getHostHealthTracker().tryStart(
+                                    HostHealthTracker.getHost(info.mUri), info.mId,
+                                    Helpers.getSystemFacade(this).currentTimeMillis())) {
+                        continue;
+                    }
+                    thread = new DownloadThread(this, params, info);
+                    mActiveThreads.put(params.getJobId(), thread);
+                    mRunningDownloads.put(id, thread);
+                    sRunningCount = mRunningDownloads.size();
+                }
+                // Its own job would only be turned away while this one runs it,
+                // but leave a delayed one behind in case we're gone before then
+                Helpers.scheduleJob(this, info, Constants.PARKED_RECHECK_DELAY);
+                recordQueueLatency(info);
+                thread.start();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return whether {@code info} can run under the job started by
+     * {@code lead}, meaning the job's constraints also cover it. Downloads
+     * of the lead's group always qualify, whatever their size, so the group
+     * drains through the jobs already running for it.
+     */
+    @VisibleForTesting
+    static boolean isBatchCompatible(DownloadInfo lead, DownloadInfo info) {
+        final boolean sameGroup = lead.mGroupId != null
+                && lead.mGroupId.equals(info.mGroupId);
+        return info.mUid == lead.mUid
+                && info.mPriority == lead.mPriority
+                && (sameGroup || ((info.mFlags & Constants.FLAG_BATCHABLE) != 0
+                        && info.mTotalBytes <= Constants.BATCH_MAX_BYTES))
+                && info.isReadyToSchedule()
+                && info.getMinimumLatency() == 0
+                && info.isVisible() == lead.isVisible()
+                && (info.mFlags & BATCH_CONSTRAINT_FLAGS) == (lead.mFlags & BATCH_CONSTRAINT_FLAGS)
+                && info.getRequiredNetworkType(info.mTotalBytes)
+                        == lead.getRequiredNetworkType(lead.mTotalBytes);
+    }
+
+    /**
+     * Return the highest priority among running downloads of the given uid,
+     * or {@link Integer#MIN_VALUE} when none are running.
+     */
+    // @GuardedBy("mActiveThreads")
+    private int getHighestRunningPriority(int uid) {
+        int highest = Integer.MIN_VALUE;
+        for (int i = 0; i < mRunningDownloads.size(); i++) {
+            final DownloadInfo info = mRunningDownloads.valueAt(i).getInfo();
+            if (info.mUid == uid) {
+                highest = Math.max(highest, info.mPriority);
+            }
+        }
+        return highest;
+    }
+
+    // @GuardedBy("mActiveThreads")
+    private void park(DownloadInfo info) {
+        ArrayList<DownloadInfo> parked = mParked.get(info.mUid);
+        if (parked == null) {
+            parked = new ArrayList<>();
+            mParked.put(info.mUid, parked);
+        }
+        parked.removeIf(other -> other.mId == info.mId);
+        parked.add(info);
+    }
+
+    /**
+     * Parked and queued downloads only live here, so leave a delayed job
+     * behind for the given one in case we're gone before it's resumed. If it
+     * was resumed while that job was being scheduled, the job that resumed it
+     * may just have been replaced, so schedule it again without the delay.
+     */
+    private void scheduleWaiting(DownloadInfo info) {
+        if (info == null) {
+            return;
+        }
+        Helpers.scheduleJob(this, info, Constants.PARKED_RECHECK_DELAY);
+
+        final boolean resumed;
+        synchronized (mActiveThreads) {
+            resumed = !contains(mParked.get(info.mUid), info.mId) && !contains(mQueued, info.mId)
+                    && mRunningDownloads.indexOfKey((int) info.mId) < 0;
+        }
+        if (resumed) {
+            Helpers.scheduleJob(this, info);
+        }
+    }
+
+    private static boolean contains(ArrayList<DownloadInfo> infos, long id) {
+        if (infos != null) {
+            for (DownloadInfo info : infos) {
+                if (info.mId == id) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove and return the ids of parked downloads of the given uid that no
+     * longer have a higher priority download running ahead of them.
+     */
+    // @GuardedBy("mActiveThreads")
+    private ArrayList<Long> unparkRunnable(int uid) {
+        final ArrayList<Long> ids = new ArrayList<>();
+        final ArrayList<DownloadInfo> parked = mParked.get(uid);
+        if (parked == null) {
+            return ids;
+        }
+        final int highest = getHighestRunningPriority(uid);
+        parked.removeIf(info -> {
+            if (info.mPriority >= highest) {
+                ids.add(info.mId);
+                return true;
+            }
+            return false;
+        });
+        if (parked.isEmpty()) {
+            mParked.remove(uid);
+        }
+        return ids;
+    }
+
+    private void recordQueueLatency(DownloadInfo info) {
+        final long latency = Helpers.getSystemFacade(this).currentTimeMillis() - info.mLastMod;
+        sQueueLatency[info.mPriority - Constants.PRIORITY_LOW].add(latency);
+    }
+
+    /**
+     * Dump how long downloads of each priority waited between their last
+     * change and being started, in milliseconds.
+     */
+    static void dumpQueueLatency(IndentingPrintWriter pw) {
+        pw.println("Queue latency by priority (in ms):");
+        pw.increaseIndent();
+        for (int i = 0; i < sQueueLatency.length; i++) {
+            final DownloadProviderStats.Histogram latency = sQueueLatency[i];
+            pw.print("priority " + (i + Constants.PRIORITY_LOW) + ":");
+            pw.printPair(" count", latency.getCount());
+            pw.printPair("p50", latency.getPercentile(50));
+            pw.printPair("p90", latency.getPercentile(90));
+            pw.printPair("p99", latency.getPercentile(99));
+            pw.println();
+        }
+        pw.decreaseIndent();
     }
 
     private ContentObserver mObserver = new ContentObserver(Helpers.getAsyncHandler()) {
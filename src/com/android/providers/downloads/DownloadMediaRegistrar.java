@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import static com.android.providers.downloads.Constants.TAG;
+import static com.android.providers.downloads.Helpers.convertToMediaStoreDownloadsUri;
+
+import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.net.Uri;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.provider.MediaStore;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Background registration of files added through
+ * {@link android.app.DownloadManager#addCompletedDownload} with MediaStore.
+ * {@link DownloadProvider#insert} stores those rows as
+ * {@link android.provider.Downloads.Impl#MEDIA_NOT_SCANNED} and hands them to
+ * this queue, which scans them on {@link Helpers#getAsyncHandler()} one
+ * batch per message, so a large backlog doesn't hold up everything else
+ * sharing that handler, and then has the provider fill in their MediaStore
+ * uris.
+ */
+public class DownloadMediaRegistrar {
+    /** Maximum number of files scanned before their results are written back. */
+    @VisibleForTesting
+    static final int BATCH_SIZE = 100;
+
+    /** Writes the outcome of a batch back to the downloads database. */
+    public interface Callback {
+        /**
+         * Record the MediaStore uri of every scanned entry. Always called on
+         * the async handler thread.
+         *
+         * @return entries whose download no longer exists
+         */
+        List<Entry> onMediaRegistered(List<Entry> entries);
+    }
+
+    /** A single download whose file still needs to be registered. */
+    static class Entry {
+        final long mId;
+        final String mFileName;
+        final String mDownloadUri;
+        final String mReferer;
+        final int mUid;
+        /** Set once the file has been scanned, if MediaStore picked it up */
+        Uri mMediaStoreUri;
+
+        Entry(long id, String fileName, String downloadUri, String referer, int uid) {
+            mId = id;
+            mFileName = fileName;
+            mDownloadUri = downloadUri;
+            mReferer = referer;
+            mUid = uid;
+        }
+    }
+
+    private final Context mContext;
+    private final Callback mCallback;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final ArrayList<Entry> mPending = new ArrayList<>();
+    /** Ids that are either pending or part of the batch being processed */
+    @GuardedBy("mLock")
+    private final HashSet<Long> mUnregistered = new HashSet<>();
+
+    public DownloadMediaRegistrar(Context context, Callback callback) {
+        mContext = context;
+        mCallback = callback;
+    }
+
+    /**
+     * Schedule registration for the given entries. Safe to call from any thread.
+     */
+    void enqueue(List<Entry> entries) {
+        if (entries.isEmpty()) {
+            return;
+        }
+        final boolean wasIdle;
+        synchronized (mLock) {
+            wasIdle = mPending.isEmpty();
+            for (Entry entry : entries) {
+                if (mUnregistered.add(entry.mId)) {
+                    mPending.add(entry);
+                }
+            }
+        }
+        if (wasIdle) {
+            Helpers.getAsyncHandler().post(this::drain);
+        }
+    }
+
+    /**
+     * Block until the given download has gone through registration, or the
+     * timeout expires. Must not be called on the async handler thread.
+     *
+     * @return whether the download is no longer waiting to be registered
+     */
+    boolean awaitRegistered(long id, long timeoutMillis) throws InterruptedException {
+        final long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+        synchronized (mLock) {
+            while (mUnregistered.contains(id)) {
+                final long remaining = deadline - SystemClock.elapsedRealtime();
+                if (remaining <= 0) {
+                    return false;
+                }
+                mLock.wait(remaining);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Register one batch, then post again for the next one, if any.
+     */
+    private void drain() {
+        final ArrayList<Entry> batch;
+        synchronized (mLock) {
+            if (mPending.isEmpty()) {
+                return;
+            }
+            final int size = Math.min(BATCH_SIZE, mPending.size());
+            final List<Entry> head = mPending.subList(0, size);
+            batch = new ArrayList<>(head);
+            head.clear();
+        }
+
+        final int remaining;
+        try {
+            processBatch(batch);
+        } finally {
+            synchronized (mLock) {
+                for (Entry entry : batch) {
+                    mUnregistered.remove(entry.mId);
+                }
+                mLock.notifyAll();
+                remaining = mPending.size();
+            }
+        }
+        if (Constants.LOGV) {
+            Log.v(TAG, "Registered " + batch.size() + " downloads with MediaStore, "
+                    + remaining + " remaining");
+        }
+        if (remaining > 0) {
+            Helpers.getAsyncHandler().post(this::drain);
+        }
+    }
+
+    private void processBatch(List<Entry> batch) {
+        final ContentResolver resolver = mContext.getContentResolver();
+        final SparseArray<String> knownUids = new SparseArray<>();
+        final ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+        for (Entry entry : batch) {
+            entry.mMediaStoreUri = MediaStore.scanFile(resolver, new File(entry.mFileName));
+            if (entry.mMediaStoreUri == null) {
+                continue;
+            }
+
+            final int index = knownUids.indexOfKey(entry.mUid);
+            final String packageName;
+            if (index >= 0) {
+                packageName = knownUids.valueAt(index);
+            } else {
+                packageName = Helpers.getPackageForUid(mContext, entry.mUid);
+                knownUids.put(entry.mUid, packageName);
+            }
+            ops.add(ContentProviderOperation.newUpdate(
+                    convertToMediaStoreDownloadsUri(entry.mMediaStoreUri))
+                    .withValue(MediaStore.Downloads.DOWNLOAD_URI, entry.mDownloadUri)
+                    .withValue(MediaStore.Downloads.REFERER_URI, entry.mReferer)
+                    .withValue(MediaStore.Downloads.OWNER_PACKAGE_NAME, packageName)
+                    .build());
+        }
+
+        if (!ops.isEmpty()) {
+            try (ContentProviderClient client = resolver
+                    .acquireContentProviderClient(MediaStore.AUTHORITY)) {
+                if (client != null) {
+                    client.applyBatch(ops);
+                } else {
+                    Log.w(TAG, "Failed to acquire ContentProviderClient for MediaStore");
+                }
+            } catch (RemoteException | OperationApplicationException e) {
+                // The files are still indexed, just without their download details
+                Log.w(TAG, "Failed to update MediaStore entries in batch", e);
+            }
+        }
+
+        // Downloads deleted while their file was being scanned may have had
+        // the file removed already; scan again so MediaStore forgets it
+        for (Entry entry : mCallback.onMediaRegistered(batch)) {
+            if (entry.mMediaStoreUri != null) {
+                MediaStore.scanFile(resolver, new File(entry.mFileName));
+            }
+        }
+    }
+}
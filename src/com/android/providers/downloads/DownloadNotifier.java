@@ -44,6 +44,7 @@ import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.text.format.Formatter;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.IntArray;
 import android.util.Log;
 import android.util.LongSparseLongArray;
@@ -77,11 +78,19 @@ public class DownloadNotifier {
      * Currently active notifications, mapped from clustering tag to timestamp
      * when first shown.
      *
-     * @see #buildNotificationTag(Cursor)
+     * @see #buildNotificationTag(Cursor, ArraySet)
      */
     @GuardedBy("mActiveNotifs")
     private final ArrayMap<String, Long> mActiveNotifs = new ArrayMap<>();
 
+    /**
+     * Active clusters whose notification is attached to running user-initiated
+     * jobs, mapped from clustering tag to number of jobs. These are posted
+     * without a tag under {@link #getJobNotificationId(String)} instead.
+     */
+    @GuardedBy("mActiveNotifs")
+    private final ArrayMap<String, Integer> mJobNotifs = new ArrayMap<>();
+
     /**
      * Current speed of active downloads, mapped from download ID to speed in
      * bytes per second.
@@ -126,7 +135,10 @@ public class DownloadNotifier {
             final StatusBarNotification[] notifs = mNotifManager.getActiveNotifications();
             if (!ArrayUtils.isEmpty(notifs)) {
                 for (StatusBarNotification notif : notifs) {
-                    mActiveNotifs.put(notif.getTag(), notif.getPostTime());
+                    // Untagged ones belong to jobs, which clean up after themselves
+                    if (notif.getTag() != null) {
+                        mActiveNotifs.put(notif.getTag(), notif.getPostTime());
+                    }
                 }
             }
         }
@@ -148,6 +160,76 @@ public class DownloadNotifier {
         }
     }
 
+    /**
+     * Return the last speed reported for the given download in bytes per
+     * second, or 0 when it isn't actively transferring.
+     */
+    public long getDownloadSpeed(long id) {
+        synchronized (mDownloadSpeed) {
+            return mDownloadSpeed.get(id);
+        }
+    }
+
+    /**
+     * Attach the active notification of the given download's cluster to a
+     * user-initiated job that is about to run it.
+     *
+     * @return the notification id to hand to
+     *         {@link android.app.job.JobService#setNotification}
+     */
+    public int attachJob(DownloadInfo info) {
+        final String tag = TYPE_ACTIVE + ":" + getClusterName(info.mPackage, info.mGroupId);
+        synchronized (mActiveNotifs) {
+            final Integer count = mJobNotifs.get(tag);
+            mJobNotifs.put(tag, (count == null) ? 1 : count + 1);
+            if (count == null && mActiveNotifs.containsKey(tag)) {
+                // The job's notification takes over from here
+                mNotifManager.cancel(tag, 0);
+            }
+        }
+        return getJobNotificationId(tag);
+    }
+
+    /**
+     * Undo {@link #attachJob(DownloadInfo)} once the job has finished; the
+     * system removes its notification.
+     */
+    public void detachJob(DownloadInfo info) {
+        final String tag = TYPE_ACTIVE + ":" + getClusterName(info.mPackage, info.mGroupId);
+        synchronized (mActiveNotifs) {
+            final Integer count = mJobNotifs.get(tag);
+            if (count == null || count <= 1) {
+                mJobNotifs.remove(tag);
+                mActiveNotifs.remove(tag);
+            } else {
+                mJobNotifs.put(tag, count - 1);
+            }
+        }
+    }
+
+    /**
+     * Build the notification shown while a user-initiated job for the given
+     * download starts up, until {@link #update()} fills in its cluster.
+     */
+    public Notification buildJobNotification(DownloadInfo info) {
+        final Resources res = mContext.getResources();
+        final Notification.Builder builder = new Notification.Builder(mContext, CHANNEL_ACTIVE);
+        builder.setSmallIcon(android.R.drawable.stat_sys_download);
+        builder.setColor(res.getColor(
+                com.android.internal.R.color.system_notification_accent_color));
+        builder.setOnlyAlertOnce(true);
+        builder.setOngoing(true);
+        builder.setContentTitle(!TextUtils.isEmpty(info.mTitle)
+                ? Helpers.removeInvalidCharsAndGenerateName(info.mTitle)
+                : res.getString(R.string.download_unknown_title));
+        builder.setProgress(100, 0, true);
+        return builder.build();
+    }
+
+    private static int getJobNotificationId(String tag) {
+        return tag.hashCode();
+    }
+
     private interface UpdateQuery {
         final String[] PROJECTION = new String[] {
                 Downloads.Impl._ID,
@@ -159,6 +241,7 @@ public class DownloadNotifier {
                 Downloads.Impl.COLUMN_DESTINATION,
                 Downloads.Impl.COLUMN_TITLE,
                 Downloads.Impl.COLUMN_DESCRIPTION,
+                Constants.GROUP_ID,
         };
 
         final int _ID = 0;
@@ -170,11 +253,13 @@ public class DownloadNotifier {
         final int DESTINATION = 6;
         final int TITLE = 7;
         final int DESCRIPTION = 8;
+        final int GROUP_ID = 9;
     }
 
     public void update() {
+        // Archived downloads never need a notification, so skip them
         try (Cursor cursor = mContext.getContentResolver().query(
-                Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, UpdateQuery.PROJECTION,
+                Constants.ACTIVE_DOWNLOADS_CONTENT_URI, UpdateQuery.PROJECTION,
                 Downloads.Impl.COLUMN_DELETED + " == '0'", null, null)) {
             if (cursor == null) {
                 Log.e(TAG, "Cursor is null, will ignore update");
@@ -189,10 +274,22 @@ public class DownloadNotifier {
     private void updateWithLocked(@NonNull Cursor cursor) {
         final Resources res = mContext.getResources();
 
+        // Groups only get a completion notification once the whole group is done
+        final ArraySet<String> unfinishedGroups = new ArraySet<>();
+        while (cursor.moveToNext()) {
+            final String groupId = cursor.getString(UpdateQuery.GROUP_ID);
+            if (groupId != null
+                    && !Downloads.Impl.isStatusCompleted(cursor.getInt(UpdateQuery.STATUS))) {
+                unfinishedGroups.add(getClusterName(
+                        cursor.getString(UpdateQuery.NOTIFICATION_PACKAGE), groupId));
+            }
+        }
+
         // Cluster downloads together
         final ArrayMap<String, IntArray> clustered = new ArrayMap<>();
+        cursor.moveToPosition(-1);
         while (cursor.moveToNext()) {
-            final String tag = buildNotificationTag(cursor);
+            final String tag = buildNotificationTag(cursor, unfinishedGroups);
             if (tag != null) {
                 IntArray cluster = clustered.get(tag);
                 if (cluster == null) {
@@ -338,8 +435,9 @@ public class DownloadNotifier {
                         Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, id);
                 builder.setAutoCancel(true);
 
+                // A finished group lists its downloads rather than opening one
                 final String action;
-                if (Downloads.Impl.isStatusError(status)) {
+                if (Downloads.Impl.isStatusError(status) || cluster.size() > 1) {
                     action = Constants.ACTION_LIST;
                 } else {
                     action = Constants.ACTION_OPEN;
@@ -356,6 +454,8 @@ public class DownloadNotifier {
                 final Intent hideIntent = new Intent(Constants.ACTION_HIDE,
                         uri, mContext, DownloadReceiver.class);
                 hideIntent.addFlags(Intent.FLAG_RECEIVER_FOREGROUND);
+                hideIntent.putExtra(DownloadManager.EXTRA_NOTIFICATION_CLICK_DOWNLOAD_IDS,
+                        getDownloadIds(cursor, cluster));
                 builder.setDeleteIntent(PendingIntent.getBroadcast(mContext, 0, hideIntent,
                             PendingIntent.FLAG_IMMUTABLE));
             }
@@ -495,18 +595,39 @@ public class DownloadNotifier {
                             res.getString(R.string.notification_need_wifi_for_size));
                     inboxStyle.setSummaryText(
                             res.getString(R.string.notification_need_wifi_for_size));
+
+                } else if (type == TYPE_COMPLETE) {
+                    int numFailed = 0;
+                    for (int j = 0; j < cluster.size(); j++) {
+                        cursor.moveToPosition(cluster.get(j));
+                        if (Downloads.Impl.isStatusError(cursor.getInt(UpdateQuery.STATUS))) {
+                            numFailed++;
+                        }
+                    }
+                    builder.setContentTitle(res.getQuantityString(
+                            R.plurals.notif_summary_complete, cluster.size(), cluster.size()));
+                    if (numFailed > 0) {
+                        builder.setContentText(res.getText(R.string.notification_download_failed));
+                    } else {
+                        builder.setContentText(
+                                res.getText(R.string.notification_download_complete));
+                    }
                 }
 
                 notif = inboxStyle.build();
             }
 
-            mNotifManager.notify(tag, 0, notif);
+            if (mJobNotifs.containsKey(tag)) {
+                mNotifManager.notify(null, getJobNotificationId(tag), notif);
+            } else {
+                mNotifManager.notify(tag, 0, notif);
+            }
         }
 
         // Remove stale tags that weren't renewed
         for (int i = 0; i < mActiveNotifs.size();) {
             final String tag = mActiveNotifs.keyAt(i);
-            if (clustered.containsKey(tag)) {
+            if (clustered.containsKey(tag) || mJobNotifs.containsKey(tag)) {
                 i++;
             } else {
                 mNotifManager.cancel(tag, 0);
@@ -548,27 +669,45 @@ public class DownloadNotifier {
      * Build tag used for collapsing several downloads into a single
      * {@link Notification}.
      */
-    private static String buildNotificationTag(Cursor cursor) {
+    private static String buildNotificationTag(Cursor cursor,
+            ArraySet<String> unfinishedGroups) {
         final long id = cursor.getLong(UpdateQuery._ID);
         final int status = cursor.getInt(UpdateQuery.STATUS);
         final int visibility = cursor.getInt(UpdateQuery.VISIBILITY);
         final String notifPackage = cursor.getString(UpdateQuery.NOTIFICATION_PACKAGE);
+        final String groupId = cursor.getString(UpdateQuery.GROUP_ID);
+        final String cluster = getClusterName(notifPackage, groupId);
 
         if (isQueuedAndVisible(status, visibility)) {
-            return TYPE_WAITING + ":" + notifPackage;
+            return TYPE_WAITING + ":" + cluster;
         } else if (isActiveAndVisible(status, visibility)) {
-            return TYPE_ACTIVE + ":" + notifPackage;
+            return TYPE_ACTIVE + ":" + cluster;
         } else if (isCompleteAndVisible(status, visibility)) {
-            // Complete downloads always have unique notifs
-            return TYPE_COMPLETE + ":" + id;
+            if (groupId == null) {
+                // Complete downloads always have unique notifs
+                return TYPE_COMPLETE + ":" + id;
+            } else if (unfinishedGroups.contains(cluster)) {
+                return null;
+            } else {
+                // Unless they make up a whole group
+                return TYPE_COMPLETE + ":" + cluster;
+            }
         } else {
             return null;
         }
     }
 
+    /**
+     * Return the name that downloads of the given package and group are
+     * clustered under; each group gets its own notification.
+     */
+    private static String getClusterName(String notifPackage, String groupId) {
+        return (groupId == null) ? notifPackage : notifPackage + "/" + groupId;
+    }
+
     /**
      * Return the cluster type of the given tag, as created by
-     * {@link #buildNotificationTag(Cursor)}.
+     * {@link #buildNotificationTag(Cursor, ArraySet)}.
      */
     private static int getNotificationTagType(String tag) {
         return Integer.parseInt(tag.substring(0, tag.indexOf(':')));
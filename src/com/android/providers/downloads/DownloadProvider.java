@@ -29,7 +29,6 @@ import static android.provider.Downloads.Impl.MEDIA_NOT_SCANNED;
 import static android.provider.Downloads.Impl.MEDIA_SCANNED;
 import static android.provider.Downloads.Impl.PERMISSION_ACCESS_ALL;
 
-import static com.android.providers.downloads.Helpers.convertToMediaStoreDownloadsUri;
 import static com.android.providers.downloads.Helpers.triggerMediaScan;
 
 import android.annotation.NonNull;
@@ -39,11 +38,14 @@ import android.app.DownloadManager.Request;
 import android.app.job.JobScheduler;
 import android.content.ContentProvider;
 import android.content.ContentProviderClient;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.content.OperationApplicationException;
 import android.content.UriMatcher;
 import android.content.pm.ApplicationInfo;
 import android.content.pm.PackageManager;
@@ -57,11 +59,13 @@ import android.net.Uri;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.os.Environment;
 import android.os.ParcelFileDescriptor;
 import android.os.ParcelFileDescriptor.OnCloseListener;
 import android.os.Process;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.storage.StorageManager;
 import android.provider.BaseColumns;
 import android.provider.Downloads;
@@ -70,7 +74,9 @@ import android.provider.OpenableColumns;
 import android.text.TextUtils;
 import android.text.format.DateUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Log;
+import android.util.SparseArray;
 
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.IndentingPrintWriter;
@@ -84,8 +90,10 @@ import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -95,11 +103,48 @@ public final class DownloadProvider extends ContentProvider {
     /** Database filename */
     private static final String DB_NAME = "downloads.db";
     /** Current database version */
-    private static final int DB_VERSION = 114;
+    private static final int DB_VERSION = 124;
     /** Name of table in the database */
     private static final String DB_TABLE = "downloads";
+    /**
+     * Name of the table holding finished downloads moved out of {@link #DB_TABLE}.
+     * Rows are copied between the two with SELECT *, so any column added to
+     * one must be added to the other, followed by {@code createDownloadsView()}.
+     */
+    private static final String DB_ARCHIVE_TABLE = "downloads_archive";
+    /** Name of the view combining {@link #DB_TABLE} and {@link #DB_ARCHIVE_TABLE} */
+    private static final String DB_VIEW = "downloads_with_archive";
+    /** Name of the single-row table holding the latest change sequence */
+    private static final String DB_CHANGES_TABLE = "download_changes";
+    /** Trigger statements advancing the change sequence and stamping the row with it */
+    private static final String CHANGE_NEXT_SEQ =
+            "UPDATE " + DB_CHANGES_TABLE + " SET seq=seq+1;";
+    private static final String CHANGE_STAMP_ROW = "UPDATE " + DB_TABLE + " SET "
+            + Constants.CHANGE_SEQ + "=(SELECT seq FROM " + DB_CHANGES_TABLE + ") WHERE "
+            + _ID + "=NEW." + _ID + ";";
+    /** Name of the table remembering recently deleted downloads for the change feed */
+    private static final String DB_TOMBSTONES_TABLE = "deleted_downloads";
+    /** Name of the table holding download totals, kept up to date by triggers */
+    private static final String DB_TOTALS_TABLE = "download_totals";
+    /** Name of the table remembering groups whose completion broadcast went out */
+    private static final String DB_GROUP_BROADCASTS_TABLE = "download_group_broadcasts";
+    /** Name of the full-text index over download titles, descriptions and file names */
+    private static final String DB_SEARCH_TABLE = "downloads_search";
+    /** Number of deletions remembered for change feed consumers */
+    private static final int MAX_TOMBSTONES = 1000;
+    /** Default number of rows returned by a single {@link Constants#CALL_GET_CHANGES} */
+    private static final int DEFAULT_CHANGES_LIMIT = 500;
+    /** Default time {@link Constants#CALL_AWAIT_MEDIA_REGISTRATION} waits for */
+    private static final long DEFAULT_REGISTRATION_TIMEOUT_MS = 2 * DateUtils.SECOND_IN_MILLIS;
+    /**
+     * Longest a caller may block a binder thread waiting for registration,
+     * kept short so a few callers can't tie up the whole binder pool
+     */
+    private static final long MAX_REGISTRATION_TIMEOUT_MS = 5 * DateUtils.SECOND_IN_MILLIS;
     /** Memory optimization - close idle connections after 30s of inactivity */
     private static final int IDLE_CONNECTION_TIMEOUT_MS = 30000;
+    /** Maximum number of rows sent to MediaProvider in a single query or applyBatch() */
+    private static final int MEDIA_BATCH_SIZE = 100;
 
     /** MIME type for the entire download list */
     private static final String DOWNLOAD_LIST_TYPE = "vnd.android.cursor.dir/download";
@@ -138,6 +183,10 @@ public final class DownloadProvider extends ContentProvider {
                 "download/#/" + Downloads.Impl.RequestHeaders.URI_SEGMENT,
                 MY_DOWNLOADS_ID_HEADERS);
     }
+    /** Names of the URI matcher constants above, for stats */
+    private static final String[] MATCH_NAMES = new String[] {
+            "unknown", "my_downloads", "my_downloads_id", "my_downloads_id_headers",
+            "all_downloads", "all_downloads_id", "all_downloads_id_headers" };
 
     /** Different base URIs that could be used to access an individual download */
     private static final Uri[] BASE_URIS = new Uri[] {
@@ -234,6 +283,12 @@ public final class DownloadProvider extends ContentProvider {
         addMapping(map, Downloads.Impl.COLUMN_USER_AGENT);
         addMapping(map, Downloads.Impl.COLUMN_VISIBILITY);
 
+        addMapping(map, Constants.CHANGE_SEQ);
+        addMapping(map, Constants.VERSION);
+        addMapping(map, Constants.VALIDATED_DATA);
+        addMapping(map, Constants.PRIORITY);
+        addMapping(map, Constants.GROUP_ID);
+        addMapping(map, Constants.GROUP_FAILURE_POLICY);
         addMapping(map, Constants.ETAG);
         addMapping(map, Constants.RETRY_AFTER_X_REDIRECT_COUNT);
         addMapping(map, Constants.UID);
@@ -260,6 +315,21 @@ public final class DownloadProvider extends ContentProvider {
     private StorageManager mStorageManager;
     private AppOpsManager mAppOpsManager;
 
+    /** Removes files and MediaStore entries of deleted downloads in the background */
+    @VisibleForTesting
+    DownloadDeleteQueue mDeleteQueue;
+
+    /** Registers files of addCompletedDownload() rows with MediaStore in the background */
+    @VisibleForTesting
+    DownloadMediaRegistrar mMediaRegistrar;
+
+    /** Coalesces change notifications sent to observers */
+    @VisibleForTesting
+    DownloadChangeDispatcher mChangeDispatcher;
+
+    /** Latency and row count histograms of every operation */
+    private final DownloadProviderStats mStats = new DownloadProviderStats(MATCH_NAMES);
+
     /**
      * Creates and updated database on demand when opening it.
      * Helper class to create database the first time the provider is
@@ -272,6 +342,13 @@ public final class DownloadProvider extends ContentProvider {
             setIdleConnectionTimeout(IDLE_CONNECTION_TIMEOUT_MS);
         }
 
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            // getQueryBuilder() only produces a handful of distinct statements,
+            // so make room for all of them alongside the internal ones
+            db.setMaxSqlCacheSize(SQLiteDatabase.MAX_SQL_CACHE_SIZE);
+        }
+
         /**
          * Creates database the first time we try to open it.
          */
@@ -396,6 +473,70 @@ public final class DownloadProvider extends ContentProvider {
                     scheduleMediaScanTriggerJob = true;
                     break;
 
+                case 115:
+                    addColumn(db, DB_TABLE, Constants.CHANGE_SEQ,
+                            "INTEGER NOT NULL DEFAULT 0");
+                    createChangeTracking(db);
+                    break;
+
+                case 116:
+                    createArchiveTable(db);
+                    createDownloadsView(db);
+                    break;
+
+                case 117:
+                    createSeekIndexes(db);
+                    break;
+
+                case 118:
+                    addColumn(db, DB_TABLE, Constants.VERSION, "INTEGER NOT NULL DEFAULT 0");
+                    addColumn(db, DB_ARCHIVE_TABLE, Constants.VERSION,
+                            "INTEGER NOT NULL DEFAULT 0");
+                    createDownloadsView(db);
+                    createVersionTracking(db);
+                    break;
+
+                case 119:
+                    createTotals(db);
+                    break;
+
+                case 120:
+                    createSearchIndex(db);
+                    break;
+
+                case 121:
+                    addColumn(db, DB_TABLE, Constants.VALIDATED_DATA, "TEXT DEFAULT NULL");
+                    addColumn(db, DB_ARCHIVE_TABLE, Constants.VALIDATED_DATA,
+                            "TEXT DEFAULT NULL");
+                    createDownloadsView(db);
+                    break;
+
+                case 122:
+                    db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE + "_"
+                            + Downloads.Impl.COLUMN_STATUS + " ON " + DB_TABLE + "("
+                            + Downloads.Impl.COLUMN_STATUS + ")");
+                    break;
+
+                case 123:
+                    addColumn(db, DB_TABLE, Constants.PRIORITY, "INTEGER NOT NULL DEFAULT "
+                            + Constants.PRIORITY_DEFAULT);
+                    addColumn(db, DB_ARCHIVE_TABLE, Constants.PRIORITY,
+                            "INTEGER NOT NULL DEFAULT " + Constants.PRIORITY_DEFAULT);
+                    createDownloadsView(db);
+                    break;
+
+                case 124:
+                    addColumn(db, DB_TABLE, Constants.GROUP_ID, "TEXT DEFAULT NULL");
+                    addColumn(db, DB_ARCHIVE_TABLE, Constants.GROUP_ID, "TEXT DEFAULT NULL");
+                    addColumn(db, DB_TABLE, Constants.GROUP_FAILURE_POLICY,
+                            "INTEGER NOT NULL DEFAULT " + Constants.GROUP_FAILURE_CONTINUE);
+                    addColumn(db, DB_ARCHIVE_TABLE, Constants.GROUP_FAILURE_POLICY,
+                            "INTEGER NOT NULL DEFAULT " + Constants.GROUP_FAILURE_CONTINUE);
+                    createDownloadsView(db);
+                    createGroupIndexes(db);
+                    createGroupBroadcasts(db);
+                    break;
+
                 default:
                     throw new IllegalStateException("Don't know how to upgrade to " + version);
             }
@@ -509,6 +650,307 @@ public final class DownloadProvider extends ContentProvider {
             db.update(DB_TABLE, values, whereClause, null);
         }
 
+        /**
+         * Sets up the change feed: every insert, update and delete on the
+         * downloads table takes the next value from {@link #DB_CHANGES_TABLE}
+         * and stamps it on the row, or on a tombstone for deletes. Neither the
+         * stamp itself nor caching a validated path on its own counts as an
+         * update, since clients only ever change that path along with the one
+         * it belongs to. The validated path column is only added in step 121,
+         * which is fine as long as no step before it updates downloads.
+         */
+        private void createChangeTracking(SQLiteDatabase db) {
+            // Existing rows count as changed at their creation
+            db.execSQL("UPDATE " + DB_TABLE + " SET " + Constants.CHANGE_SEQ + "=" + _ID);
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE + "_" + Constants.CHANGE_SEQ
+                    + " ON " + DB_TABLE + "(" + Constants.CHANGE_SEQ + ")");
+
+            db.execSQL("DROP TABLE IF EXISTS " + DB_CHANGES_TABLE);
+            db.execSQL("CREATE TABLE " + DB_CHANGES_TABLE + "("
+                    + "seq INTEGER NOT NULL,"
+                    + "horizon INTEGER NOT NULL);");
+            db.execSQL("INSERT INTO " + DB_CHANGES_TABLE + " SELECT IFNULL(MAX(" + _ID
+                    + "), 0), 0 FROM " + DB_TABLE);
+
+            db.execSQL("DROP TABLE IF EXISTS " + DB_TOMBSTONES_TABLE);
+            db.execSQL("CREATE TABLE " + DB_TOMBSTONES_TABLE + "("
+                    + _ID + " INTEGER NOT NULL,"
+                    + Constants.UID + " INTEGER,"
+                    + COLUMN_OTHER_UID + " INTEGER,"
+                    + Constants.CHANGE_SEQ + " INTEGER NOT NULL);");
+            db.execSQL("CREATE INDEX " + DB_TOMBSTONES_TABLE + "_" + Constants.CHANGE_SEQ
+                    + " ON " + DB_TOMBSTONES_TABLE + "(" + Constants.CHANGE_SEQ + ")");
+
+            db.execSQL("DROP TRIGGER IF EXISTS downloads_change_insert");
+            db.execSQL("CREATE TRIGGER downloads_change_insert AFTER INSERT ON " + DB_TABLE
+                    + " BEGIN " + CHANGE_NEXT_SEQ + CHANGE_STAMP_ROW + " END");
+            db.execSQL("DROP TRIGGER IF EXISTS downloads_change_update");
+            db.execSQL("CREATE TRIGGER downloads_change_update AFTER UPDATE ON " + DB_TABLE
+                    + " WHEN NEW." + Constants.CHANGE_SEQ + "=OLD." + Constants.CHANGE_SEQ
+                    + " AND (NEW." + Constants.VALIDATED_DATA + " IS OLD."
+                    + Constants.VALIDATED_DATA + " OR NEW." + Downloads.Impl._DATA
+                    + " IS NOT OLD." + Downloads.Impl._DATA + ")"
+                    + " BEGIN " + CHANGE_NEXT_SEQ + CHANGE_STAMP_ROW + " END");
+            createTombstoneTrigger(db, "downloads_change_delete", DB_TABLE, null);
+        }
+
+        /**
+         * Records a tombstone for every row deleted from {@code table}, unless
+         * the row still exists in {@code movedTo}, in which case it was only
+         * moved between the hot and archive tables.
+         */
+        private void createTombstoneTrigger(SQLiteDatabase db, String name, String table,
+                String movedTo) {
+            final String when = (movedTo == null) ? "" : " WHEN NOT EXISTS (SELECT 1 FROM "
+                    + movedTo + " WHERE " + _ID + "=OLD." + _ID + ")";
+            db.execSQL("DROP TRIGGER IF EXISTS " + name);
+            db.execSQL("CREATE TRIGGER " + name + " AFTER DELETE ON " + table + when
+                    + " BEGIN UPDATE " + DB_CHANGES_TABLE + " SET seq=seq+1;"
+                    + "INSERT INTO " + DB_TOMBSTONES_TABLE + " VALUES (OLD." + _ID
+                    + ", OLD." + Constants.UID + ", OLD." + COLUMN_OTHER_UID
+                    + ", (SELECT seq FROM " + DB_CHANGES_TABLE + ")); END");
+        }
+
+        /**
+         * Creates the archive for finished downloads, with the same columns as
+         * the downloads table. Moving a row in either direction is not a
+         * deletion as far as the change feed is concerned.
+         */
+        private void createArchiveTable(SQLiteDatabase db) {
+            db.execSQL("DROP VIEW IF EXISTS " + DB_VIEW);
+            db.execSQL("DROP TABLE IF EXISTS " + DB_ARCHIVE_TABLE);
+            db.execSQL("CREATE TABLE " + DB_ARCHIVE_TABLE + " AS SELECT * FROM " + DB_TABLE
+                    + " WHERE 0");
+            db.execSQL("CREATE UNIQUE INDEX " + DB_ARCHIVE_TABLE + "_" + _ID + " ON "
+                    + DB_ARCHIVE_TABLE + "(" + _ID + ")");
+            db.execSQL("CREATE INDEX " + DB_ARCHIVE_TABLE + "_" + Constants.CHANGE_SEQ + " ON "
+                    + DB_ARCHIVE_TABLE + "(" + Constants.CHANGE_SEQ + ")");
+
+            createTombstoneTrigger(db, "downloads_change_delete", DB_TABLE, DB_ARCHIVE_TABLE);
+            createTombstoneTrigger(db, "downloads_archive_change_delete", DB_ARCHIVE_TABLE,
+                    DB_TABLE);
+        }
+
+        /**
+         * Bumps {@link Constants#VERSION} whenever a write changes the status,
+         * control or deleted flag of a download, whoever it comes from.
+         */
+        private void createVersionTracking(SQLiteDatabase db) {
+            final String status = Downloads.Impl.COLUMN_STATUS;
+            final String control = Downloads.Impl.COLUMN_CONTROL;
+            final String deleted = Downloads.Impl.COLUMN_DELETED;
+            db.execSQL("DROP TRIGGER IF EXISTS downloads_version_update");
+            db.execSQL("CREATE TRIGGER downloads_version_update AFTER UPDATE OF "
+                    + status + ", " + control + ", " + deleted + " ON " + DB_TABLE
+                    + " WHEN NEW." + status + " IS NOT OLD." + status
+                    + " OR NEW." + control + " IS NOT OLD." + control
+                    + " OR NEW." + deleted + " IS NOT OLD." + deleted
+                    + " BEGIN UPDATE " + DB_TABLE + " SET " + Constants.VERSION + "=OLD."
+                    + Constants.VERSION + "+1 WHERE " + _ID + "=NEW." + _ID + "; END");
+        }
+
+        /**
+         * Sets up {@link #DB_TOTALS_TABLE}, which holds the number and size of
+         * downloads for every combination of owner, other owner, status and
+         * visibility, so callers can be limited to what they could query.
+         * Triggers on both the downloads and archive tables keep it in step
+         * with every write, so totals can be read without scanning downloads.
+         * Rows marked as deleted aren't counted.
+         */
+        private void createTotals(SQLiteDatabase db) {
+            db.execSQL("DROP TABLE IF EXISTS " + DB_TOTALS_TABLE);
+            db.execSQL("CREATE TABLE " + DB_TOTALS_TABLE + "("
+                    + Constants.UID + " INTEGER NOT NULL,"
+                    + COLUMN_OTHER_UID + " INTEGER NOT NULL,"
+                    + Downloads.Impl.COLUMN_STATUS + " INTEGER NOT NULL,"
+                    + Downloads.Impl.COLUMN_VISIBILITY + " INTEGER NOT NULL,"
+                    + Constants.TOTALS_COUNT + " INTEGER NOT NULL,"
+                    + Downloads.Impl.COLUMN_TOTAL_BYTES + " INTEGER NOT NULL,"
+                    + Downloads.Impl.COLUMN_CURRENT_BYTES + " INTEGER NOT NULL,"
+                    + Constants.TOTALS_REMAINING_BYTES + " INTEGER NOT NULL,"
+                    + "PRIMARY KEY (" + Constants.UID + ", " + COLUMN_OTHER_UID + ", "
+                    + Downloads.Impl.COLUMN_STATUS + ", " + Downloads.Impl.COLUMN_VISIBILITY
+                    + "));");
+            db.execSQL("INSERT INTO " + DB_TOTALS_TABLE + " SELECT " + totalsKey("")
+                    + ", COUNT(*), SUM(" + totalBytes("") + "), SUM(" + currentBytes("")
+                    + "), SUM(" + remainingBytes("") + ") FROM " + DB_VIEW + " WHERE "
+                    + Downloads.Impl.COLUMN_DELETED + "=0 GROUP BY 1, 2, 3, 4");
+
+            createTotalsTriggers(db, DB_TABLE);
+            createTotalsTriggers(db, DB_ARCHIVE_TABLE);
+        }
+
+        private void createTotalsTriggers(SQLiteDatabase db, String table) {
+            final String add = "INSERT INTO " + DB_TOTALS_TABLE + " SELECT " + totalsKey("NEW.")
+                    + ", 1, " + totalBytes("NEW.") + ", " + currentBytes("NEW.") + ", "
+                    + remainingBytes("NEW.") + " WHERE NEW." + Downloads.Impl.COLUMN_DELETED
+                    + "=0 ON CONFLICT(" + Constants.UID + ", " + COLUMN_OTHER_UID + ", "
+                    + Downloads.Impl.COLUMN_STATUS + ", " + Downloads.Impl.COLUMN_VISIBILITY
+                    + ") DO UPDATE SET "
+                    + Constants.TOTALS_COUNT + "=" + Constants.TOTALS_COUNT + "+1, "
+                    + Downloads.Impl.COLUMN_TOTAL_BYTES + "=" + Downloads.Impl.COLUMN_TOTAL_BYTES
+                    + "+excluded." + Downloads.Impl.COLUMN_TOTAL_BYTES + ", "
+                    + Downloads.Impl.COLUMN_CURRENT_BYTES + "="
+                    + Downloads.Impl.COLUMN_CURRENT_BYTES + "+excluded."
+                    + Downloads.Impl.COLUMN_CURRENT_BYTES + ", "
+                    + Constants.TOTALS_REMAINING_BYTES + "=" + Constants.TOTALS_REMAINING_BYTES
+                    + "+excluded." + Constants.TOTALS_REMAINING_BYTES + ";";
+            final String remove = "UPDATE " + DB_TOTALS_TABLE + " SET "
+                    + Constants.TOTALS_COUNT + "=" + Constants.TOTALS_COUNT + "-1, "
+                    + Downloads.Impl.COLUMN_TOTAL_BYTES + "=" + Downloads.Impl.COLUMN_TOTAL_BYTES
+                    + "-" + totalBytes("OLD.") + ", "
+                    + Downloads.Impl.COLUMN_CURRENT_BYTES + "="
+                    + Downloads.Impl.COLUMN_CURRENT_BYTES + "-" + currentBytes("OLD.") + ", "
+                    + Constants.TOTALS_REMAINING_BYTES + "=" + Constants.TOTALS_REMAINING_BYTES
+                    + "-" + remainingBytes("OLD.")
+                    + " WHERE OLD." + Downloads.Impl.COLUMN_DELETED + "=0 AND ("
+                    + Constants.UID + ", " + COLUMN_OTHER_UID + ", "
+                    + Downloads.Impl.COLUMN_STATUS + ", " + Downloads.Impl.COLUMN_VISIBILITY
+                    + ")=(" + totalsKey("OLD.") + ");";
+
+            db.execSQL("DROP TRIGGER IF EXISTS " + table + "_totals_insert");
+            db.execSQL("CREATE TRIGGER " + table + "_totals_insert AFTER INSERT ON " + table
+                    + " BEGIN " + add + " END");
+            db.execSQL("DROP TRIGGER IF EXISTS " + table + "_totals_update");
+            db.execSQL("CREATE TRIGGER " + table + "_totals_update AFTER UPDATE OF "
+                    + Constants.UID + ", " + COLUMN_OTHER_UID + ", "
+                    + Downloads.Impl.COLUMN_STATUS + ", "
+                    + Downloads.Impl.COLUMN_VISIBILITY + ", " + Downloads.Impl.COLUMN_DELETED
+                    + ", " + Downloads.Impl.COLUMN_TOTAL_BYTES + ", "
+                    + Downloads.Impl.COLUMN_CURRENT_BYTES + " ON " + table
+                    + " BEGIN " + remove + add + " END");
+            db.execSQL("DROP TRIGGER IF EXISTS " + table + "_totals_delete");
+            db.execSQL("CREATE TRIGGER " + table + "_totals_delete AFTER DELETE ON " + table
+                    + " BEGIN " + remove + " END");
+        }
+
+        /** Key of {@link #DB_TOTALS_TABLE} for a row, like "NEW." or "" for the table */
+        private String totalsKey(String row) {
+            return "IFNULL(" + row + Constants.UID + ", -1), IFNULL(" + row
+                    + COLUMN_OTHER_UID + ", -1), IFNULL(" + row
+                    + Downloads.Impl.COLUMN_STATUS + ", -1), IFNULL(" + row
+                    + Downloads.Impl.COLUMN_VISIBILITY + ", -1)";
+        }
+
+        /** Expected size of a row, counting unknown sizes as 0 */
+        private String totalBytes(String row) {
+            return "MAX(IFNULL(" + row + Downloads.Impl.COLUMN_TOTAL_BYTES + ", 0), 0)";
+        }
+
+        private String currentBytes(String row) {
+            return "IFNULL(" + row + Downloads.Impl.COLUMN_CURRENT_BYTES + ", 0)";
+        }
+
+        /** Bytes left to transfer for a row, when its size is known */
+        private String remainingBytes(String row) {
+            return "MAX(" + totalBytes(row) + "-" + currentBytes(row) + ", 0)";
+        }
+
+        /**
+         * Sets up {@link #DB_SEARCH_TABLE}, an FTS index of the title,
+         * description and file name of every download keyed by download id,
+         * kept in step with both the downloads and archive tables. Words are
+         * split and case folded by unicode61, since the default tokenizer only
+         * folds ASCII and would miss most non-English titles.
+         */
+        private void createSearchIndex(SQLiteDatabase db) {
+            db.execSQL("DROP TABLE IF EXISTS " + DB_SEARCH_TABLE);
+            db.execSQL("CREATE VIRTUAL TABLE " + DB_SEARCH_TABLE + " USING fts4("
+                    + Downloads.Impl.COLUMN_TITLE + ", " + Downloads.Impl.COLUMN_DESCRIPTION
+                    + ", " + OpenableColumns.DISPLAY_NAME + ", tokenize=unicode61)");
+            db.execSQL("INSERT INTO " + DB_SEARCH_TABLE + "(docid, "
+                    + Downloads.Impl.COLUMN_TITLE + ", " + Downloads.Impl.COLUMN_DESCRIPTION
+                    + ", " + OpenableColumns.DISPLAY_NAME + ") SELECT " + searchValues("")
+                    + " FROM " + DB_VIEW);
+
+            createSearchTriggers(db, DB_TABLE, DB_ARCHIVE_TABLE);
+            createSearchTriggers(db, DB_ARCHIVE_TABLE, DB_TABLE);
+        }
+
+        /**
+         * Index rows written to {@code table}. Rows moving between it and
+         * {@code otherTable} are inserted into one before being deleted from
+         * the other, so they replace their own entry and only lose it once
+         * they're gone from both.
+         */
+        private void createSearchTriggers(SQLiteDatabase db, String table, String otherTable) {
+            final String add = "INSERT OR REPLACE INTO " + DB_SEARCH_TABLE + "(docid, "
+                    + Downloads.Impl.COLUMN_TITLE + ", " + Downloads.Impl.COLUMN_DESCRIPTION
+                    + ", " + OpenableColumns.DISPLAY_NAME + ") VALUES (" + searchValues("NEW.")
+                    + ");";
+            db.execSQL("DROP TRIGGER IF EXISTS " + table + "_search_insert");
+            db.execSQL("CREATE TRIGGER " + table + "_search_insert AFTER INSERT ON " + table
+                    + " BEGIN " + add + " END");
+            db.execSQL("DROP TRIGGER IF EXISTS " + table + "_search_update");
+            db.execSQL("CREATE TRIGGER " + table + "_search_update AFTER UPDATE OF "
+                    + Downloads.Impl.COLUMN_TITLE + ", " + Downloads.Impl.COLUMN_DESCRIPTION
+                    + ", " + Downloads.Impl._DATA + " ON " + table + " BEGIN " + add + " END");
+            db.execSQL("DROP TRIGGER IF EXISTS " + table + "_search_delete");
+            db.execSQL("CREATE TRIGGER " + table + "_search_delete AFTER DELETE ON " + table
+                    + " WHEN NOT EXISTS (SELECT 1 FROM " + otherTable + " WHERE " + _ID
+                    + "=OLD." + _ID + ") BEGIN DELETE FROM " + DB_SEARCH_TABLE
+                    + " WHERE docid=OLD." + _ID + "; END");
+        }
+
+        /** Id, title, description and file name of a row, like "NEW." or "" */
+        private String searchValues(String row) {
+            final String data = row + Downloads.Impl._DATA;
+            // SQLite has no basename(); strip everything up to the last '/'
+            return row + _ID + ", " + row + Downloads.Impl.COLUMN_TITLE + ", "
+                    + row + Downloads.Impl.COLUMN_DESCRIPTION + ", REPLACE(" + data + ", RTRIM("
+                    + data + ", REPLACE(" + data + ", '/', '')), '')";
+        }
+
+        /**
+         * Indexes the order that keyset-paginated queries walk, so each page
+         * seeks straight to its first row on both halves of the view.
+         */
+        private void createSeekIndexes(SQLiteDatabase db) {
+            final String columns = "(" + Downloads.Impl.COLUMN_LAST_MODIFICATION + ", " + _ID
+                    + ")";
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE + "_seek ON " + DB_TABLE
+                    + columns);
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_ARCHIVE_TABLE + "_seek ON "
+                    + DB_ARCHIVE_TABLE + columns);
+        }
+
+        /**
+         * Indexes the lookup of the other downloads in a group, which runs
+         * every time one of them finishes.
+         */
+        private void createGroupIndexes(SQLiteDatabase db) {
+            final String columns = "(" + Constants.UID + ", " + Constants.GROUP_ID + ")";
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_TABLE + "_group ON " + DB_TABLE
+                    + columns);
+            db.execSQL("CREATE INDEX IF NOT EXISTS " + DB_ARCHIVE_TABLE + "_group ON "
+                    + DB_ARCHIVE_TABLE + columns);
+        }
+
+        /**
+         * Creates {@link #DB_GROUP_BROADCASTS_TABLE}. A group gets a row once
+         * its completion broadcast is sent, so members finishing at the same
+         * time, or reporting again after a restart of the process, don't each
+         * send one. The row is dropped when a member is added or restarted,
+         * and once the group has no downloads left.
+         */
+        private void createGroupBroadcasts(SQLiteDatabase db) {
+            db.execSQL("DROP TABLE IF EXISTS " + DB_GROUP_BROADCASTS_TABLE);
+            db.execSQL("CREATE TABLE " + DB_GROUP_BROADCASTS_TABLE + "("
+                    + Constants.UID + " INTEGER NOT NULL,"
+                    + Constants.GROUP_ID + " TEXT NOT NULL,"
+                    + "PRIMARY KEY (" + Constants.UID + ", " + Constants.GROUP_ID + "));");
+        }
+
+        /**
+         * (Re)creates the view that reads see all downloads through, hot and
+         * archived alike. Must be called again whenever columns are added.
+         */
+        private void createDownloadsView(SQLiteDatabase db) {
+            db.execSQL("DROP VIEW IF EXISTS " + DB_VIEW);
+            db.execSQL("CREATE VIEW " + DB_VIEW + " AS SELECT * FROM " + DB_TABLE
+                    + " UNION ALL SELECT * FROM " + DB_ARCHIVE_TABLE);
+        }
+
         /**
          * Add a column to a table using ALTER TABLE.
          * @param dbTable name of the table
@@ -590,27 +1032,123 @@ public final class DownloadProvider extends ContentProvider {
 
         mStorageManager = getContext().getSystemService(StorageManager.class);
         mAppOpsManager = getContext().getSystemService(AppOpsManager.class);
+        mDeleteQueue = new DownloadDeleteQueue(getContext());
+        mMediaRegistrar = new DownloadMediaRegistrar(getContext(),
+                this::writeRegisteredMediaStoreUris);
+        mChangeDispatcher = new DownloadChangeDispatcher(getContext().getContentResolver(),
+                Helpers.getAsyncHandler(), BASE_URIS);
 
         // Grant access permissions for all known downloads to the owning apps.
+        // This touches every row and PackageManager, so keep it off the
+        // startup path; the owning apps can always reach their downloads
+        // through my_downloads in the meantime.
+        Helpers.getAsyncHandler().post(this::grantAllDownloadsPermissions);
+        // Pick up registrations that were still queued when we last went away
+        Helpers.getAsyncHandler().post(this::resumeMediaRegistration);
+        return true;
+    }
+
+    @Override
+    public void shutdown() {
+        mOpenHelper.close();
+    }
+
+    /**
+     * Grant access permissions for all known downloads to the owning apps,
+     * resolving the package of each distinct UID only once.
+     */
+    @VisibleForTesting
+    void grantAllDownloadsPermissions() {
+        final SparseArray<String> knownUids = new SparseArray<>();
         final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
-        try (Cursor cursor = db.query(DB_TABLE,
+        try (Cursor cursor = db.query(DB_VIEW,
                 new String[] { _ID, Constants.UID }, null, null, null, null, null)) {
             while (cursor.moveToNext()) {
                 final long id = cursor.getLong(0);
                 final int uid = cursor.getInt(1);
-                final String[] packageNames = getContext().getPackageManager()
-                        .getPackagesForUid(uid);
+
+                final String packageName;
+                final int index = knownUids.indexOfKey(uid);
+                if (index >= 0) {
+                    packageName = knownUids.valueAt(index);
+                } else {
+                    // We only need to grant to the first package, since the
+                    // platform internally tracks based on UIDs.
+                    packageName = Helpers.getPackageForUid(getContext(), uid);
+                    knownUids.put(uid, packageName);
+                }
                 // Potentially stale download, will be deleted after MEDIA_MOUNTED broadcast
                 // is received.
-                if (ArrayUtils.isEmpty(packageNames)) {
+                if (packageName == null) {
                     continue;
                 }
-                // We only need to grant to the first package, since the
-                // platform internally tracks based on UIDs.
-                grantAllDownloadsPermission(packageNames[0], id);
+                grantAllDownloadsPermission(packageName, id);
             }
         }
-        return true;
+    }
+
+    /**
+     * Queue every addCompletedDownload() row that should be visible in
+     * MediaStore but hasn't been registered yet.
+     */
+    private void resumeMediaRegistration() {
+        final String selection = COLUMN_DESTINATION + "=" + DESTINATION_NON_DOWNLOADMANAGER_DOWNLOAD
+                + " AND " + Downloads.Impl._DATA + " IS NOT NULL"
+                + " AND " + COLUMN_MEDIASTORE_URI + " IS NULL"
+                + " AND (" + COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI + "=1"
+                + " OR " + COLUMN_MEDIA_SCANNED + "=" + MEDIA_NOT_SCANNED + ")";
+        final ArrayList<DownloadMediaRegistrar.Entry> entries = new ArrayList<>();
+        final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        try (Cursor cursor = db.query(DB_TABLE, new String[] {
+                _ID, Downloads.Impl._DATA, Downloads.Impl.COLUMN_URI,
+                Downloads.Impl.COLUMN_REFERER, Constants.UID }, selection, null,
+                null, null, null)) {
+            while (cursor.moveToNext()) {
+                entries.add(new DownloadMediaRegistrar.Entry(cursor.getLong(0),
+                        cursor.getString(1), cursor.getString(2), cursor.getString(3),
+                        cursor.getInt(4)));
+            }
+        }
+        mMediaRegistrar.enqueue(entries);
+    }
+
+    /**
+     * Store the MediaStore uris found by {@link #mMediaRegistrar}, returning
+     * the entries whose downloads were deleted in the meantime.
+     */
+    private List<DownloadMediaRegistrar.Entry> writeRegisteredMediaStoreUris(
+            List<DownloadMediaRegistrar.Entry> entries) {
+        final ArrayList<DownloadMediaRegistrar.Entry> missing = new ArrayList<>();
+        final ArrayList<Long> updatedIds = new ArrayList<>();
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (DownloadMediaRegistrar.Entry entry : entries) {
+                if (entry.mMediaStoreUri == null) {
+                    continue;
+                }
+                final ContentValues values = new ContentValues();
+                values.put(COLUMN_MEDIASTORE_URI, entry.mMediaStoreUri.toString());
+                values.put(Downloads.Impl.COLUMN_MEDIAPROVIDER_URI,
+                        entry.mMediaStoreUri.toString());
+                values.put(COLUMN_MEDIA_SCANNED, MEDIA_SCANNED);
+                final String[] whereArgs = new String[] { Long.toString(entry.mId) };
+                if (db.update(DB_TABLE, values, _ID + "=?", whereArgs) == 0
+                        && db.update(DB_ARCHIVE_TABLE, values, _ID + "=?", whereArgs) == 0) {
+                    missing.add(entry);
+                } else {
+                    updatedIds.add(entry.mId);
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+
+        for (int i = 0; i < updatedIds.size(); i++) {
+            mChangeDispatcher.notifyChanged(updatedIds.get(i), ContentResolver.NOTIFY_UPDATE);
+        }
+        return missing;
     }
 
     /**
@@ -631,7 +1169,7 @@ public final class DownloadProvider extends ContentProvider {
                 final String id = getDownloadIdFromUri(uri);
                 final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
                 final String mimeType = DatabaseUtils.stringForQuery(db,
-                        "SELECT " + Downloads.Impl.COLUMN_MIME_TYPE + " FROM " + DB_TABLE +
+                        "SELECT " + Downloads.Impl.COLUMN_MIME_TYPE + " FROM " + DB_VIEW +
                         " WHERE " + Downloads.Impl._ID + " = ?",
                         new String[]{id});
                 if (TextUtils.isEmpty(mimeType)) {
@@ -701,16 +1239,331 @@ public final class DownloadProvider extends ContentProvider {
                 DownloadStorageProvider.revokeAllMediaStoreUriPermissions(getContext());
                 return null;
             }
+            case Constants.CALL_GET_CHANGES: {
+                final Uri uri = (arg != null) ? Uri.parse(arg) : Downloads.Impl.CONTENT_URI;
+                return getChanges(uri, (extras != null) ? extras : Bundle.EMPTY);
+            }
+            case Constants.CALL_GET_STATS: {
+                getContext().enforceCallingOrSelfPermission(android.Manifest.permission.DUMP,
+                        Constants.TAG);
+                return mStats.toBundle();
+            }
+            case Constants.CALL_GET_TOTALS: {
+                final Uri uri = (arg != null) ? Uri.parse(arg) : Downloads.Impl.CONTENT_URI;
+                return getTotals(uri);
+            }
+            case Constants.CALL_GET_PROGRESS: {
+                final Uri uri = (arg != null) ? Uri.parse(arg) : Downloads.Impl.CONTENT_URI;
+                return getProgress(uri, (extras != null) ? extras : Bundle.EMPTY);
+            }
+            case Constants.CALL_AWAIT_MEDIA_REGISTRATION: {
+                if (arg == null) {
+                    throw new IllegalArgumentException("Missing download uri");
+                }
+                return awaitMediaRegistration(Uri.parse(arg),
+                        (extras != null) ? extras : Bundle.EMPTY);
+            }
             default:
                 throw new UnsupportedOperationException("Unsupported call: " + method);
         }
     }
 
+    /**
+     * Returns the download totals visible through {@code uri}, limited the
+     * same way {@link #getQueryBuilder} limits queries of that uri.
+     */
+    private Bundle getTotals(Uri uri) {
+        final int match = sURIMatcher.match(uri);
+        String selection = Constants.TOTALS_COUNT + ">0";
+        String[] selectionArgs = null;
+        if (match == ALL_DOWNLOADS) {
+            getContext().enforceCallingOrSelfPermission(PERMISSION_ACCESS_ALL, Constants.TAG);
+        } else if (match == MY_DOWNLOADS) {
+            if (getContext().checkCallingOrSelfPermission(
+                    PERMISSION_ACCESS_ALL) != PackageManager.PERMISSION_GRANTED) {
+                final String callingUid = Integer.toString(Binder.getCallingUid());
+                selection += " AND (" + Constants.UID + "=? OR " + COLUMN_OTHER_UID + "=?)";
+                selectionArgs = new String[] { callingUid, callingUid };
+            }
+        } else {
+            throw new IllegalArgumentException("Totals are only available for "
+                    + Downloads.Impl.CONTENT_URI + " or "
+                    + Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI);
+        }
+
+        final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        final ArrayList<ContentValues> totals = new ArrayList<>();
+        long activeCount = 0;
+        long remainingBytes = 0;
+        try (Cursor cursor = db.query(DB_TOTALS_TABLE, null, selection, selectionArgs,
+                null, null, null)) {
+            while (cursor.moveToNext()) {
+                final ContentValues values = new ContentValues();
+                DatabaseUtils.cursorRowToContentValues(cursor, values);
+                totals.add(values);
+                if (!Downloads.Impl.isStatusCompleted(
+                        values.getAsInteger(Downloads.Impl.COLUMN_STATUS))) {
+                    activeCount += values.getAsLong(Constants.TOTALS_COUNT);
+                    remainingBytes += values.getAsLong(Constants.TOTALS_REMAINING_BYTES);
+                }
+            }
+        }
+
+        final Bundle result = new Bundle();
+        result.putParcelableArray(Constants.EXTRA_TOTALS,
+                totals.toArray(new ContentValues[totals.size()]));
+        result.putLong(Constants.EXTRA_ACTIVE_COUNT, activeCount);
+        result.putLong(Constants.EXTRA_REMAINING_BYTES, remainingBytes);
+        return result;
+    }
+
+    /**
+     * Waits for the MediaStore registration of the single download at
+     * {@code uri} to finish, then returns its MediaStore uri, if any.
+     */
+    private Bundle awaitMediaRegistration(Uri uri, Bundle extras) {
+        final int match = sURIMatcher.match(uri);
+        if (match == ALL_DOWNLOADS_ID) {
+            getContext().enforceCallingOrSelfPermission(PERMISSION_ACCESS_ALL, Constants.TAG);
+        } else if (match != MY_DOWNLOADS_ID) {
+            throw new IllegalArgumentException("Registration can only be awaited for a"
+                    + " single download: " + uri);
+        }
+
+        // Only wait on downloads the caller can see
+        final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        final SQLiteQueryBuilder qb = getReadQueryBuilder(uri, match);
+        try (Cursor cursor = qb.query(db, new String[] { _ID }, null, null,
+                null, null, null)) {
+            if (!cursor.moveToFirst()) {
+                throw new IllegalArgumentException("Unknown download: " + uri);
+            }
+        }
+
+        final long timeoutMillis = Math.min(extras.getLong(Constants.EXTRA_TIMEOUT_MILLIS,
+                DEFAULT_REGISTRATION_TIMEOUT_MS), MAX_REGISTRATION_TIMEOUT_MS);
+        boolean registered;
+        try {
+            registered = mMediaRegistrar.awaitRegistered(
+                    Long.parseLong(getDownloadIdFromUri(uri)), timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            registered = false;
+        }
+
+        final Bundle result = new Bundle();
+        result.putBoolean(Constants.EXTRA_REGISTERED, registered);
+        try (Cursor cursor = qb.query(db, new String[] { COLUMN_MEDIASTORE_URI }, null, null,
+                null, null, null)) {
+            if (cursor.moveToFirst()) {
+                result.putString(Constants.EXTRA_MEDIASTORE_URI, cursor.getString(0));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns status and progress of the downloads visible through
+     * {@code uri} packed into primitive arrays, optionally limited to the ids
+     * in {@link Constants#EXTRA_IDS}.
+     */
+    private Bundle getProgress(Uri uri, Bundle extras) {
+        final int match = sURIMatcher.match(uri);
+        if (match == ALL_DOWNLOADS) {
+            getContext().enforceCallingOrSelfPermission(PERMISSION_ACCESS_ALL, Constants.TAG);
+        } else if (match != MY_DOWNLOADS) {
+            throw new IllegalArgumentException("Progress is only available for "
+                    + Downloads.Impl.CONTENT_URI + " or "
+                    + Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI);
+        }
+
+        String selection = null;
+        final long[] filterIds = extras.getLongArray(Constants.EXTRA_IDS);
+        if (filterIds != null) {
+            final ArrayList<Long> ids = new ArrayList<>(filterIds.length);
+            for (long id : filterIds) {
+                ids.add(id);
+            }
+            selection = ids.isEmpty() ? "0" : Helpers.buildQueryWithIds(ids);
+        }
+
+        final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        final SQLiteQueryBuilder qb = getReadQueryBuilder(uri, match);
+        try (Cursor cursor = qb.query(db, new String[] {
+                _ID, Downloads.Impl.COLUMN_STATUS, Downloads.Impl.COLUMN_CURRENT_BYTES,
+                Downloads.Impl.COLUMN_TOTAL_BYTES }, selection, null, null, null, null)) {
+            final int count = cursor.getCount();
+            final long[] ids = new long[count];
+            final int[] statuses = new int[count];
+            final long[] currentBytes = new long[count];
+            final long[] totalBytes = new long[count];
+            final long[] speeds = new long[count];
+            final DownloadNotifier notifier = Helpers.getDownloadNotifier(getContext());
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+                statuses[i] = cursor.getInt(1);
+                currentBytes[i] = cursor.getLong(2);
+                totalBytes[i] = cursor.getLong(3);
+                speeds[i] = notifier.getDownloadSpeed(ids[i]);
+            }
+
+            final Bundle result = new Bundle();
+            result.putLongArray(Constants.EXTRA_IDS, ids);
+            result.putIntArray(Constants.EXTRA_STATUSES, statuses);
+            result.putLongArray(Constants.EXTRA_CURRENT_BYTES, currentBytes);
+            result.putLongArray(Constants.EXTRA_TOTAL_BYTES, totalBytes);
+            result.putLongArray(Constants.EXTRA_SPEEDS, speeds);
+            return result;
+        }
+    }
+
+    /**
+     * Returns the downloads visible through {@code uri} that were written
+     * after the sequence given in {@link Constants#EXTRA_SINCE_SEQ}, along with
+     * the ids of any that were deleted, so observers can apply incremental
+     * updates instead of re-querying everything.
+     */
+    private Bundle getChanges(Uri uri, Bundle extras) {
+        final int match = sURIMatcher.match(uri);
+        if (match == ALL_DOWNLOADS) {
+            // call() isn't covered by the <path-permission> on all_downloads
+            getContext().enforceCallingOrSelfPermission(PERMISSION_ACCESS_ALL, Constants.TAG);
+        } else if (match != MY_DOWNLOADS) {
+            throw new IllegalArgumentException("Changes are only available for "
+                    + Downloads.Impl.CONTENT_URI + " or "
+                    + Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI);
+        }
+
+        final long sinceSeq = extras.getLong(Constants.EXTRA_SINCE_SEQ);
+        final int limit = extras.getInt(Constants.EXTRA_LIMIT, DEFAULT_CHANGES_LIMIT);
+        if (limit <= 0) {
+            throw new IllegalArgumentException("Invalid limit: " + limit);
+        }
+        String[] projection = extras.getStringArray(Constants.EXTRA_PROJECTION);
+        if (projection != null && !ArrayUtils.contains(projection, Constants.CHANGE_SEQ)) {
+            projection = ArrayUtils.appendElement(String.class, projection, Constants.CHANGE_SEQ);
+        }
+
+        final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        final Bundle result = new Bundle();
+        db.beginTransactionNonExclusive();
+        try {
+            final long currentSeq;
+            final long horizon;
+            try (Cursor cursor = db.query(DB_CHANGES_TABLE, new String[] { "seq", "horizon" },
+                    null, null, null, null, null)) {
+                cursor.moveToFirst();
+                currentSeq = cursor.getLong(0);
+                horizon = cursor.getLong(1);
+            }
+            if (sinceSeq < horizon) {
+                result.putBoolean(Constants.EXTRA_RESYNC_REQUIRED, true);
+                result.putLong(Constants.EXTRA_NEXT_SEQ, currentSeq);
+                db.setTransactionSuccessful();
+                return result;
+            }
+
+            final ArrayList<ContentValues> rows = new ArrayList<>();
+            long nextSeq = currentSeq;
+            boolean hasMore = false;
+            final SQLiteQueryBuilder qb = getReadQueryBuilder(uri, match);
+            try (Cursor cursor = qb.query(db, projection, Constants.CHANGE_SEQ + ">?",
+                    new String[] { Long.toString(sinceSeq) }, null, null,
+                    Constants.CHANGE_SEQ + " ASC", Integer.toString(limit))) {
+                final int seqIndex = cursor.getColumnIndexOrThrow(Constants.CHANGE_SEQ);
+                while (cursor.moveToNext()) {
+                    final ContentValues values = new ContentValues();
+                    DatabaseUtils.cursorRowToContentValues(cursor, values);
+                    rows.add(values);
+                    if (rows.size() == limit) {
+                        nextSeq = cursor.getLong(seqIndex);
+                        hasMore = nextSeq < currentSeq;
+                    }
+                }
+            }
+
+            String tombstoneWhere = Constants.CHANGE_SEQ + ">? AND "
+                    + Constants.CHANGE_SEQ + "<=?";
+            String[] tombstoneArgs = { Long.toString(sinceSeq), Long.toString(nextSeq) };
+            if (match == MY_DOWNLOADS && getContext().checkCallingOrSelfPermission(
+                    PERMISSION_ACCESS_ALL) != PackageManager.PERMISSION_GRANTED) {
+                final String callingUid = Integer.toString(Binder.getCallingUid());
+                tombstoneWhere += " AND (" + Constants.UID + "=? OR " + COLUMN_OTHER_UID + "=?)";
+                tombstoneArgs = ArrayUtils.concat(String.class, tombstoneArgs,
+                        new String[] { callingUid, callingUid });
+            }
+            final ArrayList<Long> deletedIds = new ArrayList<>();
+            try (Cursor cursor = db.query(DB_TOMBSTONES_TABLE, new String[] { _ID },
+                    tombstoneWhere, tombstoneArgs, null, null, Constants.CHANGE_SEQ + " ASC")) {
+                while (cursor.moveToNext()) {
+                    deletedIds.add(cursor.getLong(0));
+                }
+            }
+            db.setTransactionSuccessful();
+
+            result.putParcelableArray(Constants.EXTRA_CHANGED_ROWS,
+                    rows.toArray(new ContentValues[rows.size()]));
+            final long[] deleted = new long[deletedIds.size()];
+            for (int i = 0; i < deleted.length; i++) {
+                deleted[i] = deletedIds.get(i);
+            }
+            result.putLongArray(Constants.EXTRA_DELETED_IDS, deleted);
+            result.putLong(Constants.EXTRA_NEXT_SEQ, nextSeq);
+            result.putBoolean(Constants.EXTRA_HAS_MORE, hasMore);
+            return result;
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Forget the oldest deletions once there are more than {@link #MAX_TOMBSTONES},
+     * moving the change feed horizon past them.
+     */
+    private static void pruneTombstones(SQLiteDatabase db) {
+        final long cutoff;
+        try (Cursor cursor = db.query(DB_TOMBSTONES_TABLE,
+                new String[] { Constants.CHANGE_SEQ }, null, null, null, null,
+                Constants.CHANGE_SEQ + " DESC", MAX_TOMBSTONES + ",1")) {
+            if (!cursor.moveToFirst()) {
+                return;
+            }
+            cutoff = cursor.getLong(0);
+        }
+        db.delete(DB_TOMBSTONES_TABLE, Constants.CHANGE_SEQ + "<=?",
+                new String[] { Long.toString(cutoff) });
+        db.execSQL("UPDATE " + DB_CHANGES_TABLE + " SET horizon=MAX(horizon,?)",
+                new Object[] { cutoff });
+    }
+
+    /**
+     * Forget the broadcasts of groups that no longer have any downloads.
+     */
+    private static void pruneGroupBroadcasts(SQLiteDatabase db) {
+        final String sameGroup = " WHERE " + Constants.UID + "=" + DB_GROUP_BROADCASTS_TABLE
+                + "." + Constants.UID + " AND " + Constants.GROUP_ID + "="
+                + DB_GROUP_BROADCASTS_TABLE + "." + Constants.GROUP_ID + ")";
+        db.delete(DB_GROUP_BROADCASTS_TABLE, "NOT EXISTS (SELECT 1 FROM " + DB_TABLE + sameGroup
+                + " AND NOT EXISTS (SELECT 1 FROM " + DB_ARCHIVE_TABLE + sameGroup, null);
+    }
+
     /**
      * Inserts a row in the database
      */
     @Override
     public Uri insert(final Uri uri, final ContentValues values) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        Uri result = null;
+        try {
+            result = insertInternal(uri, values);
+            return result;
+        } finally {
+            mStats.record(DownloadProviderStats.OP_INSERT, sURIMatcher.match(uri), start,
+                    (result != null) ? 1 : 0);
+        }
+    }
+
+    private Uri insertInternal(final Uri uri, final ContentValues values) {
         checkInsertPermissions(values);
         SQLiteDatabase db = mOpenHelper.getWritableDatabase();
 
@@ -749,7 +1602,7 @@ public final class DownloadProvider extends ContentProvider {
             if (dest == Downloads.Impl.DESTINATION_FILE_URI) {
                 checkFileUriDestination(values);
             } else if (dest == DESTINATION_NON_DOWNLOADMANAGER_DOWNLOAD) {
-                checkDownloadedFilePath(values);
+                checkDownloadedFilePath(values, match);
             } else if (dest == Downloads.Impl.DESTINATION_EXTERNAL) {
                 getContext().enforceCallingOrSelfPermission(
                         android.Manifest.permission.WRITE_EXTERNAL_STORAGE,
@@ -855,6 +1708,9 @@ public final class DownloadProvider extends ContentProvider {
         // is_visible_in_downloads_ui column
         copyBoolean(COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI, values, filteredValues);
 
+        copyPriority(values, filteredValues);
+        copyGroup(values, filteredValues);
+
         // public api requests and networktypes/roaming columns
         if (isPublicApi) {
             copyInteger(Downloads.Impl.COLUMN_ALLOWED_NETWORK_TYPES, values, filteredValues);
@@ -867,38 +1723,14 @@ public final class DownloadProvider extends ContentProvider {
         filteredValues.put(COLUMN_MEDIA_SCANNED,
                 mediaScanned == null ? MEDIA_NOT_SCANNED : mediaScanned);
 
+        // Registering with MediaStore means a full scan of the file, so it's
+        // left to mMediaRegistrar rather than holding up the caller
         final boolean shouldBeVisibleToUser
                 = filteredValues.getAsBoolean(COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI)
                         || filteredValues.getAsInteger(COLUMN_MEDIA_SCANNED) == MEDIA_NOT_SCANNED;
-        if (shouldBeVisibleToUser && filteredValues.getAsInteger(COLUMN_DESTINATION)
-                == DESTINATION_NON_DOWNLOADMANAGER_DOWNLOAD) {
-            final CallingIdentity token = clearCallingIdentity();
-            try {
-                final Uri mediaStoreUri = MediaStore.scanFile(getContext().getContentResolver(),
-                        new File(filteredValues.getAsString(Downloads.Impl._DATA)));
-                if (mediaStoreUri != null) {
-                    final ContentValues mediaValues = new ContentValues();
-                    mediaValues.put(MediaStore.Downloads.DOWNLOAD_URI,
-                            filteredValues.getAsString(Downloads.Impl.COLUMN_URI));
-                    mediaValues.put(MediaStore.Downloads.REFERER_URI,
-                            filteredValues.getAsString(Downloads.Impl.COLUMN_REFERER));
-                    mediaValues.put(MediaStore.Downloads.OWNER_PACKAGE_NAME,
-                            Helpers.getPackageForUid(getContext(),
-                                    filteredValues.getAsInteger(Constants.UID)));
-                    getContext().getContentResolver().update(
-                            convertToMediaStoreDownloadsUri(mediaStoreUri),
-                            mediaValues, null, null);
-
-                    filteredValues.put(Downloads.Impl.COLUMN_MEDIASTORE_URI,
-                            mediaStoreUri.toString());
-                    filteredValues.put(Downloads.Impl.COLUMN_MEDIAPROVIDER_URI,
-                            mediaStoreUri.toString());
-                    filteredValues.put(COLUMN_MEDIA_SCANNED, MEDIA_SCANNED);
-                }
-            } finally {
-                restoreCallingIdentity(token);
-            }
-        }
+        final boolean needsMediaRegistration = shouldBeVisibleToUser
+                && filteredValues.getAsInteger(COLUMN_DESTINATION)
+                        == DESTINATION_NON_DOWNLOADMANAGER_DOWNLOAD;
 
         if (Constants.LOGVV) {
             Log.v(Constants.TAG, "initiating download with UID "
@@ -917,6 +1749,19 @@ public final class DownloadProvider extends ContentProvider {
 
         insertRequestHeaders(db, rowID, values);
 
+        final String groupId = filteredValues.getAsString(Constants.GROUP_ID);
+        if (groupId != null) {
+            forgetGroupBroadcast(db, filteredValues.getAsInteger(Constants.UID), groupId);
+        }
+
+        if (needsMediaRegistration) {
+            mMediaRegistrar.enqueue(Arrays.asList(new DownloadMediaRegistrar.Entry(rowID,
+                    filteredValues.getAsString(Downloads.Impl._DATA),
+                    filteredValues.getAsString(Downloads.Impl.COLUMN_URI),
+                    filteredValues.getAsString(Downloads.Impl.COLUMN_REFERER),
+                    filteredValues.getAsInteger(Constants.UID))));
+        }
+
         final String callingPackage = Helpers.getPackageForUid(getContext(),
                 Binder.getCallingUid());
         if (callingPackage == null) {
@@ -924,7 +1769,7 @@ public final class DownloadProvider extends ContentProvider {
             return null;
         }
         grantAllDownloadsPermission(callingPackage, rowID);
-        notifyContentChanged(uri, match);
+        notifyContentChanged(uri, match, ContentResolver.NOTIFY_INSERT);
 
         final long token = Binder.clearCallingIdentity();
         try {
@@ -990,6 +1835,196 @@ public final class DownloadProvider extends ContentProvider {
         return null;
     }
 
+    /**
+     * Brings MediaProvider in line with a single download, returning the
+     * MediaStore uri that should be recorded for it.
+     */
+    private Uri reconcileMediaProvider(ContentProviderClient mediaProvider, DownloadInfo info) {
+        if (!Downloads.Impl.isStatusCompleted(info.mStatus)) {
+            // Don't insert/update MediaStore db until the download is complete.
+            // Incomplete files can only be inserted to MediaStore by setting
+            // IS_PENDING=1 and using RELATIVE_PATH and DISPLAY_NAME in
+            // MediaProvider#insert operation. We use DATA column, IS_PENDING
+            // with DATA column will not be respected by MediaProvider.
+            return null;
+        }
+        final ContentValues mediaValues = convertToMediaProviderValues(info);
+        // Set size to 0 to ensure MediaScanner will scan this file.
+        mediaValues.put(MediaStore.Downloads.SIZE, 0);
+        updateMediaProvider(mediaProvider, mediaValues);
+        return triggerMediaScan(mediaProvider, new File(info.mFileName));
+    }
+
+    /**
+     * Batched version of {@link #reconcileMediaProvider(ContentProviderClient, DownloadInfo)}
+     * for updates touching many rows. Existing MediaStore entries are looked up
+     * with one query per volume, inserts and updates go through
+     * {@link ContentProviderClient#applyBatch}, and the media scans that fill in
+     * the remaining metadata run in the background.
+     *
+     * @return the MediaStore uri for each download, in the same order
+     */
+    private Uri[] reconcileMediaProvider(ContentProviderClient mediaProvider,
+            List<DownloadInfo> infos) {
+        final int size = infos.size();
+        final Uri[] result = new Uri[size];
+        final String[] paths = new String[size];
+        final ContentValues[] mediaValues = new ContentValues[size];
+        final ArrayMap<Uri, ArrayList<String>> pathsByCollection = new ArrayMap<>();
+        for (int i = 0; i < size; i++) {
+            final DownloadInfo info = infos.get(i);
+            if (!Downloads.Impl.isStatusCompleted(info.mStatus)) {
+                continue;
+            }
+            mediaValues[i] = convertToMediaProviderValues(info);
+            mediaValues[i].put(MediaStore.Downloads.SIZE, 0);
+            paths[i] = mediaValues[i].getAsString(MediaStore.DownloadColumns.DATA);
+            final Uri collection = Helpers.getContentUriForPath(getContext(), paths[i]);
+            ArrayList<String> collectionPaths = pathsByCollection.get(collection);
+            if (collectionPaths == null) {
+                collectionPaths = new ArrayList<>();
+                pathsByCollection.put(collection, collectionPaths);
+            }
+            collectionPaths.add(paths[i]);
+        }
+        if (pathsByCollection.isEmpty()) {
+            return result;
+        }
+
+        final ArrayMap<String, Uri> existing = new ArrayMap<>();
+        try {
+            for (int i = 0; i < pathsByCollection.size(); i++) {
+                queryMediaStoreUris(mediaProvider, pathsByCollection.keyAt(i),
+                        pathsByCollection.valueAt(i), existing);
+            }
+
+            final ArrayList<ContentProviderOperation> ops = new ArrayList<>();
+            final ArrayList<Integer> opIndexes = new ArrayList<>();
+            for (int i = 0; i < size; i++) {
+                if (mediaValues[i] == null) {
+                    continue;
+                }
+                final Uri existingUri = existing.get(paths[i]);
+                if (existingUri != null) {
+                    ops.add(ContentProviderOperation.newUpdate(existingUri)
+                            .withValues(mediaValues[i]).build());
+                    result[i] = existingUri;
+                } else {
+                    ops.add(ContentProviderOperation.newInsert(
+                            Helpers.getContentUriForPath(getContext(), paths[i]))
+                            .withValues(mediaValues[i]).build());
+                }
+                opIndexes.add(i);
+            }
+
+            for (int start = 0; start < ops.size(); start += MEDIA_BATCH_SIZE) {
+                final int end = Math.min(start + MEDIA_BATCH_SIZE, ops.size());
+                final ContentProviderResult[] results = mediaProvider.applyBatch(
+                        new ArrayList<>(ops.subList(start, end)));
+                for (int j = 0; j < results.length; j++) {
+                    final int index = opIndexes.get(start + j);
+                    if (results[j].uri != null) {
+                        result[index] = results[j].uri;
+                    } else if (results[j].count == null || results[j].count != 1) {
+                        Log.e(Constants.TAG, "Error updating MediaProvider, uri: "
+                                + result[index] + ", values: " + mediaValues[index]);
+                    }
+                }
+            }
+        } catch (OperationApplicationException | IllegalArgumentException e) {
+            // One bad row fails the whole batch; fall back to reconciling each
+            // download on its own so the rest still make it into MediaStore.
+            Log.w(Constants.TAG, "Batched MediaStore update failed, retrying per row", e);
+            for (int i = 0; i < size; i++) {
+                result[i] = reconcileMediaProvider(mediaProvider, infos.get(i));
+            }
+            return result;
+        } catch (RemoteException e) {
+            // Should not happen
+            return result;
+        }
+
+        final ContentResolver resolver = getContext().getContentResolver();
+        Helpers.getAsyncHandler().post(() -> {
+            for (String path : paths) {
+                if (path != null) {
+                    MediaStore.scanFile(resolver, new File(path));
+                }
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Looks up the MediaStore uris of the given files in one collection,
+     * adding any that exist to {@code out}.
+     */
+    private void queryMediaStoreUris(ContentProviderClient mediaProvider, Uri collection,
+            List<String> paths, Map<String, Uri> out) throws RemoteException {
+        final Uri filesUri = MediaStore.setIncludePending(collection);
+        for (int start = 0; start < paths.size(); start += MEDIA_BATCH_SIZE) {
+            final List<String> chunk = paths.subList(start,
+                    Math.min(start + MEDIA_BATCH_SIZE, paths.size()));
+            final StringBuilder selection = new StringBuilder(
+                    MediaStore.Files.FileColumns.DATA + " IN (");
+            for (int i = 0; i < chunk.size(); i++) {
+                selection.append(i == 0 ? "?" : ",?");
+            }
+            selection.append(')');
+            try (Cursor cursor = mediaProvider.query(filesUri, new String[] {
+                    MediaStore.Files.FileColumns._ID, MediaStore.Files.FileColumns.DATA },
+                    selection.toString(), chunk.toArray(new String[0]), null, null)) {
+                while (cursor.moveToNext()) {
+                    out.put(cursor.getString(1),
+                            ContentUris.withAppendedId(filesUri, cursor.getLong(0)));
+                }
+            }
+        }
+    }
+
+    /**
+     * Records the outcome of MediaStore reconciliation for the downloads
+     * touched by an update, in a single transaction.
+     */
+    private void writeMediaStoreUris(SQLiteDatabase db, SQLiteQueryBuilder qb,
+            List<Long> clearedIds, List<DownloadInfo> infos, Uri[] mediaStoreUris) {
+        final ContentValues updateValues = new ContentValues();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < clearedIds.size(); i++) {
+                updateValues.clear();
+                updateValues.putNull(Downloads.Impl.COLUMN_MEDIASTORE_URI);
+                qb.update(db, updateValues, Downloads.Impl._ID + "=?",
+                        new String[] { Long.toString(clearedIds.get(i)) });
+            }
+            for (int i = 0; i < infos.size(); i++) {
+                final DownloadInfo info = infos.get(i);
+                final Uri mediaStoreUri = mediaStoreUris[i];
+                if (TextUtils.equals(info.mMediaStoreUri,
+                        mediaStoreUri == null ? null : mediaStoreUri.toString())) {
+                    continue;
+                }
+                updateValues.clear();
+                if (mediaStoreUri == null) {
+                    updateValues.putNull(Downloads.Impl.COLUMN_MEDIASTORE_URI);
+                    updateValues.putNull(Downloads.Impl.COLUMN_MEDIAPROVIDER_URI);
+                    updateValues.put(COLUMN_MEDIA_SCANNED, MEDIA_NOT_SCANNED);
+                } else {
+                    updateValues.put(Downloads.Impl.COLUMN_MEDIASTORE_URI,
+                            mediaStoreUri.toString());
+                    updateValues.put(Downloads.Impl.COLUMN_MEDIAPROVIDER_URI,
+                            mediaStoreUri.toString());
+                    updateValues.put(COLUMN_MEDIA_SCANNED, MEDIA_SCANNED);
+                }
+                qb.update(db, updateValues, Downloads.Impl._ID + "=?",
+                        new String[] { Long.toString(info.mId) });
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     ContentValues convertToMediaProviderValues(DownloadInfo info) {
         final String filePath;
         try {
@@ -1091,7 +2126,7 @@ public final class DownloadProvider extends ContentProvider {
                 /* allowDownloadsDirOnly */ false);
     }
 
-    private void checkDownloadedFilePath(ContentValues values) {
+    private void checkDownloadedFilePath(ContentValues values, int match) {
         final String path = values.getAsString(Downloads.Impl._DATA);
         if (path == null || ("/" + path + "/").contains("/../")) {
             throw new IllegalArgumentException("Invalid file path: "
@@ -1120,10 +2155,11 @@ public final class DownloadProvider extends ContentProvider {
                 mAppOpsManager, getCallingAttributionTag(), isLegacyMode,
                 /* allowDownloadsDirOnly */ true);
         // check whether record already exists in MP or getCallingPackage owns this file
-        checkWhetherCallingAppHasAccess(file.getPath(), Binder.getCallingUid());
+        checkWhetherCallingAppHasAccess(file.getPath(), Binder.getCallingUid(), match);
     }
 
-    private void checkWhetherCallingAppHasAccess(String filePath, int uid) {
+    private void checkWhetherCallingAppHasAccess(String filePath, int uid, int match) {
+        final long start = SystemClock.elapsedRealtimeNanos();
         try (ContentProviderClient client = getContext().getContentResolver()
                 .acquireContentProviderClient(MediaStore.AUTHORITY)) {
             if (client == null) {
@@ -1156,6 +2192,8 @@ public final class DownloadProvider extends ContentProvider {
             }
         } catch (RemoteException e) {
             Log.w(Constants.TAG, "Failed to query MediaStore: " + e.getMessage());
+        } finally {
+            mStats.record(DownloadProviderStats.OP_MEDIASTORE, match, start, 1);
         }
     }
 
@@ -1226,6 +2264,9 @@ public final class DownloadProvider extends ContentProvider {
         values.remove(Downloads.Impl.COLUMN_ALLOW_ROAMING);
         values.remove(Downloads.Impl.COLUMN_ALLOW_METERED);
         values.remove(Downloads.Impl.COLUMN_FLAGS);
+        values.remove(Constants.PRIORITY);
+        values.remove(Constants.GROUP_ID);
+        values.remove(Constants.GROUP_FAILURE_POLICY);
         values.remove(Downloads.Impl.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI);
         values.remove(Downloads.Impl.COLUMN_MEDIA_SCANNED);
         values.remove(Downloads.Impl.COLUMN_ALLOW_WRITE);
@@ -1271,16 +2312,6 @@ public final class DownloadProvider extends ContentProvider {
         throw new SecurityException("Invalid value for " + column + ": " + value);
     }
 
-    private Cursor queryCleared(Uri uri, String[] projection, String selection,
-            String[] selectionArgs, String sort) {
-        final long token = Binder.clearCallingIdentity();
-        try {
-            return query(uri, projection, selection, selectionArgs, sort);
-        } finally {
-            Binder.restoreCallingIdentity(token);
-        }
-    }
-
     /**
      * Starts a database query
      */
@@ -1288,6 +2319,145 @@ public final class DownloadProvider extends ContentProvider {
     public Cursor query(final Uri uri, String[] projection,
              final String selection, final String[] selectionArgs,
              final String sort) {
+        return query(uri, projection, selection, selectionArgs, sort, null, null, null);
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sort, CancellationSignal cancellationSignal) {
+        return query(uri, projection, selection, selectionArgs, sort, null, null,
+                cancellationSignal);
+    }
+
+    /**
+     * Starts a database query described by {@link ContentResolver} query
+     * arguments. Besides the SQL selection and sort order, this honours
+     * {@link ContentResolver#QUERY_ARG_LIMIT}, {@link ContentResolver#QUERY_ARG_OFFSET},
+     * {@link ContentResolver#QUERY_ARG_SORT_COLUMNS}, keyset pagination
+     * through {@link Constants#QUERY_ARG_SEEK_LASTMOD} and full-text search
+     * through {@link Constants#QUERY_ARG_SEARCH}. The arguments that
+     * were applied are listed under {@link ContentResolver#EXTRA_HONORED_ARGS}
+     * in the cursor extras.
+     */
+    @Override
+    public Cursor query(Uri uri, String[] projection, Bundle queryArgs,
+            CancellationSignal cancellationSignal) {
+        if (queryArgs == null) {
+            queryArgs = Bundle.EMPTY;
+        }
+        final ArrayList<String> honoredArgs = new ArrayList<>();
+
+        String selection = queryArgs.getString(ContentResolver.QUERY_ARG_SQL_SELECTION);
+        String[] selectionArgs = queryArgs.getStringArray(
+                ContentResolver.QUERY_ARG_SQL_SELECTION_ARGS);
+        String sort = queryArgs.getString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER);
+
+        if (queryArgs.containsKey(Constants.QUERY_ARG_SEEK_LASTMOD)
+                || queryArgs.containsKey(Constants.QUERY_ARG_SEEK_ID)) {
+            if (!queryArgs.containsKey(Constants.QUERY_ARG_SEEK_LASTMOD)
+                    || !queryArgs.containsKey(Constants.QUERY_ARG_SEEK_ID)) {
+                throw new IllegalArgumentException("Seeking requires both "
+                        + Constants.QUERY_ARG_SEEK_LASTMOD + " and " + Constants.QUERY_ARG_SEEK_ID);
+            }
+            if (sort != null || queryArgs.containsKey(ContentResolver.QUERY_ARG_SORT_COLUMNS)) {
+                throw new IllegalArgumentException("Seeking only supports the default sort order");
+            }
+            final String lastmod = Long.toString(
+                    queryArgs.getLong(Constants.QUERY_ARG_SEEK_LASTMOD));
+            final String id = Long.toString(queryArgs.getLong(Constants.QUERY_ARG_SEEK_ID));
+            final String seek = Downloads.Impl.COLUMN_LAST_MODIFICATION + "<? OR ("
+                    + Downloads.Impl.COLUMN_LAST_MODIFICATION + "=? AND " + _ID + "<?)";
+            if (TextUtils.isEmpty(selection)) {
+                selection = seek;
+                selectionArgs = new String[] { lastmod, lastmod, id };
+            } else {
+                selection = "(" + selection + ") AND (" + seek + ")";
+                selectionArgs = ArrayUtils.concat(String.class, selectionArgs,
+                        new String[] { lastmod, lastmod, id });
+            }
+            sort = Constants.KEYSET_SORT_ORDER;
+            honoredArgs.add(Constants.QUERY_ARG_SEEK_LASTMOD);
+            honoredArgs.add(Constants.QUERY_ARG_SEEK_ID);
+        } else if (sort == null && queryArgs.containsKey(ContentResolver.QUERY_ARG_SORT_COLUMNS)) {
+            sort = ContentResolver.createSqlSortClause(queryArgs);
+            honoredArgs.add(ContentResolver.QUERY_ARG_SORT_COLUMNS);
+            if (queryArgs.containsKey(ContentResolver.QUERY_ARG_SORT_DIRECTION)) {
+                honoredArgs.add(ContentResolver.QUERY_ARG_SORT_DIRECTION);
+            }
+        }
+
+        final int limit = queryArgs.getInt(ContentResolver.QUERY_ARG_LIMIT, -1);
+        final int offset = queryArgs.getInt(ContentResolver.QUERY_ARG_OFFSET, 0);
+        String limitClause = null;
+        if (limit >= 0) {
+            limitClause = Integer.toString(limit);
+            honoredArgs.add(ContentResolver.QUERY_ARG_LIMIT);
+            if (sort == null) {
+                // Pages only line up with later seeks when they're in keyset order
+                sort = Constants.KEYSET_SORT_ORDER;
+            }
+        }
+        if (offset > 0) {
+            // SQLite has no offset without a limit, so stand in the largest one
+            limitClause = offset + "," + (limit >= 0 ? limit : Integer.MAX_VALUE);
+            honoredArgs.add(ContentResolver.QUERY_ARG_OFFSET);
+        }
+
+        final String search = queryArgs.getString(Constants.QUERY_ARG_SEARCH);
+        final String searchMatch = (search != null) ? buildSearchMatch(search) : null;
+        if (searchMatch != null) {
+            honoredArgs.add(Constants.QUERY_ARG_SEARCH);
+        }
+
+        final Cursor cursor = query(uri, projection, selection, selectionArgs, sort,
+                searchMatch, limitClause, cancellationSignal);
+        if (cursor != null && !honoredArgs.isEmpty()) {
+            final Bundle extras = new Bundle();
+            extras.putStringArray(ContentResolver.EXTRA_HONORED_ARGS,
+                    honoredArgs.toArray(new String[honoredArgs.size()]));
+            cursor.setExtras(extras);
+        }
+        return cursor;
+    }
+
+    /**
+     * Turns free text into an FTS query matching every word as a prefix,
+     * or null if there are no words in it.
+     */
+    private static String buildSearchMatch(String search) {
+        final StringBuilder match = new StringBuilder();
+        for (String word : search.split("\\s+")) {
+            // Quote every word so it's never taken as an operator; FTS has no
+            // escape for quotes, so drop them
+            word = word.replace("\"", "");
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (match.length() > 0) {
+                match.append(' ');
+            }
+            match.append('"').append(word).append("*\"");
+        }
+        return (match.length() > 0) ? match.toString() : null;
+    }
+
+    private Cursor query(final Uri uri, String[] projection, final String selection,
+            final String[] selectionArgs, final String sort, final String searchMatch,
+            final String limit, final CancellationSignal cancellationSignal) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        try {
+            return queryInternal(uri, projection, selection, selectionArgs, sort, searchMatch,
+                    limit, cancellationSignal);
+        } finally {
+            // Counting rows would fill the window early, so only time queries
+            mStats.record(DownloadProviderStats.OP_QUERY, sURIMatcher.match(uri), start,
+                    DownloadProviderStats.ROWS_UNKNOWN);
+        }
+    }
+
+    private Cursor queryInternal(final Uri uri, String[] projection, final String selection,
+            final String[] selectionArgs, final String sort, final String searchMatch,
+            final String limit, final CancellationSignal cancellationSignal) {
 
         SQLiteDatabase db = mOpenHelper.getReadableDatabase();
 
@@ -1300,9 +2470,11 @@ public final class DownloadProvider extends ContentProvider {
         }
 
         if (match == MY_DOWNLOADS_ID_HEADERS || match == ALL_DOWNLOADS_ID_HEADERS) {
-            if (projection != null || selection != null || sort != null) {
+            if (projection != null || selection != null || sort != null || limit != null
+                    || searchMatch != null) {
                 throw new UnsupportedOperationException("Request header queries do not support "
-                                                        + "projections, selections or sorting");
+                                                        + "projections, selections, sorting "
+                                                        + "or limits");
             }
 
             // Headers are only available to callers with full access.
@@ -1314,16 +2486,24 @@ public final class DownloadProvider extends ContentProvider {
                     Downloads.Impl.RequestHeaders.COLUMN_HEADER,
                     Downloads.Impl.RequestHeaders.COLUMN_VALUE
             };
-            return qb.query(db, projection, null, null, null, null, null);
+            return qb.query(db, projection, null, null, null, null, null, null,
+                    cancellationSignal);
         }
 
         if (Constants.LOGVV) {
             logVerboseQueryInfo(projection, selection, selectionArgs, sort, db);
         }
 
-        final SQLiteQueryBuilder qb = getQueryBuilder(uri, match);
+        final SQLiteQueryBuilder qb = getReadQueryBuilder(uri, match);
+        if (searchMatch != null) {
+            // Built by us, and strict grammar would reject the subquery in a selection
+            qb.appendWhereStandalone(_ID + " IN (SELECT docid FROM " + DB_SEARCH_TABLE
+                    + " WHERE " + DB_SEARCH_TABLE + " MATCH "
+                    + DatabaseUtils.sqlEscapeString(searchMatch) + ")");
+        }
 
-        final Cursor ret = qb.query(db, projection, selection, selectionArgs, null, null, sort);
+        final Cursor ret = qb.query(db, projection, selection, selectionArgs, null, null, sort,
+                limit, cancellationSignal);
 
         if (ret != null) {
             ret.setNotificationUri(getContext().getContentResolver(), uri);
@@ -1414,6 +2594,18 @@ public final class DownloadProvider extends ContentProvider {
     @Override
     public int update(final Uri uri, final ContentValues values,
             final String where, final String[] whereArgs) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        int count = 0;
+        try {
+            count = updateInternal(uri, values, where, whereArgs);
+            return count;
+        } finally {
+            mStats.record(DownloadProviderStats.OP_UPDATE, sURIMatcher.match(uri), start, count);
+        }
+    }
+
+    private int updateInternal(final Uri uri, final ContentValues values,
+            final String where, final String[] whereArgs) {
         final Context context = getContext();
         final ContentResolver resolver = context.getContentResolver();
 
@@ -1422,6 +2614,7 @@ public final class DownloadProvider extends ContentProvider {
         int count;
         boolean updateSchedule = false;
         boolean isCompleting = false;
+        boolean isProgress = false;
 
         ContentValues filteredValues;
         if (Binder.getCallingPid() != Process.myPid()) {
@@ -1439,12 +2632,19 @@ public final class DownloadProvider extends ContentProvider {
             copyString(Downloads.Impl.COLUMN_MEDIAPROVIDER_URI, values, filteredValues);
             copyString(Downloads.Impl.COLUMN_DESCRIPTION, values, filteredValues);
             copyInteger(Downloads.Impl.COLUMN_DELETED, values, filteredValues);
+            if (values.containsKey(Constants.PRIORITY)) {
+                copyPriority(values, filteredValues);
+                updateSchedule = true;
+            }
         } else {
             filteredValues = values;
             String filename = values.getAsString(Downloads.Impl._DATA);
             if (filename != null) {
                 try {
-                    filteredValues.put(Downloads.Impl._DATA, new File(filename).getCanonicalPath());
+                    final File file = new File(filename).getCanonicalFile();
+                    filteredValues.put(Downloads.Impl._DATA, file.getPath());
+                    filteredValues.put(Constants.VALIDATED_DATA,
+                            Helpers.isFilenameValid(context, file) ? file.getPath() : null);
                 } catch (IOException e) {
                     throw new IllegalStateException("Invalid path: " + filename);
                 }
@@ -1469,6 +2669,8 @@ public final class DownloadProvider extends ContentProvider {
                 updateSchedule = true;
             }
             isCompleting = status != null && Downloads.Impl.isStatusCompleted(status);
+            isProgress = uri.getBooleanQueryParameter(Constants.QUERY_PARAM_PROGRESS, false)
+                    && !updateSchedule && !isCompleting;
         }
 
         int match = sURIMatcher.match(uri);
@@ -1483,6 +2685,10 @@ public final class DownloadProvider extends ContentProvider {
                 }
 
                 final SQLiteQueryBuilder qb = getQueryBuilder(uri, match);
+                if (!isProgress) {
+                    // Progress only ever moves for running downloads, which are never archived
+                    restoreArchivedDownloads(db, uri, match, where, whereArgs);
+                }
                 count = qb.update(db, filteredValues, where, whereArgs);
                 final CallingIdentity token = clearCallingIdentity();
                 try (Cursor cursor = qb.query(db, null, where, whereArgs, null, null, null);
@@ -1490,9 +2696,10 @@ public final class DownloadProvider extends ContentProvider {
                                 .acquireContentProviderClient(MediaStore.AUTHORITY)) {
                     final DownloadInfo.Reader reader = new DownloadInfo.Reader(resolver,
                             cursor);
-                    final DownloadInfo info = new DownloadInfo(context);
-                    final ContentValues updateValues = new ContentValues();
+                    final ArrayList<Long> clearedIds = new ArrayList<>();
+                    final ArrayList<DownloadInfo> toReconcile = new ArrayList<>();
                     while (cursor.moveToNext()) {
+                        final DownloadInfo info = new DownloadInfo(context);
                         reader.updateFromDatabase(info);
                         final boolean visibleToUser = info.mIsVisibleInDownloadsUi
                                 || (info.mMediaScanned != MEDIA_NOT_SCANNABLE);
@@ -1500,56 +2707,43 @@ public final class DownloadProvider extends ContentProvider {
                             if (info.mMediaStoreUri != null) {
                                 // If there was a mediastore entry, it would be deleted in it's
                                 // next idle pass.
-                                updateValues.clear();
-                                updateValues.putNull(Downloads.Impl.COLUMN_MEDIASTORE_URI);
-                                qb.update(db, updateValues, Downloads.Impl._ID + "=?",
-                                        new String[] { Long.toString(info.mId) });
+                                clearedIds.add(info.mId);
                             }
                         } else if ((info.mDestination == Downloads.Impl.DESTINATION_EXTERNAL
                                 || info.mDestination == Downloads.Impl.DESTINATION_FILE_URI
                                 || info.mDestination == Downloads.Impl
                                         .DESTINATION_NON_DOWNLOADMANAGER_DOWNLOAD)
                                 && visibleToUser) {
-                            final ContentValues mediaValues = convertToMediaProviderValues(info);
-                            final Uri mediaStoreUri;
-                            if (Downloads.Impl.isStatusCompleted(info.mStatus)) {
-                                // Set size to 0 to ensure MediaScanner will scan this file.
-                                mediaValues.put(MediaStore.Downloads.SIZE, 0);
-                                updateMediaProvider(client, mediaValues);
-                                mediaStoreUri = triggerMediaScan(client, new File(info.mFileName));
-                            } else {
-                                // Don't insert/update MediaStore db until the download is complete.
-                                // Incomplete files can only be inserted to MediaStore by setting
-                                // IS_PENDING=1 and using RELATIVE_PATH and DISPLAY_NAME in
-                                // MediaProvider#insert operation. We use DATA column, IS_PENDING
-                                // with DATA column will not be respected by MediaProvider.
-                                mediaStoreUri = null;
-                            }
-                            if (!TextUtils.equals(info.mMediaStoreUri,
-                                    mediaStoreUri == null ? null : mediaStoreUri.toString())) {
-                                updateValues.clear();
-                                if (mediaStoreUri == null) {
-                                    updateValues.putNull(Downloads.Impl.COLUMN_MEDIASTORE_URI);
-                                    updateValues.putNull(Downloads.Impl.COLUMN_MEDIAPROVIDER_URI);
-                                    updateValues.put(COLUMN_MEDIA_SCANNED, MEDIA_NOT_SCANNED);
-                                } else {
-                                    updateValues.put(Downloads.Impl.COLUMN_MEDIASTORE_URI,
-                                            mediaStoreUri.toString());
-                                    updateValues.put(Downloads.Impl.COLUMN_MEDIAPROVIDER_URI,
-                                            mediaStoreUri.toString());
-                                    updateValues.put(COLUMN_MEDIA_SCANNED, MEDIA_SCANNED);
-                                }
-                                qb.update(db, updateValues, Downloads.Impl._ID + "=?",
-                                        new String[] { Long.toString(info.mId) });
-                            }
+                            toReconcile.add(info);
                         }
                         if (updateSchedule) {
                             Helpers.scheduleJob(context, info);
+                            if (info.mGroupId != null
+                                    && !Downloads.Impl.isStatusCompleted(info.mStatus)) {
+                                forgetGroupBroadcast(db, info.mUid, info.mGroupId);
+                            }
                         }
                         if (isCompleting) {
-                            info.sendIntentIfRequested();
+                            onDownloadFinished(db, info);
+                        }
+                    }
+
+                    final long mediaStart = SystemClock.elapsedRealtimeNanos();
+                    final Uri[] mediaStoreUris;
+                    if (toReconcile.size() > 1) {
+                        mediaStoreUris = reconcileMediaProvider(client, toReconcile);
+                    } else {
+                        mediaStoreUris = new Uri[toReconcile.size()];
+                        for (int i = 0; i < mediaStoreUris.length; i++) {
+                            mediaStoreUris[i] = reconcileMediaProvider(client,
+                                    toReconcile.get(i));
                         }
                     }
+                    if (!toReconcile.isEmpty()) {
+                        mStats.record(DownloadProviderStats.OP_MEDIASTORE, match, mediaStart,
+                                toReconcile.size());
+                    }
+                    writeMediaStoreUris(db, qb, clearedIds, toReconcile, mediaStoreUris);
                 } finally {
                     restoreCallingIdentity(token);
                 }
@@ -1560,51 +2754,254 @@ public final class DownloadProvider extends ContentProvider {
                 throw new UnsupportedOperationException("Cannot update URI: " + uri);
         }
 
-        notifyContentChanged(uri, match);
+        if (isProgress && match == ALL_DOWNLOADS_ID) {
+            mChangeDispatcher.notifyProgress(Long.parseLong(getDownloadIdFromUri(uri)));
+        } else {
+            notifyContentChanged(uri, match, ContentResolver.NOTIFY_UPDATE);
+        }
         return count;
     }
 
+    /**
+     * Send the completion broadcast for a download that just finished, or
+     * was deleted before it could. A download in a group only counts towards
+     * it instead: when it failed, the group's failure policy is applied, and
+     * once nothing in the group is left to run, one broadcast goes out for
+     * all of it.
+     */
+    private void onDownloadFinished(SQLiteDatabase db, DownloadInfo info) {
+        if (info.mGroupId == null) {
+            info.sendIntentIfRequested();
+            return;
+        }
+
+        final String groupWhere = Constants.UID + "=? AND " + Constants.GROUP_ID + "=? AND "
+                + Downloads.Impl.COLUMN_DELETED + "=0";
+        final String[] groupArgs = new String[] { Integer.toString(info.mUid), info.mGroupId };
+
+        // Being canceled by the app isn't a failure of the download itself
+        if (Downloads.Impl.isStatusError(info.mStatus)
+                && info.mStatus != Downloads.Impl.STATUS_CANCELED
+                && info.mGroupFailurePolicy == Constants.GROUP_FAILURE_CANCEL) {
+            cancelGroup(db, groupWhere, groupArgs);
+        }
+
+        final long[] ids;
+        final boolean groupGone;
+        try (Cursor cursor = db.query(DB_VIEW, new String[] {
+                _ID, Downloads.Impl.COLUMN_STATUS }, groupWhere, groupArgs,
+                null, null, _ID)) {
+            groupGone = cursor.getCount() == 0;
+            final ArraySet<Long> members = new ArraySet<>();
+            members.add(info.mId);
+            while (cursor.moveToNext()) {
+                if (!Downloads.Impl.isStatusCompleted(cursor.getInt(1))) {
+                    return;
+                }
+                members.add(cursor.getLong(0));
+            }
+            ids = new long[members.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = members.valueAt(i);
+            }
+        }
+
+        final ContentValues sent = new ContentValues();
+        sent.put(Constants.UID, info.mUid);
+        sent.put(Constants.GROUP_ID, info.mGroupId);
+        if (db.insertWithOnConflict(DB_GROUP_BROADCASTS_TABLE, null, sent,
+                SQLiteDatabase.CONFLICT_IGNORE) == -1) {
+            // Another member got here first
+            return;
+        }
+        info.sendIntentIfRequested(ids);
+        if (groupGone) {
+            // Deleting the last member sent the broadcast; nothing left to dedupe
+            forgetGroupBroadcast(db, info.mUid, info.mGroupId);
+        }
+    }
+
+    /**
+     * Allow the given group to send its completion broadcast again, since a
+     * member was added or restarted.
+     */
+    private static void forgetGroupBroadcast(SQLiteDatabase db, int uid, String groupId) {
+        db.delete(DB_GROUP_BROADCASTS_TABLE, Constants.UID + "=? AND " + Constants.GROUP_ID
+                + "=?", new String[] { Integer.toString(uid), groupId });
+    }
+
+    /**
+     * Cancel the unfinished downloads matching the given group selection,
+     * telling observers about each one. Only jobs of downloads that aren't
+     * running are cancelled; a running one sees the new status at its next
+     * write and stops as canceled, where stopping its job would have it
+     * write itself back as waiting to retry.
+     */
+    private void cancelGroup(SQLiteDatabase db, String groupWhere, String[] groupArgs) {
+        final ArrayList<Long> ids = new ArrayList<>();
+        final ArrayList<Long> idle = new ArrayList<>();
+        try (Cursor cursor = db.query(DB_TABLE, new String[] {
+                _ID, Downloads.Impl.COLUMN_STATUS }, groupWhere + " AND "
+                + Downloads.Impl.COLUMN_STATUS + "<200", groupArgs, null, null, null)) {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+                if (cursor.getInt(1) != Downloads.Impl.STATUS_RUNNING) {
+                    idle.add(cursor.getLong(0));
+                }
+            }
+        }
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        final ContentValues values = new ContentValues();
+        values.put(Downloads.Impl.COLUMN_STATUS, Downloads.Impl.STATUS_CANCELED);
+        values.put(Downloads.Impl.COLUMN_ERROR_MSG, "Another download in the group failed");
+        db.update(DB_TABLE, values, Helpers.buildQueryWithIds(ids) + " AND "
+                + Downloads.Impl.COLUMN_STATUS + "<200", null);
+
+        final JobScheduler scheduler = getContext().getSystemService(JobScheduler.class);
+        for (int i = 0; i < idle.size(); i++) {
+            scheduler.cancel(idle.get(i).intValue());
+        }
+        for (int i = 0; i < ids.size(); i++) {
+            mChangeDispatcher.notifyChanged(ids.get(i), ContentResolver.NOTIFY_UPDATE);
+        }
+    }
+
     /**
      * Notify of a change through both URIs (/my_downloads and /all_downloads)
      * @param uri either URI for the changed download(s)
      * @param uriMatch the match ID from {@link #sURIMatcher}
+     * @param flags the {@code ContentResolver.NOTIFY_*} flags describing the change
      */
-    private void notifyContentChanged(final Uri uri, int uriMatch) {
+    private void notifyContentChanged(final Uri uri, int uriMatch, int flags) {
         Long downloadId = null;
         if (uriMatch == MY_DOWNLOADS_ID || uriMatch == ALL_DOWNLOADS_ID) {
             downloadId = Long.parseLong(getDownloadIdFromUri(uri));
         }
-        for (Uri uriToNotify : BASE_URIS) {
-            if (downloadId != null) {
-                uriToNotify = ContentUris.withAppendedId(uriToNotify, downloadId);
+        mChangeDispatcher.notifyChanged(downloadId, flags);
+    }
+
+    /**
+     * Same as {@link #getQueryBuilder}, but reads through the view that also
+     * covers archived downloads, unless the uri sets
+     * {@link Constants#QUERY_PARAM_EXCLUDE_ARCHIVED}.
+     */
+    private SQLiteQueryBuilder getReadQueryBuilder(final Uri uri, int match) {
+        final SQLiteQueryBuilder qb = getQueryBuilder(uri, match);
+        if (match != MY_DOWNLOADS_ID_HEADERS && match != ALL_DOWNLOADS_ID_HEADERS
+                && !uri.getBooleanQueryParameter(Constants.QUERY_PARAM_EXCLUDE_ARCHIVED, false)) {
+            qb.setTables(DB_VIEW);
+        }
+        return qb;
+    }
+
+    /**
+     * Move any archived downloads matching the given uri and selection back
+     * into the downloads table, so that writes only ever need to touch one
+     * table. They'll be archived again on a later idle pass if still eligible.
+     */
+    private void restoreArchivedDownloads(SQLiteDatabase db, Uri uri, int match,
+            String where, String[] whereArgs) {
+        // A primary key lookup rules out most single downloads without the
+        // access-scoped query below
+        if ((match == MY_DOWNLOADS_ID || match == ALL_DOWNLOADS_ID)
+                && DatabaseUtils.queryNumEntries(db, DB_ARCHIVE_TABLE, _ID + "=?",
+                        new String[] { getDownloadIdFromUri(uri) }) == 0) {
+            return;
+        }
+
+        final SQLiteQueryBuilder qb = getQueryBuilder(uri, match);
+        qb.setTables(DB_ARCHIVE_TABLE);
+        final ArrayList<Long> ids = new ArrayList<>();
+        try (Cursor cursor = qb.query(db, new String[] { _ID }, where, whereArgs,
+                null, null, null)) {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
             }
-            getContext().getContentResolver().notifyChange(uriToNotify, null);
         }
+        if (ids.isEmpty()) {
+            return;
+        }
+
+        final String idSelection = Helpers.buildQueryWithIds(ids);
+        db.beginTransaction();
+        try {
+            db.execSQL("INSERT INTO " + DB_TABLE + " SELECT * FROM " + DB_ARCHIVE_TABLE
+                    + " WHERE " + idSelection);
+            db.delete(DB_ARCHIVE_TABLE, idSelection, null);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    /**
+     * Move finished downloads that haven't been modified since
+     * {@code modifiedBefore} into the archive table, keeping the table that
+     * running downloads, the notifier and the scheduler work with small.
+     * Downloads still waiting for their completion notification to be
+     * dismissed, or marked for deletion, stay where they are.
+     *
+     * @return the number of downloads archived
+     */
+    int archiveFinishedDownloads(long modifiedBefore) {
+        final String selection = Downloads.Impl.COLUMN_STATUS + ">=200 AND "
+                + Downloads.Impl.COLUMN_STATUS + "<600 AND "
+                + Downloads.Impl.COLUMN_DELETED + "=0 AND "
+                + Downloads.Impl.COLUMN_VISIBILITY + " NOT IN ("
+                + Downloads.Impl.VISIBILITY_VISIBLE_NOTIFY_COMPLETED + ","
+                + Downloads.Impl.VISIBILITY_VISIBLE_NOTIFY_ONLY_COMPLETION + ") AND "
+                + Downloads.Impl.COLUMN_LAST_MODIFICATION + "<?";
+        final Object[] args = new Object[] { modifiedBefore };
+
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final int count;
+        db.beginTransaction();
+        try {
+            db.execSQL("INSERT INTO " + DB_ARCHIVE_TABLE + " SELECT * FROM " + DB_TABLE
+                    + " WHERE " + selection, args);
+            count = db.delete(DB_TABLE, selection, new String[] { Long.toString(modifiedBefore) });
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return count;
     }
 
     /**
      * Create a query builder that filters access to the underlying database
      * based on both the requested {@link Uri} and permissions of the caller.
+     * <p>
+     * The filter only ever uses bound arguments, so the generated SQL is the
+     * same for every caller and row of a given match, and keeps hitting the
+     * connection's prepared statement cache.
      */
     private SQLiteQueryBuilder getQueryBuilder(final Uri uri, int match) {
         final String table;
         final Map<String, String> projectionMap;
 
         final StringBuilder where = new StringBuilder();
+        final ArrayList<String> whereArgs = new ArrayList<>(3);
         switch (match) {
             // The "my_downloads" view normally limits the caller to operating
             // on downloads that they either directly own, or have been given
             // indirect ownership of via OTHER_UID.
             case MY_DOWNLOADS_ID:
-                appendWhereExpression(where, _ID + "=" + getDownloadIdFromUri(uri));
+                appendWhereExpression(where, _ID + "=?");
+                whereArgs.add(getDownloadIdFromUri(uri));
                 // fall-through
             case MY_DOWNLOADS:
                 table = DB_TABLE;
                 projectionMap = sDownloadsMap;
                 if (getContext().checkCallingOrSelfPermission(
                         PERMISSION_ACCESS_ALL) != PackageManager.PERMISSION_GRANTED) {
-                    appendWhereExpression(where, Constants.UID + "=" + Binder.getCallingUid()
-                            + " OR " + COLUMN_OTHER_UID + "=" + Binder.getCallingUid());
+                    final String callingUid = Integer.toString(Binder.getCallingUid());
+                    appendWhereExpression(where, Constants.UID + "=? OR "
+                            + COLUMN_OTHER_UID + "=?");
+                    whereArgs.add(callingUid);
+                    whereArgs.add(callingUid);
                 }
                 break;
 
@@ -1612,7 +3009,8 @@ public final class DownloadProvider extends ContentProvider {
             // to only callers holding the ACCESS_ALL_DOWNLOADS permission, but
             // access may also be delegated via Uri permission grants.
             case ALL_DOWNLOADS_ID:
-                appendWhereExpression(where, _ID + "=" + getDownloadIdFromUri(uri));
+                appendWhereExpression(where, _ID + "=?");
+                whereArgs.add(getDownloadIdFromUri(uri));
                 // fall-through
             case ALL_DOWNLOADS:
                 table = DB_TABLE;
@@ -1625,15 +3023,17 @@ public final class DownloadProvider extends ContentProvider {
             case ALL_DOWNLOADS_ID_HEADERS:
                 table = Downloads.Impl.RequestHeaders.HEADERS_DB_TABLE;
                 projectionMap = sHeadersMap;
-                appendWhereExpression(where, Downloads.Impl.RequestHeaders.COLUMN_DOWNLOAD_ID + "="
-                        + getDownloadIdFromUri(uri));
+                appendWhereExpression(where,
+                        Downloads.Impl.RequestHeaders.COLUMN_DOWNLOAD_ID + "=?");
+                whereArgs.add(getDownloadIdFromUri(uri));
                 break;
 
             default:
                 throw new UnsupportedOperationException("Unknown URI: " + uri);
         }
 
-        final SQLiteQueryBuilder qb = new SQLiteQueryBuilder();
+        final SQLiteQueryBuilder qb = new BoundQueryBuilder(
+                whereArgs.toArray(new String[whereArgs.size()]));
         qb.setTables(table);
         qb.setProjectionMap(projectionMap);
         qb.setStrict(true);
@@ -1643,6 +3043,50 @@ public final class DownloadProvider extends ContentProvider {
         return qb;
     }
 
+    /**
+     * Query builder whose built-in WHERE clause has bound arguments. Those are
+     * placed ahead of any selection arguments supplied by the caller, matching
+     * the order in which {@link SQLiteQueryBuilder} combines the two clauses.
+     */
+    private static class BoundQueryBuilder extends SQLiteQueryBuilder {
+        private final String[] mWhereArgs;
+
+        BoundQueryBuilder(String[] whereArgs) {
+            mWhereArgs = whereArgs;
+        }
+
+        private String[] combineArgs(String[] selectionArgs) {
+            if (mWhereArgs.length == 0) {
+                return selectionArgs;
+            } else if (selectionArgs == null || selectionArgs.length == 0) {
+                return mWhereArgs;
+            }
+            final String[] args = new String[mWhereArgs.length + selectionArgs.length];
+            System.arraycopy(mWhereArgs, 0, args, 0, mWhereArgs.length);
+            System.arraycopy(selectionArgs, 0, args, mWhereArgs.length, selectionArgs.length);
+            return args;
+        }
+
+        @Override
+        public Cursor query(SQLiteDatabase db, String[] projectionIn, String selection,
+                String[] selectionArgs, String groupBy, String having, String sortOrder,
+                String limit, CancellationSignal cancellationSignal) {
+            return super.query(db, projectionIn, selection, combineArgs(selectionArgs), groupBy,
+                    having, sortOrder, limit, cancellationSignal);
+        }
+
+        @Override
+        public int update(SQLiteDatabase db, ContentValues values, String selection,
+                String[] selectionArgs) {
+            return super.update(db, values, selection, combineArgs(selectionArgs));
+        }
+
+        @Override
+        public int delete(SQLiteDatabase db, String selection, String[] selectionArgs) {
+            return super.delete(db, selection, combineArgs(selectionArgs));
+        }
+    }
+
     private static void appendWhereExpression(StringBuilder sb, String expression) {
         if (sb.length() > 0) {
             sb.append(" AND ");
@@ -1655,9 +3099,19 @@ public final class DownloadProvider extends ContentProvider {
      */
     @Override
     public int delete(final Uri uri, final String where, final String[] whereArgs) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        int count = 0;
+        try {
+            count = deleteInternal(uri, where, whereArgs);
+            return count;
+        } finally {
+            mStats.record(DownloadProviderStats.OP_DELETE, sURIMatcher.match(uri), start, count);
+        }
+    }
+
+    private int deleteInternal(final Uri uri, final String where, final String[] whereArgs) {
         final Context context = getContext();
         final ContentResolver resolver = context.getContentResolver();
-        final JobScheduler scheduler = context.getSystemService(JobScheduler.class);
 
         final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int count;
@@ -1668,64 +3122,62 @@ public final class DownloadProvider extends ContentProvider {
             case ALL_DOWNLOADS:
             case ALL_DOWNLOADS_ID:
                 final SQLiteQueryBuilder qb = getQueryBuilder(uri, match);
-                try (Cursor cursor = qb.query(db, null, where, whereArgs, null, null, null)) {
-                    final DownloadInfo.Reader reader = new DownloadInfo.Reader(resolver, cursor);
-                    final DownloadInfo info = new DownloadInfo(context);
-                    while (cursor.moveToNext()) {
-                        reader.updateFromDatabase(info);
-                        scheduler.cancel((int) info.mId);
-
-                        revokeAllDownloadsPermission(info.mId);
-                        DownloadStorageProvider.onDownloadProviderDelete(getContext(), info.mId);
-
-                        final String path = info.mFileName;
-                        if (!TextUtils.isEmpty(path)) {
-                            try {
-                                final File file = new File(path).getCanonicalFile();
-                                if (Helpers.isFilenameValid(getContext(), file)) {
-                                    Log.v(Constants.TAG,
-                                            "Deleting " + file + " via provider delete");
-                                    file.delete();
-                                    // if external_primary volume is mounted, then do the scan
-                                    if (Environment.getExternalStorageState().equals(
-                                            Environment.MEDIA_MOUNTED)) {
-                                        MediaStore.scanFile(getContext().getContentResolver(),
-                                                file);
-                                    } else {
-                                        Log.w(Constants.TAG,
-                                                "external_primary volume is not mounted,"
-                                                        + " skipping scan");
-                                    }
-                                } else {
-                                    Log.d(Constants.TAG, "Ignoring invalid file: " + file);
-                                }
-                            } catch (IOException e) {
-                                Log.e(Constants.TAG, "Couldn't delete file: " + path, e);
-                            }
-                        }
+                final ArrayList<Long> deletedIds = new ArrayList<>();
+                final ArrayList<DownloadInfo> incomplete = new ArrayList<>();
+                final ArrayList<DownloadDeleteQueue.Entry> cleanups = new ArrayList<>();
 
-                        // If the download wasn't completed yet, we're
-                        // effectively completing it now, and we need to send
-                        // any requested broadcasts
-                        if (!Downloads.Impl.isStatusCompleted(info.mStatus)) {
-                            info.sendIntentIfRequested();
+                // Only the database work happens in the transaction; everything
+                // with side effects waits until the rows are really gone.
+                db.beginTransaction();
+                try {
+                    restoreArchivedDownloads(db, uri, match, where, whereArgs);
+                    try (Cursor cursor = qb.query(db, null, where, whereArgs, null, null,
+                            null)) {
+                        final DownloadInfo.Reader reader = new DownloadInfo.Reader(resolver,
+                                cursor);
+                        while (cursor.moveToNext()) {
+                            final DownloadInfo info = new DownloadInfo(context);
+                            reader.updateFromDatabase(info);
+                            deletedIds.add(info.mId);
+                            cleanups.add(new DownloadDeleteQueue.Entry(info.mId,
+                                    TextUtils.isEmpty(info.mFileName) ? null : info.mFileName,
+                                    info.mMediaStoreUri));
+                            // If the download wasn't completed yet, we're
+                            // effectively completing it now, and we need to send
+                            // any requested broadcasts
+                            if (!Downloads.Impl.isStatusCompleted(info.mStatus)) {
+                                incomplete.add(info);
+                            }
                         }
+                    }
 
-                        // Delete any headers for this download
+                    // Delete any headers for these downloads
+                    if (!deletedIds.isEmpty()) {
                         db.delete(Downloads.Impl.RequestHeaders.HEADERS_DB_TABLE,
-                                Downloads.Impl.RequestHeaders.COLUMN_DOWNLOAD_ID + "=?",
-                                new String[] { Long.toString(info.mId) });
+                                Helpers.buildQueryWithIds(
+                                        Downloads.Impl.RequestHeaders.COLUMN_DOWNLOAD_ID,
+                                        deletedIds), null);
                     }
+
+                    count = qb.delete(db, where, whereArgs);
+                    pruneTombstones(db);
+                    pruneGroupBroadcasts(db);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
                 }
 
-                count = qb.delete(db, where, whereArgs);
+                for (int i = 0; i < incomplete.size(); i++) {
+                    onDownloadFinished(db, incomplete.get(i));
+                }
+                mDeleteQueue.enqueue(cleanups);
                 break;
 
             default:
                 Log.d(Constants.TAG, "deleting unknown/invalid URI: " + uri);
                 throw new UnsupportedOperationException("Cannot delete URI: " + uri);
         }
-        notifyContentChanged(uri, match);
+        notifyContentChanged(uri, match, ContentResolver.NOTIFY_DELETE);
         final long token = Binder.clearCallingIdentity();
         try {
             Helpers.getDownloadNotifier(getContext()).update();
@@ -1740,45 +3192,50 @@ public final class DownloadProvider extends ContentProvider {
      */
     @Override
     public ParcelFileDescriptor openFile(final Uri uri, String mode) throws FileNotFoundException {
-        if (Constants.LOGVV) {
-            logVerboseOpenFileInfo(uri, mode);
-        }
-
-        // Perform normal query to enforce caller identity access before
-        // clearing it to reach internal-only columns
-        final Cursor probeCursor = query(uri, new String[] {
-                Downloads.Impl._DATA }, null, null, null);
+        final long start = SystemClock.elapsedRealtimeNanos();
         try {
-            if ((probeCursor == null) || (probeCursor.getCount() == 0)) {
-                throw new FileNotFoundException(
-                        "No file found for " + uri + " as UID " + Binder.getCallingUid());
-            }
+            return openFileInternal(uri, mode);
         } finally {
-            IoUtils.closeQuietly(probeCursor);
+            mStats.record(DownloadProviderStats.OP_OPEN_FILE, sURIMatcher.match(uri), start,
+                    DownloadProviderStats.ROWS_UNKNOWN);
+        }
+    }
+
+    private ParcelFileDescriptor openFileInternal(final Uri uri, String mode)
+            throws FileNotFoundException {
+        if (Constants.LOGVV) {
+            logVerboseOpenFileInfo(uri, mode);
         }
 
-        final Cursor cursor = queryCleared(uri, new String[] {
-                Downloads.Impl._DATA, Downloads.Impl.COLUMN_STATUS,
-                Downloads.Impl.COLUMN_DESTINATION, Downloads.Impl.COLUMN_MEDIA_SCANNED }, null,
-                null, null);
+        // A single query with the caller's identity both enforces their
+        // access and returns everything needed to open the file
+        final Cursor cursor = query(uri, new String[] {
+                Downloads.Impl._ID, Downloads.Impl._DATA, Constants.VALIDATED_DATA,
+                Downloads.Impl.COLUMN_STATUS, Downloads.Impl.COLUMN_DESTINATION,
+                Downloads.Impl.COLUMN_MEDIA_SCANNED }, null, null, null);
+        final long id;
         final String path;
+        final String validatedPath;
         final boolean shouldScan;
         try {
             int count = (cursor != null) ? cursor.getCount() : 0;
             if (count != 1) {
                 // If there is not exactly one result, throw an appropriate exception.
                 if (count == 0) {
-                    throw new FileNotFoundException("No entry for " + uri);
+                    throw new FileNotFoundException(
+                            "No file found for " + uri + " as UID " + Binder.getCallingUid());
                 }
                 throw new FileNotFoundException("Multiple items at " + uri);
             }
 
             if (cursor.moveToFirst()) {
-                final int status = cursor.getInt(1);
-                final int destination = cursor.getInt(2);
-                final int mediaScanned = cursor.getInt(3);
+                final int status = cursor.getInt(3);
+                final int destination = cursor.getInt(4);
+                final int mediaScanned = cursor.getInt(5);
 
-                path = cursor.getString(0);
+                id = cursor.getLong(0);
+                path = cursor.getString(1);
+                validatedPath = cursor.getString(2);
                 shouldScan = Downloads.Impl.isStatusSuccess(status) && (
                         destination == Downloads.Impl.DESTINATION_EXTERNAL
                         || destination == Downloads.Impl.DESTINATION_FILE_URI
@@ -1795,6 +3252,8 @@ public final class DownloadProvider extends ContentProvider {
             throw new FileNotFoundException("No filename found.");
         }
 
+        // Symlinks along the way may have changed since the path was last
+        // checked, so always resolve it again; only the checks are cached
         final File file;
         try {
             file = new File(path).getCanonicalFile();
@@ -1802,8 +3261,11 @@ public final class DownloadProvider extends ContentProvider {
             throw new FileNotFoundException(e.getMessage());
         }
 
-        if (!Helpers.isFilenameValid(getContext(), file)) {
-            throw new FileNotFoundException("Invalid file: " + file);
+        if (!file.getPath().equals(validatedPath)) {
+            if (!Helpers.isFilenameValid(getContext(), file)) {
+                throw new FileNotFoundException("Invalid file: " + file);
+            }
+            rememberValidatedData(id, path, file.getPath());
         }
 
         final int pfdMode = ParcelFileDescriptor.parseMode(mode);
@@ -1840,10 +3302,25 @@ public final class DownloadProvider extends ContentProvider {
     public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
         final IndentingPrintWriter pw = new IndentingPrintWriter(writer, "  ", 120);
 
+        final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        pw.println("Archived downloads: " + DatabaseUtils.queryNumEntries(db, DB_ARCHIVE_TABLE));
+        pw.println();
+
+        mStats.dump(pw);
+        pw.println();
+
+        DownloadJobService.dumpQueueLatency(pw);
+        pw.println();
+
+        Helpers.getHostHealthTracker().dump(pw, mSystemFacade.currentTimeMillis());
+        pw.println();
+
+        Helpers.getNetworkMonitor(getContext()).dump(pw);
+        pw.println();
+
         pw.println("Downloads updated in last hour:");
         pw.increaseIndent();
 
-        final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
         final long modifiedAfter = mSystemFacade.currentTimeMillis() - DateUtils.HOUR_IN_MILLIS;
         final Cursor cursor = db.query(DB_TABLE, null,
                 Downloads.Impl.COLUMN_LAST_MODIFICATION + ">" + modifiedAfter, null, null, null,
@@ -1871,6 +3348,25 @@ public final class DownloadProvider extends ContentProvider {
         pw.decreaseIndent();
     }
 
+    /**
+     * Record that {@code validatedPath} passed validation, as long as the
+     * download still points at {@code path}. Written directly, since it's
+     * only a cache and observers have nothing to react to. The change feed
+     * ignores it too, but only when the value actually changes, so rewriting
+     * the same value is skipped.
+     */
+    private void rememberValidatedData(long id, String path, String validatedPath) {
+        final ContentValues values = new ContentValues();
+        values.put(Constants.VALIDATED_DATA, validatedPath);
+        final String whereClause = _ID + "=? AND " + Downloads.Impl._DATA + "=? AND "
+                + Constants.VALIDATED_DATA + " IS NOT ?";
+        final String[] whereArgs = new String[] { Long.toString(id), path, validatedPath };
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        if (db.update(DB_TABLE, values, whereClause, whereArgs) == 0) {
+            db.update(DB_ARCHIVE_TABLE, values, whereClause, whereArgs);
+        }
+    }
+
     private void logVerboseOpenFileInfo(Uri uri, String mode) {
         Log.v(Constants.TAG, "openFile uri: " + uri + ", mode: " + mode
                 + ", uid: " + Binder.getCallingUid());
@@ -1911,6 +3407,35 @@ public final class DownloadProvider extends ContentProvider {
         }
     }
 
+    private static void copyGroup(ContentValues from, ContentValues to) {
+        final String groupId = from.getAsString(Constants.GROUP_ID);
+        if (groupId == null) {
+            return;
+        }
+        to.put(Constants.GROUP_ID, groupId);
+
+        final Integer policy = from.getAsInteger(Constants.GROUP_FAILURE_POLICY);
+        if (policy == null) {
+            return;
+        }
+        if (policy != Constants.GROUP_FAILURE_CONTINUE
+                && policy != Constants.GROUP_FAILURE_CANCEL) {
+            throw new IllegalArgumentException("Invalid group failure policy: " + policy);
+        }
+        to.put(Constants.GROUP_FAILURE_POLICY, policy);
+    }
+
+    private static void copyPriority(ContentValues from, ContentValues to) {
+        final Integer priority = from.getAsInteger(Constants.PRIORITY);
+        if (priority == null) {
+            return;
+        }
+        if (priority < Constants.PRIORITY_LOW || priority > Constants.PRIORITY_HIGH) {
+            throw new IllegalArgumentException("Invalid priority: " + priority);
+        }
+        to.put(Constants.PRIORITY, priority);
+    }
+
     private static final void copyInteger(String key, ContentValues from, ContentValues to) {
         Integer i = from.getAsInteger(key);
         if (i != null) {
@@ -1945,9 +3470,4 @@ public final class DownloadProvider extends ContentProvider {
         getContext().grantUriPermission(toPackage, uri,
                 Intent.FLAG_GRANT_READ_URI_PERMISSION | Intent.FLAG_GRANT_WRITE_URI_PERMISSION);
     }
-
-    private void revokeAllDownloadsPermission(long id) {
-        final Uri uri = ContentUris.withAppendedId(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, id);
-        getContext().revokeUriPermission(uri, ~0);
-    }
 }
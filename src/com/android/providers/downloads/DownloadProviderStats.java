@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Always-on latency and row count histograms for {@link DownloadProvider}
+ * operations, broken down by uri match. Recording is a couple of atomic
+ * increments on preallocated counters, so it's cheap enough to leave on
+ * for every call.
+ * <p>
+ * Values are counted in power-of-two buckets: bucket 0 holds zero and
+ * bucket {@code i} holds values in {@code [2^(i-1), 2^i)}, with the last
+ * bucket also taking everything larger. Latencies are in microseconds.
+ */
+public class DownloadProviderStats {
+    public static final int OP_QUERY = 0;
+    public static final int OP_INSERT = 1;
+    public static final int OP_UPDATE = 2;
+    public static final int OP_DELETE = 3;
+    public static final int OP_OPEN_FILE = 4;
+    /** Calls out to MediaProvider made on behalf of another operation */
+    public static final int OP_MEDIASTORE = 5;
+
+    private static final String[] OP_NAMES = {
+            "query", "insert", "update", "delete", "openFile", "mediastore" };
+
+    /** Number of buckets; the last one covers about 4 seconds and beyond */
+    @VisibleForTesting
+    static final int BUCKET_COUNT = 24;
+
+    /** Passed as the row count when it isn't known without extra work */
+    public static final int ROWS_UNKNOWN = -1;
+
+    private final String[] mMatchNames;
+    private final Histogram[][] mLatency;
+    private final Histogram[][] mRows;
+
+    /**
+     * @param matchNames names of the uri matches, indexed by match code;
+     *            index 0 is used for anything that didn't match
+     */
+    public DownloadProviderStats(String[] matchNames) {
+        mMatchNames = matchNames;
+        mLatency = new Histogram[OP_NAMES.length][matchNames.length];
+        mRows = new Histogram[OP_NAMES.length][matchNames.length];
+        for (int op = 0; op < OP_NAMES.length; op++) {
+            for (int match = 0; match < matchNames.length; match++) {
+                mLatency[op][match] = new Histogram();
+                mRows[op][match] = new Histogram();
+            }
+        }
+    }
+
+    /**
+     * Record an operation that started at {@code startNanos}, as returned by
+     * {@link SystemClock#elapsedRealtimeNanos()}, and touched {@code rows}
+     * rows or {@link #ROWS_UNKNOWN}.
+     */
+    public void record(int op, int match, long startNanos, int rows) {
+        if (match < 0 || match >= mMatchNames.length) {
+            match = 0;
+        }
+        mLatency[op][match].add((SystemClock.elapsedRealtimeNanos() - startNanos) / 1000);
+        if (rows != ROWS_UNKNOWN) {
+            mRows[op][match].add(rows);
+        }
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        pw.println("Operation stats (latency in us):");
+        pw.increaseIndent();
+        for (int op = 0; op < OP_NAMES.length; op++) {
+            for (int match = 0; match < mMatchNames.length; match++) {
+                final Histogram latency = mLatency[op][match];
+                final long count = latency.getCount();
+                if (count == 0) {
+                    continue;
+                }
+                pw.print(OP_NAMES[op] + " " + mMatchNames[match] + ":");
+                pw.printPair(" count", count);
+                pw.printPair("p50", latency.getPercentile(50));
+                pw.printPair("p90", latency.getPercentile(90));
+                pw.printPair("p99", latency.getPercentile(99));
+                final Histogram rows = mRows[op][match];
+                if (rows.getCount() > 0) {
+                    pw.printPair("rowsP50", rows.getPercentile(50));
+                    pw.printPair("rowsMax", rows.getPercentile(100));
+                }
+                pw.println();
+            }
+        }
+        pw.decreaseIndent();
+    }
+
+    /**
+     * Return the raw bucket counts of every operation seen so far, keyed by
+     * "op/match", each as a Bundle with {@link Constants#EXTRA_LATENCY_BUCKETS}
+     * and {@link Constants#EXTRA_ROW_BUCKETS}.
+     */
+    public Bundle toBundle() {
+        final Bundle result = new Bundle();
+        for (int op = 0; op < OP_NAMES.length; op++) {
+            for (int match = 0; match < mMatchNames.length; match++) {
+                if (mLatency[op][match].getCount() == 0) {
+                    continue;
+                }
+                final Bundle stats = new Bundle();
+                stats.putLongArray(Constants.EXTRA_LATENCY_BUCKETS,
+                        mLatency[op][match].getBuckets());
+                stats.putLongArray(Constants.EXTRA_ROW_BUCKETS, mRows[op][match].getBuckets());
+                result.putBundle(OP_NAMES[op] + "/" + mMatchNames[match], stats);
+            }
+        }
+        return result;
+    }
+
+    @VisibleForTesting
+    static int bucketFor(long value) {
+        if (value <= 0) {
+            return 0;
+        }
+        return Math.min(64 - Long.numberOfLeadingZeros(value), BUCKET_COUNT - 1);
+    }
+
+    @VisibleForTesting
+    static class Histogram {
+        private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+
+        void add(long value) {
+            mBuckets.incrementAndGet(bucketFor(value));
+        }
+
+        long getCount() {
+            long count = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                count += mBuckets.get(i);
+            }
+            return count;
+        }
+
+        long[] getBuckets() {
+            final long[] buckets = new long[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                buckets[i] = mBuckets.get(i);
+            }
+            return buckets;
+        }
+
+        /**
+         * Return the upper bound of the bucket holding the given percentile,
+         * which overestimates by at most a factor of two.
+         */
+        long getPercentile(int percentile) {
+            final long[] buckets = getBuckets();
+            long count = 0;
+            for (long bucket : buckets) {
+                count += bucket;
+            }
+            final long target = (count * percentile + 99) / 100;
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                seen += buckets[i];
+                if (seen >= target && buckets[i] > 0) {
+                    return (i == 0) ? 0 : (1L << i) - 1;
+                }
+            }
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import static com.android.providers.downloads.Constants.TAG;
+
+import android.util.Log;
+import android.util.SparseIntArray;
+
+import java.util.List;
+
+/**
+ * Decides which waiting download {@link DownloadJobService} starts next once
+ * it's running {@link Constants#MAX_RUNNING_DOWNLOADS} downloads. Candidates
+ * are always of the same {@link Constants#PRIORITY}; higher priority ones
+ * are picked first regardless of policy. Devices choose a policy through the
+ * {@code config_download_queue_policy} resource.
+ */
+public interface DownloadQueuePolicy {
+    /**
+     * @param queued candidates, in the order their jobs were started
+     * @param runningPerUid number of downloads currently running for each uid
+     * @return index of the candidate to start
+     */
+    int pickNext(List<DownloadInfo> queued, SparseIntArray runningPerUid);
+
+    /** Start downloads in the order JobScheduler handed them to us. */
+    DownloadQueuePolicy FIFO = (queued, runningPerUid) -> 0;
+
+    /**
+     * Start the download with the fewest bytes left, which minimizes mean
+     * completion time. Downloads of unknown size go last. Large downloads
+     * can wait for as long as smaller ones keep coming, so this is only
+     * worth it on devices where that can't happen.
+     */
+    DownloadQueuePolicy SHORTEST_REMAINING_FIRST = (queued, runningPerUid) -> {
+        int best = 0;
+        for (int i = 1; i < queued.size(); i++) {
+            if (getRemainingBytes(queued.get(i)) < getRemainingBytes(queued.get(best))) {
+                best = i;
+            }
+        }
+        return best;
+    };
+
+    /**
+     * Start a download of the app with the fewest running downloads for its
+     * weight, so one app enqueueing many files can't hold up everyone else.
+     * Visible downloads count double, since someone is waiting on them.
+     */
+    DownloadQueuePolicy FAIR_SHARE = (queued, runningPerUid) -> {
+        int best = 0;
+        for (int i = 1; i < queued.size(); i++) {
+            final DownloadInfo candidate = queued.get(i);
+            final DownloadInfo current = queued.get(best);
+            // Compare running / weight without dividing
+            if (runningPerUid.get(candidate.mUid) * getWeight(current)
+                    < runningPerUid.get(current.mUid) * getWeight(candidate)) {
+                best = i;
+            }
+        }
+        return best;
+    };
+
+    /**
+     * Return the policy with the given name, as used in the
+     * {@code config_download_queue_policy} resource, or {@link #FIFO} if
+     * there is no such policy.
+     */
+    static DownloadQueuePolicy fromName(String name) {
+        switch (name) {
+            case "fifo":
+                return FIFO;
+            case "shortest_remaining_first":
+                return SHORTEST_REMAINING_FIRST;
+            case "fair_share":
+                return FAIR_SHARE;
+            default:
+                Log.w(TAG, "Unknown download queue policy " + name + ", using fifo");
+                return FIFO;
+        }
+    }
+
+    static long getRemainingBytes(DownloadInfo info) {
+        if (info.mTotalBytes <= 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(info.mTotalBytes - info.mCurrentBytes, 0);
+    }
+
+    static int getWeight(DownloadInfo info) {
+        return info.isVisible() ? 2 : 1;
+    }
+}
@@ -30,6 +30,8 @@ import static com.android.providers.downloads.Helpers.getSystemFacade;
 import android.app.BroadcastOptions;
 import android.app.DownloadManager;
 import android.app.NotificationManager;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
 import android.content.BroadcastReceiver;
 import android.content.ContentProviderClient;
 import android.content.ContentResolver;
@@ -40,11 +42,17 @@ import android.content.Intent;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Process;
+import android.os.SystemClock;
 import android.provider.Downloads;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.SparseArray;
 import android.widget.Toast;
 
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.ArrayList;
+
 /**
  * Receives system broadcasts (boot, network connectivity)
  */
@@ -124,13 +132,15 @@ public class DownloadReceiver extends BroadcastReceiver {
                     DownloadManager.EXTRA_NOTIFICATION_CLICK_DOWNLOAD_IDS);
             DownloadManager manager = (DownloadManager) context.getSystemService(
                     Context.DOWNLOAD_SERVICE);
+            final ArrayList<Long> ids = new ArrayList<>(downloadIds.length);
             for (long id : downloadIds) {
                 manager.resumeDownload(id);
-                Helpers.scheduleJob(context, DownloadInfo.queryDownloadInfo(context, id));
+                ids.add(id);
             }
+            Helpers.scheduleJobs(context, ids);
         } else if (Constants.ACTION_RESUME.equals(action)) {
             long id = intent.getLongExtra(DownloadManager.EXTRA_DOWNLOAD_ID, -1);
-            Helpers.scheduleJob(context, DownloadInfo.queryDownloadInfo(context, id));
+            Helpers.scheduleJob(context, DownloadInfo.querySchedulingState(context, id));
         }
     }
 
@@ -138,20 +148,72 @@ public class DownloadReceiver extends BroadcastReceiver {
         // Show any relevant notifications for completed downloads
         getDownloadNotifier(context).update();
 
-        // Schedule all downloads that are ready
+        reconcileJobs(context);
+
+        // Schedule idle pass to clean up orphaned files
+        DownloadIdleService.scheduleIdlePass(context);
+    }
+
+    /**
+     * Bring the pending download jobs in line with the downloads that are
+     * ready to run. Unlike {@link Helpers#scheduleJob} for every download,
+     * this only calls into JobScheduler for jobs that are missing, have
+     * different constraints, or belong to downloads that can't run.
+     */
+    @VisibleForTesting
+    static void reconcileJobs(Context context) {
+        final long start = SystemClock.elapsedRealtime();
+        final JobScheduler scheduler = context.getSystemService(JobScheduler.class);
+
+        // Snapshot the jobs before reading downloads, so a job scheduled for
+        // a download inserted in between is never mistaken for a stale one
+        final String jobService = DownloadJobService.class.getName();
+        final SparseArray<JobInfo> pending = new SparseArray<>();
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (jobService.equals(job.getService().getClassName())) {
+                pending.put(job.getId(), job);
+            }
+        }
+
+        // Only downloads that haven't completed can be ready; archived ones
+        // are always finished
+        int rows = 0;
+        int scheduled = 0;
         final ContentResolver resolver = context.getContentResolver();
-        try (Cursor cursor = resolver.query(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, null, null,
-                null, null)) {
+        try (Cursor cursor = resolver.query(Constants.ACTIVE_DOWNLOADS_CONTENT_URI,
+                DownloadInfo.SCHEDULING_PROJECTION,
+                Downloads.Impl.COLUMN_STATUS + "<" + Downloads.Impl.STATUS_SUCCESS, null,
+                null)) {
             final DownloadInfo.Reader reader = new DownloadInfo.Reader(resolver, cursor);
             final DownloadInfo info = new DownloadInfo(context);
             while (cursor.moveToNext()) {
-                reader.updateFromDatabase(info);
-                Helpers.scheduleJob(context, info);
+                rows++;
+                reader.updateSchedulingState(info);
+                // Apps aren't visible this early, so only keep user-initiated
+                // jobs that already exist rather than asking for new ones
+                final JobInfo existing = pending.get((int) info.mId);
+                final JobInfo job = Helpers.buildJobInfo(context, info,
+                        existing != null && existing.isUserInitiated());
+                if (job == null) {
+                    continue;
+                }
+                pending.remove(job.getId());
+                if (!job.equals(existing)) {
+                    Helpers.submitJob(context, info, job);
+                    scheduled++;
+                }
             }
         }
 
-        // Schedule idle pass to clean up orphaned files
-        DownloadIdleService.scheduleIdlePass(context);
+        // Whatever is left belongs to downloads that are paused, finished or gone
+        for (int i = 0; i < pending.size(); i++) {
+            scheduler.cancel(pending.keyAt(i));
+        }
+
+        Log.i(TAG, "Reconciled download jobs for " + rows + " downloads in "
+                + (SystemClock.elapsedRealtime() - start) + "ms: " + scheduled + " scheduled, "
+                + pending.size() + " canceled, " + (1 + scheduled + pending.size())
+                + " JobScheduler calls");
     }
 
     private void handleRemovedUidEntries(Context context) {
@@ -190,8 +252,16 @@ public class DownloadReceiver extends BroadcastReceiver {
             hideNotification(context, id);
 
         } else if (Constants.ACTION_HIDE.equals(action)) {
-            final long id = ContentUris.parseId(intent.getData());
-            hideNotification(context, id);
+            // Notifications of a whole group hide all of its downloads
+            final long[] ids = intent.getLongArrayExtra(
+                    DownloadManager.EXTRA_NOTIFICATION_CLICK_DOWNLOAD_IDS);
+            if (ids != null) {
+                for (long id : ids) {
+                    hideNotification(context, id);
+                }
+            } else {
+                hideNotification(context, ContentUris.parseId(intent.getData()));
+            }
         }
     }
 
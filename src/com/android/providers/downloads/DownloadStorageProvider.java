@@ -98,6 +98,9 @@ public class DownloadStorageProvider extends FileSystemProvider {
 
     private static final int NO_LIMIT = -1;
 
+    /** Upper bound on downloads matched by a search, which are then queried by id */
+    private static final int MAX_SEARCH_RESULTS = 500;
+
     @Override
     public boolean onCreate() {
         super.onCreate(DEFAULT_DOCUMENT_PROJECTION);
@@ -435,13 +438,28 @@ public class DownloadStorageProvider extends FileSystemProvider {
         final long token = Binder.clearCallingIdentity();
         Cursor cursor = null;
         try {
-            cursor = mDm.query(new DownloadManager.Query().setOnlyIncludeVisibleInDownloadsUi(true)
-                    .setFilterByString(DocumentsContract.getSearchDocumentsQuery(queryArgs)));
+            final String displayName = DocumentsContract.getSearchDocumentsQuery(queryArgs);
             final Set<String> filePaths = new HashSet<>();
-            while (cursor.moveToNext()) {
-                includeDownloadFromCursor(result, cursor, filePaths, queryArgs);
+            if (displayName == null) {
+                cursor = mDm.query(new DownloadManager.Query()
+                        .setOnlyIncludeVisibleInDownloadsUi(true));
+            } else {
+                // Narrow down through the full-text index rather than
+                // scanning every visible download
+                final long[] ids = searchDownloadIds(displayName);
+                if (ids.length > 0) {
+                    cursor = mDm.query(new DownloadManager.Query()
+                            .setOnlyIncludeVisibleInDownloadsUi(true).setFilterById(ids));
+                }
+            }
+            if (cursor != null) {
+                while (cursor.moveToNext()) {
+                    includeDownloadFromCursor(result, cursor, filePaths, queryArgs);
+                }
+                notificationUris.add(cursor.getNotificationUri());
+            } else {
+                notificationUris.add(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI);
             }
-            notificationUris.add(cursor.getNotificationUri());
             includeDownloadsFromMediaStore(result, queryArgs, filePaths,
                     notificationUris, null /* parentId */, NO_LIMIT, true /* includePending */);
 
@@ -463,6 +481,29 @@ public class DownloadStorageProvider extends FileSystemProvider {
         return result;
     }
 
+    /**
+     * Return the ids of the visible downloads with words starting with those
+     * in {@code displayName}, most recently modified first.
+     */
+    private long[] searchDownloadIds(String displayName) {
+        final Bundle args = new Bundle();
+        args.putString(Constants.QUERY_ARG_SEARCH, displayName);
+        args.putString(ContentResolver.QUERY_ARG_SQL_SELECTION,
+                Downloads.Impl.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI + "!=0 AND "
+                        + Downloads.Impl.COLUMN_DELETED + "!=1");
+        args.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, Constants.KEYSET_SORT_ORDER);
+        args.putInt(ContentResolver.QUERY_ARG_LIMIT, MAX_SEARCH_RESULTS);
+        try (Cursor cursor = getContext().getContentResolver().query(
+                Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, new String[] { Downloads.Impl._ID },
+                args, null)) {
+            final long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        }
+    }
+
     private void includeSearchFilesFromSharedStorage(DownloadsCursor result, String[] projection,
             Set<String> filePaths, Bundle queryArgs) throws FileNotFoundException {
         final File downloadDir = getPublicDownloadsDirectory();
@@ -52,16 +52,16 @@ import static java.net.HttpURLConnection.HTTP_PRECON_FAILED;
 import static java.net.HttpURLConnection.HTTP_SEE_OTHER;
 import static java.net.HttpURLConnection.HTTP_UNAVAILABLE;
 
+import android.app.job.JobInfo;
 import android.app.job.JobParameters;
 import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
+import android.database.Cursor;
 import android.drm.DrmManagerClient;
 import android.drm.DrmOutputStream;
-import android.net.INetworkPolicyListener;
 import android.net.Network;
 import android.net.NetworkCapabilities;
-import android.net.NetworkPolicyManager;
 import android.net.TrafficStats;
 import android.net.Uri;
 import android.net.http.HttpEngine;
@@ -91,7 +91,9 @@ import java.net.ProtocolException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Objects;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
@@ -122,7 +124,7 @@ public class DownloadThread extends Thread {
     private final Context mContext;
     private final SystemFacade mSystemFacade;
     private final DownloadNotifier mNotifier;
-    private final NetworkPolicyManager mNetworkPolicy;
+    private final NetworkMonitor mNetworkMonitor;
     private final StorageManager mStorage;
 
     private final DownloadJobService mJobService;
@@ -157,15 +159,15 @@ public class DownloadThread extends Thread {
 
         public String mErrorMsg;
 
-        private static final String NOT_CANCELED = COLUMN_STATUS + " != '" + STATUS_CANCELED + "'";
-        private static final String NOT_DELETED = COLUMN_DELETED + " == '0'";
-        private static final String NOT_PAUSED = "(" + COLUMN_CONTROL + " IS NULL OR "
-                + COLUMN_CONTROL + " != '" + CONTROL_PAUSED + "')";
-        private static final String NOT_PAUSED_MANUAL = COLUMN_STATUS + " != '"
-                + STATUS_PAUSED_MANUAL + "'";
-
-        private static final String SELECTION_VALID = NOT_CANCELED + " AND " + NOT_DELETED + " AND "
-                + NOT_PAUSED + " AND " + NOT_PAUSED_MANUAL;
+        /** {@link Constants#VERSION} of the row as of our last read or write */
+        private long mVersion;
+        /** Status of the row as of our last read or write */
+        private int mLastStatus;
+        /** Control and deleted flag of the row as of our last read */
+        private int mLastControl;
+        private boolean mLastDeleted;
+        /** Values as of our last write, so later writes only send what changed */
+        private final ContentValues mWritten = new ContentValues();
 
         public DownloadInfoDelta(DownloadInfo info) {
             mUri = info.mUri;
@@ -198,6 +200,53 @@ public class DownloadThread extends Thread {
             return values;
         }
 
+        /**
+         * Read the current state and version of the download, which later
+         * writes are checked against. A pause or delete seen here stops the
+         * first write, since the version alone can't tell it happened.
+         *
+         * @return the current status
+         */
+        public int readFromDatabase() {
+            try (Cursor cursor = mContext.getContentResolver().query(mInfo.getAllDownloadsUri(),
+                    new String[] { COLUMN_CONTROL, COLUMN_STATUS, COLUMN_DELETED,
+                            Constants.VERSION }, null, null, null)) {
+                if (cursor.moveToFirst()) {
+                    readState(cursor);
+                } else {
+                    mLastStatus = Downloads.Impl.STATUS_PENDING;
+                    mLastDeleted = true;
+                }
+            }
+            mWritten.clear();
+            return mLastStatus;
+        }
+
+        /**
+         * Remember the control, status, deleted and version columns of the
+         * row, in that order.
+         */
+        private void readState(Cursor cursor) {
+            mLastControl = cursor.getInt(0);
+            mLastStatus = cursor.getInt(1);
+            mLastDeleted = cursor.getInt(2) != 0;
+            mVersion = cursor.getLong(3);
+        }
+
+        /**
+         * Throw if the row as we last saw it means we should stop.
+         */
+        private void checkNotStopped() throws StopRequestException {
+            if (mLastDeleted || mLastStatus == STATUS_CANCELED) {
+                throw new StopRequestException(STATUS_CANCELED, "Download deleted or missing!");
+            } else if (mLastControl == CONTROL_PAUSED) {
+                throw new StopRequestException(STATUS_PAUSED_BY_APP, "Download paused!");
+            } else if (mLastStatus == STATUS_PAUSED_MANUAL) {
+                throw new StopRequestException(STATUS_PAUSED_MANUAL,
+                        "Download paused manually!");
+            }
+        }
+
         /**
          * Blindly push update of current delta values to provider.
          */
@@ -211,16 +260,64 @@ public class DownloadThread extends Thread {
          * that we haven't been paused or deleted.
          */
         public void writeToDatabaseOrThrow() throws StopRequestException {
-            if (mContext.getContentResolver().update(mInfo.getAllDownloadsUri(),
-                    buildContentValues(), SELECTION_VALID, null) == 0) {
-                if (mInfo.queryDownloadControl() == CONTROL_PAUSED) {
-                    throw new StopRequestException(STATUS_PAUSED_BY_APP, "Download paused!");
-                } else if (mInfo.queryDownloadStatus() == STATUS_PAUSED_MANUAL) {
-                    throw new StopRequestException(STATUS_PAUSED_MANUAL, "Download paused manually!");
-                } else {
-                    throw new StopRequestException(STATUS_CANCELED, "Download deleted or missing!");
+            writeToDatabaseOrThrow(mInfo.getAllDownloadsUri());
+        }
+
+        /**
+         * Same as {@link #writeToDatabaseOrThrow()}, but marks the write as
+         * only moving progress so observers are notified on the cheaper
+         * progress channel.
+         */
+        public void writeProgressToDatabaseOrThrow() throws StopRequestException {
+            writeToDatabaseOrThrow(mInfo.getAllDownloadsUri().buildUpon()
+                    .appendQueryParameter(Constants.QUERY_PARAM_PROGRESS, "true").build());
+        }
+
+        /**
+         * Write the columns that changed since our last write, but only if
+         * nobody else has changed the status, control or deleted flag in the
+         * meantime. When they have, either adopt the new version and try
+         * again, or throw if the change means we should stop.
+         */
+        private void writeToDatabaseOrThrow(Uri uri) throws StopRequestException {
+            checkNotStopped();
+
+            final ContentValues values = buildContentValues();
+            for (String key : mWritten.keySet()) {
+                if (Objects.equals(values.get(key), mWritten.get(key))) {
+                    values.remove(key);
                 }
             }
+            if (values.size() == 0) {
+                // Nothing to write; an empty update would look like a lost race
+                return;
+            }
+
+            while (mContext.getContentResolver().update(uri, values,
+                    Constants.VERSION + "=?", new String[] { Long.toString(mVersion) }) == 0) {
+                // Lost a race; the current row tells us why in one query
+                try (Cursor cursor = mContext.getContentResolver().query(
+                        mInfo.getAllDownloadsUri(), new String[] {
+                                COLUMN_CONTROL, COLUMN_STATUS, COLUMN_DELETED,
+                                Constants.VERSION }, null, null, null)) {
+                    if (!cursor.moveToFirst()) {
+                        throw new StopRequestException(STATUS_CANCELED,
+                                "Download deleted or missing!");
+                    }
+                    readState(cursor);
+                    checkNotStopped();
+                    // Nothing that stops us changed, so carry on from the new version with
+                    // every column, since we no longer know what the row holds
+                    values.putAll(buildContentValues());
+                }
+            }
+
+            // Changing the status bumped the version
+            if (mStatus != mLastStatus) {
+                mLastStatus = mStatus;
+                mVersion++;
+            }
+            mWritten.putAll(values);
         }
     }
 
@@ -237,7 +334,7 @@ public class DownloadThread extends Thread {
     private long mLastUpdateTime = 0;
 
     private boolean mIgnoreBlocked;
-    private Network mNetwork;
+    private volatile Network mNetwork;
 
     /** Historical bytes/second speed of this download. */
     private long mSpeed;
@@ -248,6 +345,13 @@ public class DownloadThread extends Thread {
 
     /** Flag indicating that thread must be halted */
     private volatile boolean mShutdownRequested;
+    /** Flag asking the thread to pause for a higher priority download */
+    private volatile boolean mPreemptRequested;
+    /** Set once the thread actually paused because of {@link #mPreemptRequested} */
+    private volatile boolean mPreempted;
+
+    /** Bytes received from the network by this thread, as reported to the job */
+    private volatile long mTransferredBytes;
 
     /** This is initialized lazily in startDownload */
     private HttpEngine mHttpEngine;
@@ -256,7 +360,7 @@ public class DownloadThread extends Thread {
         mContext = service;
         mSystemFacade = Helpers.getSystemFacade(mContext);
         mNotifier = Helpers.getDownloadNotifier(mContext);
-        mNetworkPolicy = mContext.getSystemService(NetworkPolicyManager.class);
+        mNetworkMonitor = Helpers.getNetworkMonitor(mContext);
         mStorage = mContext.getSystemService(StorageManager.class);
 
         mJobService = service;
@@ -277,20 +381,26 @@ public class DownloadThread extends Thread {
         Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
 
         // Skip when download already marked as finished; this download was
-        // probably started again while racing with UpdateThread.
-        if (mInfo.queryDownloadStatus() == Downloads.Impl.STATUS_SUCCESS) {
+        // probably started again while racing with UpdateThread. Canceled
+        // downloads may still have a job when their group was canceled.
+        final int lastStatus = mInfoDelta.readFromDatabase();
+        if (lastStatus == Downloads.Impl.STATUS_SUCCESS
+                || lastStatus == Downloads.Impl.STATUS_CANCELED) {
             logDebug("Already finished; skipping");
+            mJobService.jobFinishedInternal(mParams, mId, false);
             return;
         }
 
+        // Status we were stopped with, before any retry handling below
+        int stopStatus = STATUS_SUCCESS;
         try {
             // while performing download, register for rules updates
-            mNetworkPolicy.registerListener(mPolicyListener);
+            mNetworkMonitor.addWatcher(mNetworkWatcher);
 
             logDebug("Starting");
 
             mInfoDelta.mStatus = STATUS_RUNNING;
-            mInfoDelta.writeToDatabase();
+            mInfoDelta.writeToDatabaseOrThrow();
 
             // If we're showing a foreground notification for the requesting
             // app, the download isn't affected by the blocked status of the
@@ -324,6 +434,7 @@ public class DownloadThread extends Thread {
         } catch (StopRequestException e) {
             mInfoDelta.mStatus = e.getFinalStatus();
             mInfoDelta.mErrorMsg = e.getMessage();
+            stopStatus = mInfoDelta.mStatus;
 
             logWarning("Stop requested with status "
                     + Downloads.Impl.statusToString(mInfoDelta.mStatus) + ": "
@@ -344,7 +455,7 @@ public class DownloadThread extends Thread {
                 }
 
                 if (mInfoDelta.mNumFailed < Constants.MAX_RETRIES) {
-                    if (null != mSystemFacade.getNetworkCapabilities(mNetwork)) {
+                    if (null != mNetworkMonitor.getNetworkCapabilities(mNetwork)) {
                         // Underlying network is still intact, use normal backoff
                         mInfoDelta.mStatus = STATUS_WAITING_TO_RETRY;
                     } else {
@@ -386,9 +497,11 @@ public class DownloadThread extends Thread {
             TrafficStats.clearThreadStatsTag();
             TrafficStats.clearThreadStatsUid();
 
-            mNetworkPolicy.unregisterListener(mPolicyListener);
+            mNetworkMonitor.removeWatcher(mNetworkWatcher);
         }
 
+        reportHostHealth(stopStatus);
+
         boolean needsReschedule = false;
         if (mInfoDelta.mStatus == STATUS_WAITING_TO_RETRY
                 || mInfoDelta.mStatus == STATUS_WAITING_FOR_NETWORK
@@ -397,13 +510,62 @@ public class DownloadThread extends Thread {
             needsReschedule = true;
         }
 
-        mJobService.jobFinishedInternal(mParams, needsReschedule);
+        mJobService.jobFinishedInternal(mParams, mId, needsReschedule);
     }
 
     public void requestShutdown() {
         mShutdownRequested = true;
     }
 
+    /**
+     * Tell {@link HostHealthTracker} how this attempt went, when the outcome
+     * says something about the host itself rather than us or the network.
+     */
+    private void reportHostHealth(int stopStatus) {
+        final HostHealthTracker tracker = Helpers.getHostHealthTracker();
+        final String host = HostHealthTracker.getHost(mInfoDelta.mUri);
+        if (mInfoDelta.mStatus == STATUS_SUCCESS || (stopStatus >= STATUS_BAD_REQUEST
+                && stopStatus < Downloads.Impl.MIN_ARTIFICIAL_ERROR_STATUS)) {
+            // The host answered, so anyone held back by it can go again
+            final ArrayList<Long> released = tracker.onSuccess(host);
+            if (!released.isEmpty()) {
+                Helpers.scheduleJobs(mContext, released);
+            }
+        } else if ((stopStatus == STATUS_HTTP_DATA_ERROR || stopStatus == HTTP_UNAVAILABLE
+                || stopStatus == HTTP_INTERNAL_ERROR) && !mShutdownRequested
+                && mNetworkMonitor.getNetworkCapabilities(mNetwork) != null) {
+            tracker.onFailure(host, mId, mInfoDelta.mRetryAfter,
+                    mSystemFacade.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Ask this download to pause at its next checkpoint so a higher priority
+     * one can run. Ignored when it couldn't resume afterwards.
+     */
+    public void requestPreemption() {
+        mPreemptRequested = true;
+    }
+
+    /**
+     * Return whether this download stopped because of
+     * {@link #requestPreemption()}, leaving it pending without a job.
+     */
+    public boolean wasPreempted() {
+        return mPreempted;
+    }
+
+    DownloadInfo getInfo() {
+        return mInfo;
+    }
+
+    /**
+     * Return the number of bytes this thread has received so far.
+     */
+    public long getTransferredBytes() {
+        return mTransferredBytes;
+    }
+
     /**
      * Fully execute a single download request. Setup and send the request,
      * handle the response, and transfer the data to the destination file.
@@ -646,6 +808,13 @@ public class DownloadThread extends Thread {
                         "Local halt requested; job probably timed out");
             }
 
+            // Without an ETag we can only pause before anything was written
+            if (mPreemptRequested && (mInfoDelta.mETag != null || !mMadeProgress)) {
+                mPreempted = true;
+                throw new StopRequestException(STATUS_PENDING,
+                        "Paused for a higher priority download");
+            }
+
             int len = -1;
             try {
                 len = in.read(buffer);
@@ -663,6 +832,7 @@ public class DownloadThread extends Thread {
 
                 mMadeProgress = true;
                 mInfoDelta.mCurrentBytes += len;
+                mTransferredBytes += len;
 
                 updateProgress(outFd);
 
@@ -742,7 +912,7 @@ public class DownloadThread extends Thread {
         // checking connectivity will apply current policy
         mPolicyDirty = false;
 
-        final NetworkCapabilities caps = mSystemFacade.getNetworkCapabilities(mNetwork);
+        final NetworkCapabilities caps = mNetworkMonitor.getNetworkCapabilities(mNetwork);
         if (caps == null) {
             throw new StopRequestException(STATUS_WAITING_FOR_NETWORK, "Network is disconnected");
         }
@@ -790,7 +960,8 @@ public class DownloadThread extends Thread {
             // so we can always resume based on latest database information.
             outFd.sync();
 
-            mInfoDelta.writeToDatabaseOrThrow();
+            mInfoDelta.writeProgressToDatabaseOrThrow();
+            mJobService.updateTransferredNetworkBytes(mParams, mTransferredBytes, 0);
 
             mLastUpdateBytes = currentBytes;
             mLastUpdateTime = now;
@@ -831,6 +1002,12 @@ public class DownloadThread extends Thread {
 
         mInfoDelta.writeToDatabaseOrThrow();
 
+        // Let the system plan around the real size rather than our guess
+        if (mInfoDelta.mTotalBytes > 0) {
+            mJobService.updateEstimatedNetworkBytes(mParams, mInfoDelta.mTotalBytes,
+                    JobInfo.NETWORK_BYTES_UNKNOWN);
+        }
+
         // Check connectivity again now that we know the total size
         checkConnectivity();
     }
@@ -890,34 +1067,21 @@ public class DownloadThread extends Thread {
         Log.e(TAG, "[" + mId + "] " + msg, t);
     }
 
-    private INetworkPolicyListener mPolicyListener = new NetworkPolicyManager.Listener() {
+    private final NetworkMonitor.Watcher mNetworkWatcher = new NetworkMonitor.Watcher() {
         @Override
-        public void onUidRulesChanged(int uid, int uidRules) {
-            // caller is NPMS, since we only register with them
-            if (uid == mInfo.mUid) {
-                mPolicyDirty = true;
-            }
+        public int getUid() {
+            return mInfo.mUid;
         }
 
         @Override
-        public void onMeteredIfacesChanged(String[] meteredIfaces) {
-            // caller is NPMS, since we only register with them
-            mPolicyDirty = true;
+        public Network getNetwork() {
+            return mNetwork;
         }
 
         @Override
-        public void onRestrictBackgroundChanged(boolean restrictBackground) {
-            // caller is NPMS, since we only register with them
+        public void onConnectivityInvalidated() {
             mPolicyDirty = true;
         }
-
-        @Override
-        public void onUidPoliciesChanged(int uid, int uidPolicies) {
-            // caller is NPMS, since we only register with them
-            if (uid == mInfo.mUid) {
-                mPolicyDirty = true;
-            }
-        }
     };
 
     private static long getHeaderFieldLong(URLConnection conn, String field, long defaultValue) {
@@ -31,6 +31,7 @@ import static android.provider.Downloads.Impl.FLAG_REQUIRES_DEVICE_IDLE;
 import static android.provider.Downloads.Impl._DATA;
 
 import static com.android.providers.downloads.Constants.TAG;
+import static com.android.providers.downloads.flags.Flags.userInitiatedDownloadJobs;
 
 import android.annotation.NonNull;
 import android.annotation.Nullable;
@@ -44,6 +45,8 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.pm.PackageManager;
 import android.database.Cursor;
+import android.net.Network;
+import android.net.NetworkCapabilities;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Environment;
@@ -70,6 +73,7 @@ import java.io.IOException;
 import java.lang.System;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Locale;
 import java.util.Random;
 import java.util.regex.Matcher;
@@ -104,6 +108,8 @@ public class Helpers {
 
     private static SystemFacade sSystemFacade;
     private static DownloadNotifier sNotifier;
+    private static HostHealthTracker sHostHealth;
+    private static NetworkMonitor sNetworkMonitor;
 
     private Helpers() {
     }
@@ -137,6 +143,20 @@ public class Helpers {
         return sNotifier;
     }
 
+    public synchronized static HostHealthTracker getHostHealthTracker() {
+        if (sHostHealth == null) {
+            sHostHealth = new HostHealthTracker();
+        }
+        return sHostHealth;
+    }
+
+    public synchronized static NetworkMonitor getNetworkMonitor(Context context) {
+        if (sNetworkMonitor == null) {
+            sNetworkMonitor = new NetworkMonitor(context);
+        }
+        return sNetworkMonitor;
+    }
+
     public static String getString(Cursor cursor, String col) {
         return cursor.getString(cursor.getColumnIndexOrThrow(col));
     }
@@ -145,9 +165,21 @@ public class Helpers {
         return cursor.getInt(cursor.getColumnIndexOrThrow(col));
     }
 
+    /**
+     * Schedule the job for a download that was just inserted. When it looks
+     * like the job could run right now, ask for it to be expedited so the
+     * transfer starts without waiting on the regular job batching; it's still
+     * the same job, so it can never run twice.
+     */
     public static void scheduleJob(Context context, long downloadId) {
-        final boolean scheduled = scheduleJob(context,
-                DownloadInfo.queryDownloadInfo(context, downloadId));
+        final DownloadInfo info = DownloadInfo.querySchedulingState(context, downloadId);
+        final boolean scheduled;
+        if (info != null && canStartImmediately(context, info)) {
+            submitJob(context, info, buildJobInfo(context, info, true, true, 0));
+            scheduled = true;
+        } else {
+            scheduled = scheduleJob(context, info);
+        }
         if (!scheduled) {
             // If we didn't schedule a future job, kick off a notification
             // update pass immediately
@@ -155,11 +187,35 @@ public class Helpers {
         }
     }
 
+    /**
+     * Same as {@link #scheduleJob(Context, long)} for many downloads, reading
+     * them all in one query and updating notifications at most once.
+     */
+    public static void scheduleJobs(Context context, ArrayList<Long> downloadIds) {
+        final List<DownloadInfo> infos = DownloadInfo.querySchedulingState(context,
+                downloadIds);
+        boolean allScheduled = infos.size() == downloadIds.size();
+        for (DownloadInfo info : infos) {
+            allScheduled &= scheduleJob(context, info);
+        }
+        if (!allScheduled) {
+            getDownloadNotifier(context).update();
+        }
+    }
+
     /**
      * Schedule (or reschedule) a job for the given {@link DownloadInfo} using
      * its current state to define job constraints.
      */
     public static boolean scheduleJob(Context context, DownloadInfo info) {
+        return scheduleJob(context, info, 0);
+    }
+
+    /**
+     * Same as {@link #scheduleJob(Context, DownloadInfo)}, but the job waits
+     * at least {@code minLatency} before it runs.
+     */
+    public static boolean scheduleJob(Context context, DownloadInfo info, long minLatency) {
         if (info == null) return false;
 
         final JobScheduler scheduler = context.getSystemService(JobScheduler.class);
@@ -169,24 +225,115 @@ public class Helpers {
         scheduler.cancel(jobId);
 
         // Skip scheduling if download is paused or finished
-        if (!info.isReadyToSchedule()) return false;
+        final JobInfo job = buildJobInfo(context, info, true, false, minLatency);
+        if (job == null) return false;
 
-        final JobInfo.Builder builder = new JobInfo.Builder(jobId,
-                new ComponentName(context, DownloadJobService.class));
+        submitJob(context, info, job);
+        return true;
+    }
 
-        // When this download will show a notification, run with a higher
-        // bias, since it's effectively a foreground service
-        if (info.isVisible()) {
-            builder.setBias(JobInfo.BIAS_FOREGROUND_SERVICE);
-            builder.setFlags(JobInfo.FLAG_WILL_BE_FOREGROUND);
+    /**
+     * Schedule the given job, built by {@link #buildJobInfo}, on behalf of the
+     * download's package. User-initiated jobs are only accepted while the app
+     * is visible, so when one is turned down we fall back to a regular job.
+     */
+    public static void submitJob(Context context, DownloadInfo info, JobInfo job) {
+        final JobScheduler scheduler = context.getSystemService(JobScheduler.class);
+        final String packageName = getJobPackage(context, info);
+        int result;
+        try {
+            result = scheduler.scheduleAsPackage(job, packageName, UserHandle.myUserId(), TAG);
+        } catch (IllegalArgumentException | SecurityException e) {
+            if (!job.isUserInitiated()) throw e;
+            result = JobScheduler.RESULT_FAILURE;
         }
+        if (result == JobScheduler.RESULT_FAILURE && job.isUserInitiated()) {
+            Log.d(TAG, "User-initiated job not allowed for download " + info.mId);
+            scheduler.scheduleAsPackage(buildJobInfo(context, info, false), packageName,
+                    UserHandle.myUserId(), TAG);
+        }
+    }
+
+    /**
+     * Build the job for the given {@link DownloadInfo} using its current state
+     * to define job constraints, or return null when it isn't ready to run.
+     */
+    public static JobInfo buildJobInfo(Context context, DownloadInfo info) {
+        return buildJobInfo(context, info, true);
+    }
+
+    /**
+     * Same as {@link #buildJobInfo(Context, DownloadInfo)}, but only builds a
+     * user-initiated data transfer job when {@code allowUserInitiated} is set.
+     */
+    public static JobInfo buildJobInfo(Context context, DownloadInfo info,
+            boolean allowUserInitiated) {
+        return buildJobInfo(context, info, allowUserInitiated, false, 0);
+    }
+
+    /**
+     * Return whether a new download could start as soon as its job is
+     * scheduled: its constraints are already met and
+     * {@link DownloadJobService} has room for it.
+     */
+    @VisibleForTesting
+    static boolean canStartImmediately(Context context, DownloadInfo info) {
+        if (!info.isReadyToSchedule() || info.getMinimumLatency() > 0
+                || (info.mFlags & (FLAG_REQUIRES_CHARGING | FLAG_REQUIRES_DEVICE_IDLE)) != 0
+                || info.mPriority == Constants.PRIORITY_LOW
+                || !DownloadJobService.hasCapacity()) {
+            return false;
+        }
+
+        final SystemFacade facade = getSystemFacade(context);
+        final Network network = facade.getActiveNetwork();
+        final NetworkCapabilities caps = (network != null)
+                ? facade.getNetworkCapabilities(network) : null;
+        if (caps == null) {
+            return false;
+        }
+        switch (info.getRequiredNetworkType(info.mTotalBytes)) {
+            case JobInfo.NETWORK_TYPE_UNMETERED:
+                return caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED);
+            case JobInfo.NETWORK_TYPE_NOT_ROAMING:
+                return caps.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_ROAMING);
+            default:
+                return true;
+        }
+    }
+
+    private static JobInfo buildJobInfo(Context context, DownloadInfo info,
+            boolean allowUserInitiated, boolean expedited, long minLatency) {
+        if (!info.isReadyToSchedule()) return null;
+
+        final JobInfo.Builder builder = new JobInfo.Builder((int) info.mId,
+                new ComponentName(context, DownloadJobService.class));
 
         // We might have a backoff constraint due to errors
-        final long latency = info.getMinimumLatency();
+        final long latency = Math.max(info.getMinimumLatency(), minLatency);
         if (latency > 0) {
             builder.setMinimumLatency(latency);
         }
 
+        // Visible downloads the user is waiting on run as user-initiated
+        // transfers, which aren't cut off by the regular job time limit.
+        // Those can't be delayed or wait for the device to go idle.
+        final boolean userInitiated = allowUserInitiated && userInitiatedDownloadJobs()
+                && info.isVisible() && latency == 0
+                && (info.mFlags & FLAG_REQUIRES_DEVICE_IDLE) == 0;
+        if (userInitiated) {
+            builder.setUserInitiated(true);
+        } else if (expedited) {
+            // Only asked for when nothing would hold the job back, so the
+            // constraints expedited jobs can't have don't apply
+            builder.setExpedited(true);
+        } else if (info.isVisible()) {
+            // When this download will show a notification, run with a higher
+            // bias, since it's effectively a foreground service
+            builder.setBias(JobInfo.BIAS_FOREGROUND_SERVICE);
+            builder.setFlags(JobInfo.FLAG_WILL_BE_FOREGROUND);
+        }
+
         // We always require a network, but the type of network might be further
         // restricted based on download request or user override
         builder.setRequiredNetworkType(info.getRequiredNetworkType(info.mTotalBytes));
@@ -198,6 +345,15 @@ public class Helpers {
             builder.setRequiresDeviceIdle(true);
         }
 
+        // User-initiated jobs always run at the highest priority
+        if (!userInitiated) {
+            if (info.mPriority == Constants.PRIORITY_HIGH) {
+                builder.setPriority(JobInfo.PRIORITY_HIGH);
+            } else if (info.mPriority == Constants.PRIORITY_LOW && !expedited) {
+                builder.setPriority(JobInfo.PRIORITY_LOW);
+            }
+        }
+
         // Provide estimated network size, when possible
         if (info.mTotalBytes > 0) {
             if (info.mCurrentBytes > 0 && !TextUtils.isEmpty(info.mETag)) {
@@ -218,15 +374,20 @@ public class Helpers {
             }
         }
 
+        return builder.build();
+    }
+
+    /**
+     * Return the package that jobs for the given {@link DownloadInfo} are
+     * scheduled on behalf of.
+     */
+    public static String getJobPackage(Context context, DownloadInfo info) {
         // If package name was filtered during insert (probably due to being
         // invalid), blame based on the requesting UID instead
-        String packageName = info.mPackage;
-        if (packageName == null) {
-            packageName = context.getPackageManager().getPackagesForUid(info.mUid)[0];
+        if (info.mPackage != null) {
+            return info.mPackage;
         }
-
-        scheduler.scheduleAsPackage(builder.build(), packageName, UserHandle.myUserId(), TAG);
-        return true;
+        return context.getPackageManager().getPackagesForUid(info.mUid)[0];
     }
 
     /*
@@ -880,7 +1041,11 @@ public class Helpers {
     }
 
     public static String buildQueryWithIds(ArrayList<Long> downloadIds) {
-        final StringBuilder queryBuilder = new StringBuilder(Downloads.Impl._ID + " in (");
+        return buildQueryWithIds(Downloads.Impl._ID, downloadIds);
+    }
+
+    public static String buildQueryWithIds(String column, ArrayList<Long> downloadIds) {
+        final StringBuilder queryBuilder = new StringBuilder(column + " in (");
         final int size = downloadIds.size();
         for (int i = 0; i < size; i++) {
             queryBuilder.append(downloadIds.get(i));
@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.net.Uri;
+import android.text.format.DateUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+
+/**
+ * Circuit breaker shared by all downloads from the same host. Per-download
+ * retry state would have every download of a failing host run out its own
+ * retries; instead, once {@link #FAILURE_THRESHOLD} attempts in a row fail,
+ * the host's circuit opens and every download of it waits out one common
+ * backoff, reported through {@link DownloadInfo#getMinimumLatency()}. After
+ * that a single download probes the host, and only when it succeeds are the
+ * others released.
+ * <p>
+ * Times are in the {@link SystemFacade#currentTimeMillis()} base and passed
+ * in by callers.
+ */
+public class HostHealthTracker {
+    /** Consecutive failed attempts, across downloads, that open a circuit */
+    @VisibleForTesting
+    static final int FAILURE_THRESHOLD = 5;
+
+    /** How long a probe may take before another download gets to try */
+    @VisibleForTesting
+    static final long PROBE_TIMEOUT = 10 * DateUtils.MINUTE_IN_MILLIS;
+
+    private static final long MIN_BACKOFF =
+            Constants.RETRY_FIRST_DELAY * DateUtils.SECOND_IN_MILLIS;
+    private static final long MAX_BACKOFF =
+            Constants.MAX_RETRY_AFTER * DateUtils.SECOND_IN_MILLIS;
+
+    private static class Host {
+        int mFailures;
+        /** Open until this time, after which a probe may run; 0 when closed */
+        long mOpenUntil;
+        long mBackoff;
+        long mProbeId = -1;
+        long mProbeStart;
+        /** Downloads turned away while the circuit was open */
+        final ArraySet<Long> mWaiting = new ArraySet<>();
+    }
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final ArrayMap<String, Host> mHosts = new ArrayMap<>();
+
+    /**
+     * Return the host that the given download uri counts against, or null
+     * when it has none.
+     */
+    public static String getHost(String uri) {
+        if (uri == null) {
+            return null;
+        }
+        return Uri.parse(uri).getHost();
+    }
+
+    /**
+     * Return how long the given download should wait before its job runs
+     * because of its host's circuit, or 0 when it can go ahead. Doesn't
+     * change any state, so it's safe to ask for any download at any time;
+     * only {@link #tryStart} holds a download back.
+     */
+    public long getDelay(String host, long id, long now) {
+        if (host == null) {
+            return 0;
+        }
+        synchronized (mLock) {
+            final Host state = mHosts.get(host);
+            if (state == null || state.mOpenUntil == 0) {
+                return 0;
+            }
+            if (now < state.mOpenUntil) {
+                return state.mOpenUntil - now;
+            }
+            if (canProbeLocked(state, id, now)) {
+                return 0;
+            }
+            return state.mBackoff;
+        }
+    }
+
+    /**
+     * Called right before a download starts talking to its host. Once the
+     * backoff has passed, the first download to get here becomes the probe.
+     *
+     * @return whether the download may run now
+     */
+    public boolean tryStart(String host, long id, long now) {
+        if (host == null) {
+            return true;
+        }
+        synchronized (mLock) {
+            final Host state = mHosts.get(host);
+            if (state == null || state.mOpenUntil == 0) {
+                return true;
+            }
+            if (now >= state.mOpenUntil && canProbeLocked(state, id, now)) {
+                state.mProbeId = id;
+                state.mProbeStart = now;
+                return true;
+            }
+            // Released early if the probe succeeds
+            state.mWaiting.add(id);
+            return false;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private static boolean canProbeLocked(Host state, long id, long now) {
+        return state.mProbeId == -1 || state.mProbeId == id
+                || now - state.mProbeStart > PROBE_TIMEOUT;
+    }
+
+    /**
+     * Record that a download reached its host. Closes the circuit if it was
+     * open.
+     *
+     * @return downloads held back by the circuit, which should be rescheduled
+     */
+    public ArrayList<Long> onSuccess(String host) {
+        final ArrayList<Long> released = new ArrayList<>();
+        if (host == null) {
+            return released;
+        }
+        synchronized (mLock) {
+            final Host state = mHosts.remove(host);
+            if (state != null) {
+                released.addAll(state.mWaiting);
+            }
+        }
+        return released;
+    }
+
+    /**
+     * Record that a download failed in a way that points at its host.
+     *
+     * @param retryAfter delay asked for by the host, or 0
+     */
+    public void onFailure(String host, long id, long retryAfter, long now) {
+        if (host == null) {
+            return;
+        }
+        synchronized (mLock) {
+            Host state = mHosts.get(host);
+            if (state == null) {
+                state = new Host();
+                mHosts.put(host, state);
+            }
+            state.mFailures++;
+
+            if (state.mOpenUntil == 0) {
+                if (state.mFailures >= FAILURE_THRESHOLD) {
+                    state.mBackoff = Math.max(MIN_BACKOFF, retryAfter);
+                    state.mOpenUntil = now + state.mBackoff;
+                }
+            } else if (state.mProbeId == id) {
+                // Failed probe; wait twice as long before the next one
+                state.mBackoff = Math.min(Math.max(state.mBackoff * 2, retryAfter),
+                        MAX_BACKOFF);
+                state.mOpenUntil = now + state.mBackoff;
+                state.mProbeId = -1;
+            } else if (retryAfter > 0) {
+                state.mOpenUntil = Math.max(state.mOpenUntil, now + retryAfter);
+            }
+        }
+    }
+
+    public void dump(IndentingPrintWriter pw, long now) {
+        pw.println("Host circuits:");
+        pw.increaseIndent();
+        synchronized (mLock) {
+            for (int i = 0; i < mHosts.size(); i++) {
+                final Host state = mHosts.valueAt(i);
+                pw.print(mHosts.keyAt(i) + ":");
+                pw.printPair(" failures", state.mFailures);
+                if (state.mOpenUntil != 0) {
+                    pw.printPair("openFor", Math.max(0, state.mOpenUntil - now) + "ms");
+                    pw.printPair("probe", state.mProbeId);
+                    pw.printPair("waiting", state.mWaiting.size());
+                }
+                pw.println();
+            }
+        }
+        pw.decreaseIndent();
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.INetworkPolicyListener;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkPolicyManager;
+import android.net.NetworkRequest;
+import android.util.ArraySet;
+import android.util.SparseIntArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Watches network policy and capabilities once for the whole process, on
+ * behalf of every running {@link DownloadThread}. Capabilities are cached per
+ * {@link Network} while anything is watching, so checking connectivity is a
+ * map lookup instead of a binder call; changes reported by the system drop
+ * the affected entries and tell the watchers that care to check again.
+ */
+public class NetworkMonitor {
+    /**
+     * A running transfer that wants to hear when its connectivity may have
+     * changed.
+     */
+    public interface Watcher {
+        /** UID the transfer runs on behalf of */
+        int getUid();
+
+        /** Network the transfer is bound to, or null if it doesn't have one yet */
+        Network getNetwork();
+
+        /** Called on a system thread; should only mark state for later */
+        void onConnectivityInvalidated();
+    }
+
+    private final Context mContext;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final ArraySet<Watcher> mWatchers = new ArraySet<>();
+    @GuardedBy("mLock")
+    private final SparseIntArray mUidRules = new SparseIntArray();
+    @GuardedBy("mLock")
+    private final SparseIntArray mUidPolicies = new SparseIntArray();
+
+    /** Whether the system is telling us about changes; the cache is only used then */
+    private volatile boolean mMonitoring;
+    private final ConcurrentHashMap<Network, NetworkCapabilities> mCapabilities =
+            new ConcurrentHashMap<>();
+    /** Bumped whenever cached capabilities are dropped or replaced */
+    @GuardedBy("mLock")
+    private long mGeneration;
+
+    public NetworkMonitor(Context context) {
+        mContext = context;
+    }
+
+    /**
+     * Start telling the given watcher about changes, registering with the
+     * system if it is the first one.
+     */
+    public void addWatcher(Watcher watcher) {
+        synchronized (mLock) {
+            mWatchers.add(watcher);
+            if (mWatchers.size() == 1) {
+                mGeneration++;
+                mCapabilities.clear();
+                mContext.getSystemService(NetworkPolicyManager.class)
+                        .registerListener(mPolicyListener);
+                mContext.getSystemService(ConnectivityManager.class).registerNetworkCallback(
+                        new NetworkRequest.Builder().clearCapabilities().build(),
+                        mNetworkCallback);
+                mMonitoring = true;
+            }
+        }
+    }
+
+    /**
+     * Stop telling the given watcher about changes, unregistering from the
+     * system if it was the last one.
+     */
+    public void removeWatcher(Watcher watcher) {
+        synchronized (mLock) {
+            if (mWatchers.remove(watcher) && mWatchers.isEmpty()) {
+                mMonitoring = false;
+                mContext.getSystemService(NetworkPolicyManager.class)
+                        .unregisterListener(mPolicyListener);
+                mContext.getSystemService(ConnectivityManager.class)
+                        .unregisterNetworkCallback(mNetworkCallback);
+                mGeneration++;
+                mCapabilities.clear();
+                mUidRules.clear();
+                mUidPolicies.clear();
+            }
+        }
+    }
+
+    /**
+     * Return the capabilities of the given network, or null if it is gone.
+     * Served from the cache while anything is watching.
+     */
+    public NetworkCapabilities getNetworkCapabilities(Network network) {
+        if (network == null) {
+            return null;
+        }
+        if (mMonitoring) {
+            final NetworkCapabilities caps = mCapabilities.get(network);
+            if (caps != null) {
+                return caps;
+            }
+        }
+
+        final long generation;
+        synchronized (mLock) {
+            generation = mGeneration;
+        }
+        final NetworkCapabilities caps = Helpers.getSystemFacade(mContext)
+                .getNetworkCapabilities(network);
+        synchronized (mLock) {
+            // Anything the system told us in the meantime is newer than this
+            if (caps != null && mMonitoring && generation == mGeneration) {
+                mCapabilities.put(network, caps);
+            }
+        }
+        return caps;
+    }
+
+    @VisibleForTesting
+    void invalidateNetwork(Network network) {
+        synchronized (mLock) {
+            mGeneration++;
+            mCapabilities.remove(network);
+        }
+        final Watcher[] watchers = getWatchers();
+        for (Watcher watcher : watchers) {
+            if (network.equals(watcher.getNetwork())) {
+                watcher.onConnectivityInvalidated();
+            }
+        }
+    }
+
+    /**
+     * Policy can block a UID from a network without changing the network
+     * itself, so only that UID's watchers need to check again; cached
+     * capabilities are per network and stay valid.
+     */
+    @VisibleForTesting
+    void invalidateUid(int uid) {
+        final Watcher[] watchers = getWatchers();
+        for (Watcher watcher : watchers) {
+            if (watcher.getUid() == uid) {
+                watcher.onConnectivityInvalidated();
+            }
+        }
+    }
+
+    @VisibleForTesting
+    void invalidateAll() {
+        clearCapabilities();
+        final Watcher[] watchers = getWatchers();
+        for (Watcher watcher : watchers) {
+            watcher.onConnectivityInvalidated();
+        }
+    }
+
+    private void clearCapabilities() {
+        synchronized (mLock) {
+            mGeneration++;
+            mCapabilities.clear();
+        }
+    }
+
+    private Watcher[] getWatchers() {
+        synchronized (mLock) {
+            return mWatchers.toArray(new Watcher[mWatchers.size()]);
+        }
+    }
+
+    public void dump(IndentingPrintWriter pw) {
+        pw.println("Network monitor:");
+        pw.increaseIndent();
+        pw.printPair("monitoring", mMonitoring);
+        synchronized (mLock) {
+            pw.printPair("watchers", mWatchers.size());
+            pw.println();
+            for (int i = 0; i < mUidRules.size(); i++) {
+                pw.printPair("uid", mUidRules.keyAt(i));
+                pw.printPair("rules", NetworkPolicyManager.uidRulesToString(
+                        mUidRules.valueAt(i)));
+                pw.println();
+            }
+        }
+        for (Network network : mCapabilities.keySet()) {
+            pw.println(network + ": " + mCapabilities.get(network));
+        }
+        pw.decreaseIndent();
+    }
+
+    private final INetworkPolicyListener mPolicyListener = new NetworkPolicyManager.Listener() {
+        @Override
+        public void onUidRulesChanged(int uid, int uidRules) {
+            // caller is NPMS, since we only register with them
+            synchronized (mLock) {
+                if (mUidRules.get(uid, -1) == uidRules) {
+                    return;
+                }
+                mUidRules.put(uid, uidRules);
+            }
+            invalidateUid(uid);
+        }
+
+        @Override
+        public void onMeteredIfacesChanged(String[] meteredIfaces) {
+            // caller is NPMS, since we only register with them
+            invalidateAll();
+        }
+
+        @Override
+        public void onRestrictBackgroundChanged(boolean restrictBackground) {
+            // caller is NPMS, since we only register with them
+            invalidateAll();
+        }
+
+        @Override
+        public void onUidPoliciesChanged(int uid, int uidPolicies) {
+            // caller is NPMS, since we only register with them
+            synchronized (mLock) {
+                if (mUidPolicies.get(uid, -1) == uidPolicies) {
+                    return;
+                }
+                mUidPolicies.put(uid, uidPolicies);
+            }
+            invalidateUid(uid);
+        }
+    };
+
+    private final ConnectivityManager.NetworkCallback mNetworkCallback =
+            new ConnectivityManager.NetworkCallback() {
+        @Override
+        public void onCapabilitiesChanged(Network network, NetworkCapabilities caps) {
+            synchronized (mLock) {
+                mGeneration++;
+                if (mMonitoring) {
+                    mCapabilities.put(network, caps);
+                }
+            }
+            final Watcher[] watchers = getWatchers();
+            for (Watcher watcher : watchers) {
+                if (network.equals(watcher.getNetwork())) {
+                    watcher.onConnectivityInvalidated();
+                }
+            }
+        }
+
+        @Override
+        public void onLost(Network network) {
+            invalidateNetwork(network);
+        }
+    };
+}
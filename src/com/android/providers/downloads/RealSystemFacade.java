@@ -56,6 +56,13 @@ class RealSystemFacade implements SystemFacade {
         return params.getNetwork();
     }
 
+    @Override
+    public Network getActiveNetwork() {
+        // Per-UID lookups need NETWORK_STACK; our own default network is
+        // close enough for guessing whether a job can start right away.
+        return mContext.getSystemService(ConnectivityManager.class).getActiveNetwork();
+    }
+
     @Override
     public NetworkCapabilities getNetworkCapabilities(Network network) {
         return mContext.getSystemService(ConnectivityManager.class)
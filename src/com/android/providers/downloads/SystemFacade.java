@@ -37,6 +37,12 @@ interface SystemFacade {
 
     public Network getNetwork(JobParameters params);
 
+    /**
+     * @return the default network of this process right now, or null if it
+     * has none; used to guess whether a job would be able to run
+     */
+    public Network getActiveNetwork();
+
     public NetworkCapabilities getNetworkCapabilities(Network network);
 
     /**
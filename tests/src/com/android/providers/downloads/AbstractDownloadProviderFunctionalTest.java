@@ -23,9 +23,12 @@ import android.app.DownloadManager;
 import android.app.NotificationManager;
 import android.app.job.JobParameters;
 import android.app.job.JobScheduler;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.content.pm.ProviderInfo;
 import android.database.ContentObserver;
 import android.database.Cursor;
@@ -56,6 +59,8 @@ import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
 
 public abstract class AbstractDownloadProviderFunctionalTest extends
         ServiceTestCase<DownloadJobService> {
@@ -98,6 +103,12 @@ public abstract class AbstractDownloadProviderFunctionalTest extends
                 Uri uri, ContentObserver observer) {
             mNotifyWasCalled = true;
         }
+
+        @Override
+        public synchronized void notifyChange(
+                Collection<Uri> uris, ContentObserver observer, int flags) {
+            mNotifyWasCalled = true;
+        }
     }
 
     static class MockMediaProvider extends MockContentProvider {
@@ -127,6 +138,21 @@ public abstract class AbstractDownloadProviderFunctionalTest extends
         public Bundle call(String method, String request, Bundle args) {
           return new Bundle();
         }
+
+        @Override
+        public ContentProviderResult[] applyBatch(
+                ArrayList<ContentProviderOperation> operations) {
+            final ContentProviderResult[] results =
+                    new ContentProviderResult[operations.size()];
+            for (int i = 0; i < operations.size(); i++) {
+                try {
+                    results[i] = operations.get(i).apply(this, results, i);
+                } catch (OperationApplicationException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            return results;
+        }
     }
 
     /**
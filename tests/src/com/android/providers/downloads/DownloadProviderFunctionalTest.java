@@ -18,14 +18,32 @@ package com.android.providers.downloads;
 
 import static android.text.format.DateUtils.SECOND_IN_MILLIS;
 
+import static java.net.HttpURLConnection.HTTP_NOT_FOUND;
 import static java.net.HttpURLConnection.HTTP_OK;
 
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.ContentProviderClient;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
+import android.content.Intent;
 import android.database.Cursor;
 import android.net.ConnectivityManager;
 import android.net.Uri;
+import android.os.Bundle;
 import android.os.Environment;
+import android.os.Parcelable;
 import android.os.SystemClock;
 import android.platform.test.annotations.EnableFlags;
 import android.platform.test.annotations.RequiresFlagsEnabled;
@@ -36,6 +54,7 @@ import androidx.test.filters.LargeTest;
 
 import com.android.providers.downloads.flags.Flags;
 
+import com.google.mockwebserver.MockResponse;
 import com.google.mockwebserver.MockWebServer;
 import com.google.mockwebserver.RecordedRequest;
 
@@ -44,9 +63,16 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 /**
@@ -94,6 +120,22 @@ public class DownloadProviderFunctionalTest extends AbstractDownloadProviderFunc
                 getDownloadFilename(downloadUri));
     }
 
+    @Test
+    public void testValidatedPathCached() throws Exception {
+        enqueueResponse(buildResponse(HTTP_OK, FILE_CONTENT));
+        final Uri downloadUri = requestDownload("/path");
+        runUntilStatus(downloadUri, Downloads.Impl.STATUS_SUCCESS);
+
+        final long seq = getChanges(0).getLong(Constants.EXTRA_NEXT_SEQ);
+        assertEquals(FILE_CONTENT, getDownloadContents(downloadUri));
+        // Opening the file again can skip the path checks
+        assertEquals(getDownloadFilename(downloadUri),
+                getDownloadField(downloadUri, Constants.VALIDATED_DATA));
+        assertEquals(FILE_CONTENT, getDownloadContents(downloadUri));
+        // Caching the checks isn't a change clients need to hear about
+        assertEquals(0, getChanges(seq).getParcelableArray(Constants.EXTRA_CHANGED_ROWS).length);
+    }
+
     @Test
     public void testDownloadToCache() throws Exception {
         enqueueResponse(buildResponse(HTTP_OK, FILE_CONTENT));
@@ -146,6 +188,528 @@ public class DownloadProviderFunctionalTest extends AbstractDownloadProviderFunc
         runUntilStatus(downloadUri, Downloads.Impl.STATUS_BAD_REQUEST);
     }
 
+    @Test
+    public void testChangesSince() throws Exception {
+        final Uri first = requestDownload("/path");
+        Bundle changes = getChanges(0);
+        assertEquals(1, changes.getParcelableArray(Constants.EXTRA_CHANGED_ROWS).length);
+        final long seq = changes.getLong(Constants.EXTRA_NEXT_SEQ);
+        assertEquals(0, getChanges(seq).getParcelableArray(Constants.EXTRA_CHANGED_ROWS).length);
+
+        final Uri second = requestDownload("/path");
+        updateDownload(first, Downloads.Impl.COLUMN_TITLE, "renamed");
+        assertEquals(1, mResolver.delete(second, null, null));
+
+        changes = getChanges(seq);
+        final Parcelable[] rows = changes.getParcelableArray(Constants.EXTRA_CHANGED_ROWS);
+        assertEquals(1, rows.length);
+        final ContentValues row = (ContentValues) rows[0];
+        assertEquals(ContentUris.parseId(first), (long) row.getAsLong(Downloads.Impl._ID));
+        assertEquals("renamed", row.getAsString(Downloads.Impl.COLUMN_TITLE));
+        assertTrue(row.getAsLong(Constants.CHANGE_SEQ) > seq);
+        final long[] deleted = changes.getLongArray(Constants.EXTRA_DELETED_IDS);
+        assertEquals(1, deleted.length);
+        assertEquals(ContentUris.parseId(second), deleted[0]);
+        assertFalse(changes.getBoolean(Constants.EXTRA_HAS_MORE));
+
+        final Bundle extras = new Bundle();
+        extras.putLong(Constants.EXTRA_SINCE_SEQ, seq);
+        extras.putInt(Constants.EXTRA_LIMIT, 0);
+        try {
+            mResolver.call(Downloads.Impl.CONTENT_URI, Constants.CALL_GET_CHANGES, null, extras);
+            fail("Empty page accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testArchivedDownloads() throws Exception {
+        final Uri downloadUri = requestDownload("/path");
+        updateDownload(downloadUri, Downloads.Impl.COLUMN_STATUS,
+                Integer.toString(Downloads.Impl.STATUS_SUCCESS));
+        updateDownload(downloadUri, Downloads.Impl.COLUMN_VISIBILITY,
+                Integer.toString(Downloads.Impl.VISIBILITY_VISIBLE));
+        updateDownload(downloadUri, Downloads.Impl.COLUMN_LAST_MODIFICATION, "0");
+
+        final DownloadProvider provider;
+        try (ContentProviderClient client =
+                mResolver.acquireContentProviderClient(Downloads.Impl.AUTHORITY)) {
+            provider = (DownloadProvider) client.getLocalContentProvider();
+        }
+        assertEquals(1, provider.archiveFinishedDownloads(System.currentTimeMillis()));
+        assertEquals(0, countDownloads(Constants.ACTIVE_DOWNLOADS_CONTENT_URI));
+        assertEquals(1, countDownloads(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI));
+        assertEquals(Downloads.Impl.STATUS_SUCCESS, getDownloadStatus(downloadUri));
+
+        // Writing to an archived download brings it back
+        updateDownload(downloadUri, Downloads.Impl.COLUMN_TITLE, "restored");
+        assertEquals(1, countDownloads(Constants.ACTIVE_DOWNLOADS_CONTENT_URI));
+        assertEquals(1, countDownloads(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI));
+    }
+
+    @Test
+    public void testDeleteProgress() throws Exception {
+        final long first = ContentUris.parseId(requestDownload("/first"));
+        final long second = ContentUris.parseId(requestDownload("/second"));
+
+        final DownloadProvider provider;
+        try (ContentProviderClient client =
+                mResolver.acquireContentProviderClient(Downloads.Impl.AUTHORITY)) {
+            provider = (DownloadProvider) client.getLocalContentProvider();
+        }
+        final CountDownLatch done = new CountDownLatch(1);
+        final DownloadDeleteQueue.ProgressListener listener = (completed, remaining) -> {
+            if (completed == 2 && remaining == 0) {
+                done.countDown();
+            }
+        };
+        provider.mDeleteQueue.addProgressListener(listener);
+        try {
+            assertEquals(2, mResolver.delete(Downloads.Impl.CONTENT_URI, null, null));
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+        } finally {
+            provider.mDeleteQueue.removeProgressListener(listener);
+        }
+
+        // Jobs are cancelled by the queue, not the thread that deleted the rows
+        final JobScheduler scheduler = mTestContext.getSystemService(JobScheduler.class);
+        verify(scheduler).cancel((int) first);
+        verify(scheduler).cancel((int) second);
+    }
+
+    @Test
+    public void testKeysetPagination() throws Exception {
+        // Rows share lastmod values so the id has to break the ties
+        final String[] lastmods = new String[] { "2000", "1000", "1000", "2000", "2000" };
+        final long[] ids = new long[lastmods.length];
+        for (int i = 0; i < ids.length; i++) {
+            final Uri downloadUri = requestDownload("/path");
+            updateDownload(downloadUri, Downloads.Impl.COLUMN_LAST_MODIFICATION, lastmods[i]);
+            ids[i] = ContentUris.parseId(downloadUri);
+        }
+
+        final String[] projection = new String[] {
+                Downloads.Impl._ID, Downloads.Impl.COLUMN_LAST_MODIFICATION };
+        final Bundle queryArgs = new Bundle();
+        queryArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, 2);
+        final ArrayList<Long> seen = new ArrayList<>();
+        while (true) {
+            try (Cursor cursor = mResolver.query(Downloads.Impl.CONTENT_URI, projection,
+                    queryArgs, null)) {
+                assertTrue(cursor.getCount() <= 2);
+                assertTrue(Arrays.asList(cursor.getExtras().getStringArray(
+                        ContentResolver.EXTRA_HONORED_ARGS))
+                        .contains(ContentResolver.QUERY_ARG_LIMIT));
+                if (!cursor.moveToLast()) {
+                    break;
+                }
+                queryArgs.putLong(Constants.QUERY_ARG_SEEK_LASTMOD, cursor.getLong(1));
+                queryArgs.putLong(Constants.QUERY_ARG_SEEK_ID, cursor.getLong(0));
+                cursor.moveToPosition(-1);
+                while (cursor.moveToNext()) {
+                    seen.add(cursor.getLong(0));
+                }
+            }
+        }
+        assertEquals(Arrays.asList(ids[4], ids[3], ids[0], ids[2], ids[1]), seen);
+
+        final Bundle offsetArgs = new Bundle();
+        offsetArgs.putString(ContentResolver.QUERY_ARG_SQL_SORT_ORDER, Downloads.Impl._ID);
+        offsetArgs.putInt(ContentResolver.QUERY_ARG_LIMIT, 2);
+        offsetArgs.putInt(ContentResolver.QUERY_ARG_OFFSET, 3);
+        try (Cursor cursor = mResolver.query(Downloads.Impl.CONTENT_URI, projection,
+                offsetArgs, null)) {
+            assertEquals(2, cursor.getCount());
+            cursor.moveToFirst();
+            assertEquals(ids[3], cursor.getLong(0));
+        }
+    }
+
+    @Test
+    public void testProgressSnapshot() throws Exception {
+        final Uri first = requestDownload("/path");
+        final Uri second = requestDownload("/path");
+        updateDownload(first, Downloads.Impl.COLUMN_CURRENT_BYTES, "10");
+        updateDownload(first, Downloads.Impl.COLUMN_TOTAL_BYTES, "100");
+
+        final Bundle extras = new Bundle();
+        extras.putLongArray(Constants.EXTRA_IDS, new long[] { ContentUris.parseId(first) });
+        final Bundle progress = mResolver.call(Downloads.Impl.CONTENT_URI,
+                Constants.CALL_GET_PROGRESS, null, extras);
+        assertEquals(1, progress.getLongArray(Constants.EXTRA_IDS).length);
+        assertEquals(ContentUris.parseId(first), progress.getLongArray(Constants.EXTRA_IDS)[0]);
+        assertEquals(getDownloadStatus(first), progress.getIntArray(Constants.EXTRA_STATUSES)[0]);
+        assertEquals(10, progress.getLongArray(Constants.EXTRA_CURRENT_BYTES)[0]);
+        assertEquals(100, progress.getLongArray(Constants.EXTRA_TOTAL_BYTES)[0]);
+        assertEquals(0, progress.getLongArray(Constants.EXTRA_SPEEDS)[0]);
+
+        assertEquals(2, mResolver.call(Downloads.Impl.CONTENT_URI, Constants.CALL_GET_PROGRESS,
+                null, null).getLongArray(Constants.EXTRA_IDS).length);
+    }
+
+    @Test
+    public void testVersionBumpedByStateChanges() throws Exception {
+        final Uri downloadUri = requestDownload("/path");
+        final long version = Long.parseLong(getDownloadField(downloadUri, Constants.VERSION));
+
+        updateDownload(downloadUri, Downloads.Impl.COLUMN_TITLE, "renamed");
+        assertEquals(version, Long.parseLong(getDownloadField(downloadUri, Constants.VERSION)));
+
+        updateDownload(downloadUri, Downloads.Impl.COLUMN_CONTROL,
+                Integer.toString(Downloads.Impl.CONTROL_PAUSED));
+        assertEquals(version + 1,
+                Long.parseLong(getDownloadField(downloadUri, Constants.VERSION)));
+
+        // Writing the same value again isn't a change
+        updateDownload(downloadUri, Downloads.Impl.COLUMN_CONTROL,
+                Integer.toString(Downloads.Impl.CONTROL_PAUSED));
+        assertEquals(version + 1,
+                Long.parseLong(getDownloadField(downloadUri, Constants.VERSION)));
+
+        // A write guarded by a stale version doesn't apply
+        final ContentValues values = new ContentValues();
+        values.put(Downloads.Impl.COLUMN_TITLE, "stale");
+        assertEquals(0, mResolver.update(downloadUri, values, Constants.VERSION + "=?",
+                new String[] { Long.toString(version) }));
+    }
+
+    @Test
+    public void testTotals() throws Exception {
+        final Uri first = requestDownload("/path");
+        final Uri second = requestDownload("/path");
+        updateDownload(first, Downloads.Impl.COLUMN_TOTAL_BYTES, "100");
+        updateDownload(first, Downloads.Impl.COLUMN_CURRENT_BYTES, "10");
+
+        Bundle totals = getTotals();
+        assertEquals(2, totals.getLong(Constants.EXTRA_ACTIVE_COUNT));
+        assertEquals(90, totals.getLong(Constants.EXTRA_REMAINING_BYTES));
+
+        assertEquals(1, mResolver.delete(second, null, null));
+        updateDownload(first, Downloads.Impl.COLUMN_CURRENT_BYTES, "40");
+        totals = getTotals();
+        assertEquals(1, totals.getLong(Constants.EXTRA_ACTIVE_COUNT));
+        assertEquals(60, totals.getLong(Constants.EXTRA_REMAINING_BYTES));
+
+        updateDownload(first, Downloads.Impl.COLUMN_STATUS,
+                Integer.toString(Downloads.Impl.STATUS_SUCCESS));
+        totals = getTotals();
+        assertEquals(0, totals.getLong(Constants.EXTRA_ACTIVE_COUNT));
+        final Parcelable[] rows = totals.getParcelableArray(Constants.EXTRA_TOTALS);
+        assertEquals(1, rows.length);
+        assertEquals(1, (long) ((ContentValues) rows[0]).getAsLong(Constants.TOTALS_COUNT));
+        assertTrue(((ContentValues) rows[0]).containsKey(Downloads.Impl.COLUMN_OTHER_UID));
+    }
+
+    @Test
+    public void testSearch() throws Exception {
+        final Uri report = requestDownload("/path");
+        final Uri photos = requestDownload("/path");
+        updateDownload(report, Downloads.Impl.COLUMN_TITLE, "Quarterly report");
+        updateDownload(photos, Downloads.Impl.COLUMN_TITLE, "Holiday");
+        updateDownload(photos, Downloads.Impl.COLUMN_DESCRIPTION, "Photos from the beach");
+
+        assertEquals(Arrays.asList(ContentUris.parseId(report)), search("quart"));
+        assertEquals(Arrays.asList(ContentUris.parseId(photos)), search("beach photo"));
+        assertEquals(Arrays.asList(), search("quarterly beach"));
+
+        final Uri invoice = requestDownload("/path");
+        updateDownload(invoice, Downloads.Impl.COLUMN_TITLE, "ÜBERSICHT Rechnung");
+        assertEquals(Arrays.asList(ContentUris.parseId(invoice)), search("übersicht"));
+
+        assertEquals(1, mResolver.delete(report, null, null));
+        assertEquals(Arrays.asList(), search("report"));
+    }
+
+    @Test
+    public void testCompletedDownloadRegisteredInBackground() throws Exception {
+        final File file = new File(getContext().getCacheDir(), "completed.txt");
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(FILE_CONTENT.getBytes());
+        }
+        final ContentValues values = new ContentValues();
+        values.put(Downloads.Impl._DATA, file.getPath());
+        values.put(Downloads.Impl.COLUMN_DESTINATION,
+                Downloads.Impl.DESTINATION_NON_DOWNLOADMANAGER_DOWNLOAD);
+        values.put(Downloads.Impl.COLUMN_MIME_TYPE, "text/plain");
+        values.put(Downloads.Impl.COLUMN_TOTAL_BYTES, FILE_CONTENT.length());
+        values.put(Downloads.Impl.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI, true);
+        final Uri downloadUri = mResolver.insert(Downloads.Impl.CONTENT_URI, values);
+        assertEquals(Downloads.Impl.STATUS_SUCCESS, getDownloadStatus(downloadUri));
+
+        final Bundle result = mResolver.call(Downloads.Impl.CONTENT_URI,
+                Constants.CALL_AWAIT_MEDIA_REGISTRATION, downloadUri.toString(), null);
+        assertTrue(result.getBoolean(Constants.EXTRA_REGISTERED));
+        // The mock MediaStore doesn't index anything, so there's no uri to fill in
+        assertNull(result.getString(Constants.EXTRA_MEDIASTORE_URI));
+        assertEquals(Integer.toString(Downloads.Impl.MEDIA_NOT_SCANNED),
+                getDownloadField(downloadUri, Downloads.Impl.COLUMN_MEDIA_SCANNED));
+
+        try {
+            mResolver.call(Downloads.Impl.CONTENT_URI,
+                    Constants.CALL_AWAIT_MEDIA_REGISTRATION, null, null);
+            fail("Missing uri accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testBatchedDownloadsShareJob() throws Exception {
+        enqueueResponse(buildResponse(HTTP_OK, FILE_CONTENT));
+        enqueueResponse(buildResponse(HTTP_OK, FILE_CONTENT));
+        final Uri first = requestDownload("/first");
+        final Uri second = requestDownload("/second");
+        updateDownload(first, Downloads.Impl.COLUMN_FLAGS,
+                Integer.toString(Constants.FLAG_BATCHABLE));
+        updateDownload(second, Downloads.Impl.COLUMN_FLAGS,
+                Integer.toString(Constants.FLAG_BATCHABLE));
+
+        // Only the first job is started; the second download runs under it
+        runUntilStatus(first, Downloads.Impl.STATUS_SUCCESS);
+        waitForStatus(second, Downloads.Impl.STATUS_SUCCESS);
+        assertEquals("/first", takeRequest().getPath());
+        assertEquals("/second", takeRequest().getPath());
+        assertEquals(FILE_CONTENT, getDownloadContents(second));
+
+        // The second download kept a delayed job in case the batch was cut short
+        final long secondId = ContentUris.parseId(second);
+        final JobScheduler scheduler = mTestContext.getSystemService(JobScheduler.class);
+        verify(scheduler).scheduleAsPackage(argThat(job -> job.getId() == secondId
+                && job.getMinLatencyMillis() >= Constants.PARKED_RECHECK_DELAY),
+                anyString(), anyInt(), anyString());
+    }
+
+    @Test
+    public void testSchedulingState() throws Exception {
+        final Uri running = requestDownload("/path");
+        final Uri paused = requestDownload("/path");
+        updateDownload(paused, Downloads.Impl.COLUMN_CONTROL,
+                Integer.toString(Downloads.Impl.CONTROL_PAUSED));
+
+        final ArrayList<Long> ids = new ArrayList<>();
+        ids.add(ContentUris.parseId(running));
+        ids.add(ContentUris.parseId(paused));
+        ids.add(Long.MAX_VALUE);
+        final List<DownloadInfo> infos = DownloadInfo.querySchedulingState(mTestContext, ids);
+        assertEquals(2, infos.size());
+        for (DownloadInfo info : infos) {
+            if (info.mId == ContentUris.parseId(running)) {
+                assertTrue(info.isReadyToSchedule());
+                assertNotNull(Helpers.buildJobInfo(mTestContext, info));
+            } else {
+                assertEquals(ContentUris.parseId(paused), info.mId);
+                assertFalse(info.isReadyToSchedule());
+            }
+        }
+    }
+
+    @Test
+    public void testPriority() throws Exception {
+        final ContentValues values = new ContentValues();
+        values.put(Downloads.Impl.COLUMN_URI, getServerUri("/path"));
+        values.put(Downloads.Impl.COLUMN_DESTINATION, Downloads.Impl.DESTINATION_EXTERNAL);
+        values.put(Constants.PRIORITY, Constants.PRIORITY_HIGH);
+        final Uri high = mResolver.insert(Downloads.Impl.CONTENT_URI, values);
+        assertEquals(Integer.toString(Constants.PRIORITY_HIGH),
+                getDownloadField(high, Constants.PRIORITY));
+
+        final DownloadInfo info = DownloadInfo.querySchedulingState(mTestContext,
+                ContentUris.parseId(high));
+        assertEquals(JobInfo.PRIORITY_HIGH,
+                Helpers.buildJobInfo(mTestContext, info).getPriority());
+
+        values.put(Constants.PRIORITY, Constants.PRIORITY_HIGH + 1);
+        try {
+            mResolver.insert(Downloads.Impl.CONTENT_URI, values);
+            fail("Out of range priority accepted");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testParkedDownloadResumes() throws Exception {
+        enqueueResponse(buildSlowResponse());
+        enqueueResponse(buildResponse(HTTP_OK, FILE_CONTENT));
+        final Uri high = requestDownload("/high", Constants.PRIORITY_HIGH);
+        final Uri low = requestDownload("/low", Constants.PRIORITY_DEFAULT);
+        final long lowId = ContentUris.parseId(low);
+        final JobScheduler scheduler = mTestContext.getSystemService(JobScheduler.class);
+
+        startDownload(ContentUris.parseId(high));
+        assertEquals("/high", takeRequest().getPath());
+
+        // Turned away while the higher priority download runs, but still left with a job
+        clearInvocations(scheduler);
+        startDownload(lowId);
+        verify(scheduler).scheduleAsPackage(argThat(job -> job.getId() == lowId
+                && job.getMinLatencyMillis() == Constants.PARKED_RECHECK_DELAY),
+                anyString(), anyInt(), anyString());
+        assertEquals(Downloads.Impl.STATUS_PENDING, getDownloadStatus(low));
+
+        // Brought back without the delay once the higher priority one is done
+        waitForStatus(high, Downloads.Impl.STATUS_SUCCESS);
+        verify(scheduler, timeout(5000)).scheduleAsPackage(argThat(job -> job.getId() == lowId
+                && job.getMinLatencyMillis() == 0), anyString(), anyInt(), anyString());
+        runUntilStatus(low, Downloads.Impl.STATUS_SUCCESS);
+        assertEquals("/low", takeRequest().getPath());
+    }
+
+    @Test
+    public void testPreemptedDownloadRescheduled() throws Exception {
+        enqueueResponse(buildSlowResponse());
+        enqueueResponse(buildResponse(HTTP_OK, FILE_CONTENT));
+        final Uri low = requestDownload("/low", Constants.PRIORITY_DEFAULT);
+        final Uri high = requestDownload("/high", Constants.PRIORITY_HIGH);
+        final long lowId = ContentUris.parseId(low);
+        final JobScheduler scheduler = mTestContext.getSystemService(JobScheduler.class);
+
+        startDownload(lowId);
+        assertEquals("/low", takeRequest().getPath());
+        clearInvocations(scheduler);
+        runUntilStatus(high, Downloads.Impl.STATUS_SUCCESS);
+        assertEquals("/high", takeRequest().getPath());
+
+        // The low priority download pauses itself at its next checkpoint, and
+        // gets its job back since nothing is ahead of it anymore
+        waitForStatus(low, Downloads.Impl.STATUS_PENDING);
+        verify(scheduler, timeout(5000)).scheduleAsPackage(argThat(job -> job.getId() == lowId
+                && job.getMinLatencyMillis() == 0), anyString(), anyInt(), anyString());
+    }
+
+    @Test
+    @EnableFlags({Flags.FLAG_USER_INITIATED_DOWNLOAD_JOBS})
+    public void testVisibleDownloadsUserInitiated() throws Exception {
+        final Uri downloadUri = requestDownload("/path");
+        updateDownload(downloadUri, Downloads.Impl.COLUMN_VISIBILITY,
+                Integer.toString(Downloads.Impl.VISIBILITY_VISIBLE));
+        final DownloadInfo info = DownloadInfo.querySchedulingState(mTestContext,
+                ContentUris.parseId(downloadUri));
+        assertTrue(Helpers.buildJobInfo(mTestContext, info).isUserInitiated());
+        assertFalse(Helpers.buildJobInfo(mTestContext, info, false).isUserInitiated());
+
+        info.mVisibility = Downloads.Impl.VISIBILITY_HIDDEN;
+        assertFalse(Helpers.buildJobInfo(mTestContext, info).isUserInitiated());
+    }
+
+    @Test
+    public void testCanStartImmediately() throws Exception {
+        final Uri downloadUri = requestDownload("/path");
+        final DownloadInfo info = DownloadInfo.querySchedulingState(mTestContext,
+                ContentUris.parseId(downloadUri));
+        assertTrue(Helpers.canStartImmediately(mTestContext, info));
+
+        // Wifi-only download while on a metered network
+        mSystemFacade.mIsMetered = true;
+        info.mAllowMetered = false;
+        assertFalse(Helpers.canStartImmediately(mTestContext, info));
+
+        info.mAllowMetered = true;
+        assertTrue(Helpers.canStartImmediately(mTestContext, info));
+        mSystemFacade.mActiveNetworkType = null;
+        assertFalse(Helpers.canStartImmediately(mTestContext, info));
+    }
+
+    @Test
+    public void testReconcileJobs() throws Exception {
+        final long missing = ContentUris.parseId(requestDownload("/missing"));
+        final long current = ContentUris.parseId(requestDownload("/current"));
+        final Uri pausedUri = requestDownload("/paused");
+        final long paused = ContentUris.parseId(pausedUri);
+        final JobInfo currentJob = Helpers.buildJobInfo(mTestContext,
+                DownloadInfo.querySchedulingState(mTestContext, current), false);
+        final JobInfo pausedJob = Helpers.buildJobInfo(mTestContext,
+                DownloadInfo.querySchedulingState(mTestContext, paused), false);
+        updateDownload(pausedUri, Downloads.Impl.COLUMN_CONTROL,
+                Integer.toString(Downloads.Impl.CONTROL_PAUSED));
+        final JobInfo otherJob = new JobInfo.Builder((int) missing,
+                new ComponentName(mTestContext, "com.example.OtherJobService"))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .build();
+
+        final JobScheduler scheduler = mTestContext.getSystemService(JobScheduler.class);
+        clearInvocations(scheduler);
+        when(scheduler.getAllPendingJobs()).thenReturn(
+                Arrays.asList(currentJob, pausedJob, otherJob));
+        DownloadReceiver.reconcileJobs(mTestContext);
+
+        // Only the download without a job is scheduled
+        verify(scheduler).scheduleAsPackage(argThat(job -> job.getId() == missing),
+                anyString(), anyInt(), anyString());
+        verify(scheduler, never()).scheduleAsPackage(argThat(job -> job.getId() != missing),
+                anyString(), anyInt(), anyString());
+        // Jobs of downloads that can't run are canceled, other services' are left alone
+        verify(scheduler).cancel((int) paused);
+        verify(scheduler, never()).cancel((int) current);
+        verify(scheduler, never()).cancel((int) missing);
+    }
+
+    @Test
+    public void testGroupCompletesOnce() throws Exception {
+        enqueueResponse(buildResponse(HTTP_OK, FILE_CONTENT));
+        enqueueResponse(buildResponse(HTTP_OK, FILE_CONTENT));
+        final Uri first = requestGroupDownload("/first", Constants.GROUP_FAILURE_CONTINUE);
+        final Uri second = requestGroupDownload("/second", Constants.GROUP_FAILURE_CONTINUE);
+
+        // The rest of the group runs under the first download's job
+        runUntilStatus(first, Downloads.Impl.STATUS_SUCCESS);
+        waitForStatus(second, Downloads.Impl.STATUS_SUCCESS);
+
+        final List<Intent> broadcasts = waitForGroupBroadcasts();
+        assertEquals(1, broadcasts.size());
+        final long[] ids = broadcasts.get(0).getLongArrayExtra(
+                Constants.EXTRA_GROUP_DOWNLOAD_IDS);
+        Arrays.sort(ids);
+        assertTrue(Arrays.equals(new long[] {
+                ContentUris.parseId(first), ContentUris.parseId(second) }, ids));
+    }
+
+    @Test
+    public void testGroupCanceledOnFailure() throws Exception {
+        enqueueResponse(buildResponse(HTTP_NOT_FOUND, ""));
+        final Uri first = requestGroupDownload("/first", Constants.GROUP_FAILURE_CANCEL);
+        final Uri second = requestGroupDownload("/second", Constants.GROUP_FAILURE_CANCEL);
+
+        runUntilStatus(first, HTTP_NOT_FOUND);
+        waitForStatus(second, Downloads.Impl.STATUS_CANCELED);
+        assertEquals(1, waitForGroupBroadcasts().size());
+
+        // Its job would only be turned away now
+        final JobScheduler scheduler = mTestContext.getSystemService(JobScheduler.class);
+        verify(scheduler, timeout(5000)).cancel((int) ContentUris.parseId(second));
+    }
+
+    private List<Long> search(String search) {
+        final Bundle queryArgs = new Bundle();
+        queryArgs.putString(Constants.QUERY_ARG_SEARCH, search);
+        final ArrayList<Long> ids = new ArrayList<>();
+        try (Cursor cursor = mResolver.query(Downloads.Impl.CONTENT_URI,
+                new String[] { Downloads.Impl._ID }, queryArgs, null)) {
+            while (cursor.moveToNext()) {
+                ids.add(cursor.getLong(0));
+            }
+        }
+        return ids;
+    }
+
+    private Bundle getTotals() {
+        return mResolver.call(Downloads.Impl.CONTENT_URI, Constants.CALL_GET_TOTALS, null, null);
+    }
+
+    private int countDownloads(Uri uri) {
+        try (Cursor cursor = mResolver.query(uri, new String[] { Downloads.Impl._ID },
+                null, null, null)) {
+            return cursor.getCount();
+        }
+    }
+
+    private Bundle getChanges(long sinceSeq) {
+        final Bundle extras = new Bundle();
+        extras.putLong(Constants.EXTRA_SINCE_SEQ, sinceSeq);
+        extras.putStringArray(Constants.EXTRA_PROJECTION,
+                new String[] { Downloads.Impl._ID, Downloads.Impl.COLUMN_TITLE });
+        return mResolver.call(Downloads.Impl.CONTENT_URI, Constants.CALL_GET_CHANGES, null,
+                extras);
+    }
+
     /**
      * Read a downloaded file from disk.
      */
@@ -160,7 +724,10 @@ public class DownloadProviderFunctionalTest extends AbstractDownloadProviderFunc
 
     private void runUntilStatus(Uri downloadUri, int expected) throws Exception {
         startDownload(ContentUris.parseId(downloadUri));
+        waitForStatus(downloadUri, expected);
+    }
 
+    private void waitForStatus(Uri downloadUri, int expected) throws Exception {
         int actual = -1;
 
         final long timeout = SystemClock.elapsedRealtime() + (15 * SECOND_IN_MILLIS);
@@ -206,6 +773,64 @@ public class DownloadProviderFunctionalTest extends AbstractDownloadProviderFunc
         return mResolver.insert(Downloads.Impl.CONTENT_URI, values);
     }
 
+    /**
+     * Request a download with the given priority.
+     */
+    private Uri requestDownload(String path, int priority)
+            throws MalformedURLException, UnknownHostException {
+        final ContentValues values = new ContentValues();
+        values.put(Downloads.Impl.COLUMN_URI, getServerUri(path));
+        values.put(Downloads.Impl.COLUMN_DESTINATION, Downloads.Impl.DESTINATION_EXTERNAL);
+        values.put(Constants.PRIORITY, priority);
+        return mResolver.insert(Downloads.Impl.CONTENT_URI, values);
+    }
+
+    /**
+     * Response that takes a few seconds to arrive, and that the download
+     * could resume from.
+     */
+    private MockResponse buildSlowResponse() {
+        return buildResponse(HTTP_OK, STRING_1K + STRING_1K + STRING_1K)
+                .setHeader("Etag", "\"slow\"")
+                .throttleBody(1024, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Request a download in the test group, asking for a completion broadcast.
+     */
+    private Uri requestGroupDownload(String path, int failurePolicy)
+            throws MalformedURLException, UnknownHostException {
+        final ContentValues values = new ContentValues();
+        values.put(Downloads.Impl.COLUMN_URI, getServerUri(path));
+        values.put(Downloads.Impl.COLUMN_DESTINATION, Downloads.Impl.DESTINATION_EXTERNAL);
+        values.put(Downloads.Impl.COLUMN_NOTIFICATION_PACKAGE, mTestContext.getPackageName());
+        values.put(Downloads.Impl.COLUMN_NOTIFICATION_CLASS, TAG);
+        values.put(Constants.GROUP_ID, "bundle");
+        values.put(Constants.GROUP_FAILURE_POLICY, failurePolicy);
+        return mResolver.insert(Downloads.Impl.CONTENT_URI, values);
+    }
+
+    /**
+     * Wait for the completion broadcast of the test group, returning every
+     * one sent for it.
+     */
+    private List<Intent> waitForGroupBroadcasts() throws Exception {
+        final long timeout = SystemClock.elapsedRealtime() + (5 * SECOND_IN_MILLIS);
+        while (SystemClock.elapsedRealtime() < timeout) {
+            final List<Intent> broadcasts = new ArrayList<>();
+            for (Intent intent : new ArrayList<>(mSystemFacade.mBroadcastsSent)) {
+                if ("bundle".equals(intent.getStringExtra(Constants.EXTRA_GROUP_ID))) {
+                    broadcasts.add(intent);
+                }
+            }
+            if (!broadcasts.isEmpty()) {
+                return broadcasts;
+            }
+            SystemClock.sleep(100);
+        }
+        throw new TimeoutException("No completion broadcast for group");
+    }
+
     /**
      * Update one field of a download in the provider.
      */
@@ -0,0 +1,246 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.Downloads;
+import android.util.Log;
+import android.util.SparseIntArray;
+
+import androidx.test.filters.LargeTest;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rough timing of {@link DownloadProvider} operations as the size of the
+ * download history grows. Results are logged rather than asserted, since
+ * absolute numbers depend heavily on the device.
+ */
+@LargeTest
+public class DownloadProviderPerfTest extends AbstractDownloadProviderFunctionalTest {
+    private static final String TAG = "DownloadProviderPerfTest";
+
+    private static final int[] ROW_COUNTS = { 10, 100, 1000 };
+    private static final int THROUGHPUT_ITERATIONS = 2000;
+
+    /** Simulated workload for comparing {@link DownloadQueuePolicy} choices */
+    private static final int SIM_DOWNLOADS = 200;
+    private static final int SIM_UIDS = 8;
+    private static final long SIM_TICK_MILLIS = 100;
+    private static final long SIM_BYTES_PER_SECOND = 10 * 1024 * 1024;
+
+    public DownloadProviderPerfTest() {
+        super(new FakeSystemFacade());
+    }
+
+    public void testStartup() throws Exception {
+        for (int rows : ROW_COUNTS) {
+            cleanUpDownloads();
+            insertDownloads(rows);
+
+            final DownloadProvider provider = new DownloadProvider();
+            provider.mSystemFacade = mSystemFacade;
+            final ProviderInfo info = new ProviderInfo();
+            info.authority = "downloads";
+
+            long start = SystemClock.elapsedRealtimeNanos();
+            provider.attachInfo(mTestContext, info);
+            final long createNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+            // Let the pass posted by onCreate() finish so it doesn't overlap ours
+            flushAsyncHandler();
+
+            start = SystemClock.elapsedRealtimeNanos();
+            provider.grantAllDownloadsPermissions();
+            final long grantNanos = SystemClock.elapsedRealtimeNanos() - start;
+            provider.shutdown();
+
+            Log.i(TAG, "rows=" + rows + " onCreate=" + (createNanos / 1000) + "us"
+                    + " deferredGrants=" + (grantNanos / 1000) + "us");
+            assertEquals(rows, countDownloads());
+        }
+    }
+
+    private static void flushAsyncHandler() throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        Helpers.getAsyncHandler().post(latch::countDown);
+        assertTrue(latch.await(30, TimeUnit.SECONDS));
+    }
+
+    public void testBulkDelete() throws Exception {
+        for (int rows : ROW_COUNTS) {
+            cleanUpDownloads();
+            insertDownloads(rows);
+
+            final long start = SystemClock.elapsedRealtimeNanos();
+            final int deleted = mResolver.delete(Downloads.Impl.CONTENT_URI, null, null);
+            final long deleteNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+            Log.i(TAG, "rows=" + rows + " delete=" + (deleteNanos / 1000) + "us");
+            assertEquals(rows, deleted);
+            assertEquals(0, countDownloads());
+        }
+    }
+
+    public void testSingleRowThroughput() throws Exception {
+        cleanUpDownloads();
+        final long[] ids = insertDownloads(ROW_COUNTS[1]);
+        final String[] projection = new String[] {
+                Downloads.Impl._ID, Downloads.Impl.COLUMN_STATUS,
+                Downloads.Impl.COLUMN_CURRENT_BYTES, Downloads.Impl.COLUMN_TOTAL_BYTES };
+        final ContentValues values = new ContentValues();
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < THROUGHPUT_ITERATIONS; i++) {
+            final Uri uri = ContentUris.withAppendedId(Downloads.Impl.CONTENT_URI,
+                    ids[i % ids.length]);
+            try (Cursor cursor = mResolver.query(uri, projection, null, null, null)) {
+                assertEquals(1, cursor.getCount());
+            }
+        }
+        final long queryNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < THROUGHPUT_ITERATIONS; i++) {
+            final Uri uri = ContentUris.withAppendedId(Downloads.Impl.CONTENT_URI,
+                    ids[i % ids.length]);
+            values.put(Downloads.Impl.COLUMN_TITLE, "title" + i);
+            assertEquals(1, mResolver.update(uri, values, null, null));
+        }
+        final long updateNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        Log.i(TAG, "iterations=" + THROUGHPUT_ITERATIONS
+                + " query=" + (THROUGHPUT_ITERATIONS * 1000000000L / queryNanos) + "/s"
+                + " update=" + (THROUGHPUT_ITERATIONS * 1000000000L / updateNanos) + "/s");
+    }
+
+    /**
+     * Replay the same simulated arrivals under each queue policy, with the
+     * link shared evenly between running downloads, and compare how long
+     * downloads took from arrival to completion.
+     */
+    public void testQueuePolicySimulation() throws Exception {
+        final DownloadQueuePolicy[] policies = {
+                DownloadQueuePolicy.FIFO,
+                DownloadQueuePolicy.SHORTEST_REMAINING_FIRST,
+                DownloadQueuePolicy.FAIR_SHARE };
+        final String[] names = { "fifo", "shortestRemaining", "fairShare" };
+        for (int i = 0; i < policies.length; i++) {
+            final long[] completion = simulateQueue(policies[i]);
+            assertEquals(SIM_DOWNLOADS, completion.length);
+
+            long total = 0;
+            for (long millis : completion) {
+                total += millis;
+            }
+            Arrays.sort(completion);
+            Log.i(TAG, "policy=" + names[i] + " downloads=" + SIM_DOWNLOADS
+                    + " mean=" + (total / completion.length) + "ms"
+                    + " p95=" + completion[(completion.length * 95) / 100] + "ms");
+        }
+    }
+
+    /**
+     * @return time from arrival to completion of every simulated download
+     */
+    private long[] simulateQueue(DownloadQueuePolicy policy) {
+        mSystemFacade.setUp();
+        final Random random = new Random(42);
+
+        // Half of the downloads come from one busy app; sizes range from
+        // 10KB to 500MB, spread evenly on a log scale
+        final ArrayList<DownloadInfo> pending = new ArrayList<>();
+        final long[] arrivals = new long[SIM_DOWNLOADS];
+        long arrival = 0;
+        for (int i = 0; i < SIM_DOWNLOADS; i++) {
+            final DownloadInfo info = new DownloadInfo(mTestContext);
+            info.mId = i;
+            info.mUid = random.nextBoolean() ? 0 : 1 + random.nextInt(SIM_UIDS - 1);
+            info.mTotalBytes = (long) (10 * 1024 * Math.pow(50000, random.nextDouble()));
+            info.mVisibility = random.nextInt(4) == 0 ? Downloads.Impl.VISIBILITY_VISIBLE
+                    : Downloads.Impl.VISIBILITY_HIDDEN;
+            arrival += (long) (-Math.log(1 - random.nextDouble()) * 2000);
+            arrivals[i] = arrival;
+            pending.add(info);
+        }
+
+        final ArrayList<DownloadInfo> queued = new ArrayList<>();
+        final ArrayList<DownloadInfo> running = new ArrayList<>();
+        final SparseIntArray runningPerUid = new SparseIntArray();
+        final long[] completion = new long[SIM_DOWNLOADS];
+        int completed = 0;
+        while (completed < SIM_DOWNLOADS) {
+            final long now = mSystemFacade.currentTimeMillis();
+            while (!pending.isEmpty() && arrivals[(int) pending.get(0).mId] <= now) {
+                queued.add(pending.remove(0));
+            }
+            while (!queued.isEmpty() && running.size() < Constants.MAX_RUNNING_DOWNLOADS) {
+                final DownloadInfo next = queued.remove(policy.pickNext(queued, runningPerUid));
+                running.add(next);
+                runningPerUid.put(next.mUid, runningPerUid.get(next.mUid) + 1);
+            }
+
+            mSystemFacade.incrementTimeMillis(SIM_TICK_MILLIS);
+            if (running.isEmpty()) {
+                continue;
+            }
+            final long share = (SIM_BYTES_PER_SECOND * SIM_TICK_MILLIS / 1000) / running.size();
+            for (int i = running.size() - 1; i >= 0; i--) {
+                final DownloadInfo info = running.get(i);
+                info.mCurrentBytes += share;
+                if (info.mCurrentBytes >= info.mTotalBytes) {
+                    running.remove(i);
+                    runningPerUid.put(info.mUid, runningPerUid.get(info.mUid) - 1);
+                    completion[completed++] = mSystemFacade.currentTimeMillis()
+                            - arrivals[(int) info.mId];
+                }
+            }
+        }
+        return completion;
+    }
+
+    private long[] insertDownloads(int count) {
+        final ContentValues values = new ContentValues();
+        values.put(Downloads.Impl.COLUMN_URI, "http://example.com/file");
+        values.put(Downloads.Impl.COLUMN_DESTINATION,
+                Downloads.Impl.DESTINATION_CACHE_PARTITION_PURGEABLE);
+        values.put(Downloads.Impl.COLUMN_CONTROL, Downloads.Impl.CONTROL_PAUSED);
+        final long[] ids = new long[count];
+        for (int i = 0; i < count; i++) {
+            final Uri uri = mResolver.insert(Downloads.Impl.CONTENT_URI, values);
+            assertNotNull(uri);
+            ids[i] = ContentUris.parseId(uri);
+        }
+        return ids;
+    }
+
+    private int countDownloads() {
+        try (Cursor cursor = mResolver.query(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
+                new String[] { Downloads.Impl._ID }, null, null, null)) {
+            return cursor.getCount();
+        }
+    }
+}
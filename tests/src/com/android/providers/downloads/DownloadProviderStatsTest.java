@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+
+import androidx.test.filters.SmallTest;
+
+import junit.framework.TestCase;
+
+@SmallTest
+public class DownloadProviderStatsTest extends TestCase {
+    public void testBuckets() throws Exception {
+        assertEquals(0, DownloadProviderStats.bucketFor(0));
+        assertEquals(1, DownloadProviderStats.bucketFor(1));
+        assertEquals(2, DownloadProviderStats.bucketFor(2));
+        assertEquals(2, DownloadProviderStats.bucketFor(3));
+        assertEquals(11, DownloadProviderStats.bucketFor(1024));
+        assertEquals(DownloadProviderStats.BUCKET_COUNT - 1,
+                DownloadProviderStats.bucketFor(Long.MAX_VALUE));
+    }
+
+    public void testPercentile() throws Exception {
+        final DownloadProviderStats.Histogram histogram = new DownloadProviderStats.Histogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.add(10);
+        }
+        histogram.add(5000);
+        assertEquals(100, histogram.getCount());
+        assertEquals(15, histogram.getPercentile(50));
+        assertEquals(15, histogram.getPercentile(99));
+        assertEquals(8191, histogram.getPercentile(100));
+    }
+
+    public void testToBundle() throws Exception {
+        final DownloadProviderStats stats = new DownloadProviderStats(
+                new String[] { "unknown", "downloads" });
+        stats.record(DownloadProviderStats.OP_UPDATE, 1, SystemClock.elapsedRealtimeNanos(), 3);
+        stats.record(DownloadProviderStats.OP_QUERY, -1, SystemClock.elapsedRealtimeNanos(),
+                DownloadProviderStats.ROWS_UNKNOWN);
+
+        final Bundle bundle = stats.toBundle();
+        assertEquals(2, bundle.size());
+        final long[] rows = bundle.getBundle("update/downloads")
+                .getLongArray(Constants.EXTRA_ROW_BUCKETS);
+        assertEquals(1, rows[DownloadProviderStats.bucketFor(3)]);
+        final long[] latency = bundle.getBundle("query/unknown")
+                .getLongArray(Constants.EXTRA_LATENCY_BUCKETS);
+        long count = 0;
+        for (long bucket : latency) {
+            count += bucket;
+        }
+        assertEquals(1, count);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.provider.Downloads;
+import android.test.AndroidTestCase;
+import android.util.SparseIntArray;
+
+import androidx.test.filters.SmallTest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@SmallTest
+public class DownloadQueuePolicyTest extends AndroidTestCase {
+    public void testFifo() throws Exception {
+        final List<DownloadInfo> queued = new ArrayList<>();
+        queued.add(buildInfo(10001, 5000, 0, false));
+        queued.add(buildInfo(10001, 10, 0, false));
+        assertEquals(0, DownloadQueuePolicy.FIFO.pickNext(queued, new SparseIntArray()));
+    }
+
+    public void testShortestRemainingFirst() throws Exception {
+        final List<DownloadInfo> queued = new ArrayList<>();
+        queued.add(buildInfo(10001, -1, 0, false));
+        queued.add(buildInfo(10001, 5000, 0, false));
+        queued.add(buildInfo(10001, 5000, 4900, false));
+        queued.add(buildInfo(10001, 200, 0, false));
+        assertEquals(2, DownloadQueuePolicy.SHORTEST_REMAINING_FIRST.pickNext(queued,
+                new SparseIntArray()));
+    }
+
+    public void testFairShare() throws Exception {
+        final List<DownloadInfo> queued = new ArrayList<>();
+        queued.add(buildInfo(10001, 100, 0, false));
+        queued.add(buildInfo(10002, 100, 0, false));
+        queued.add(buildInfo(10003, 100, 0, true));
+
+        final SparseIntArray running = new SparseIntArray();
+        running.put(10001, 3);
+        running.put(10002, 1);
+        running.put(10003, 1);
+        // Visible downloads weigh double, so one running counts as half
+        assertEquals(2, DownloadQueuePolicy.FAIR_SHARE.pickNext(queued, running));
+
+        running.put(10002, 0);
+        assertEquals(1, DownloadQueuePolicy.FAIR_SHARE.pickNext(queued, running));
+    }
+
+    public void testFromName() throws Exception {
+        assertSame(DownloadQueuePolicy.FIFO, DownloadQueuePolicy.fromName("fifo"));
+        assertSame(DownloadQueuePolicy.SHORTEST_REMAINING_FIRST,
+                DownloadQueuePolicy.fromName("shortest_remaining_first"));
+        assertSame(DownloadQueuePolicy.FAIR_SHARE, DownloadQueuePolicy.fromName("fair_share"));
+        assertSame(DownloadQueuePolicy.FIFO, DownloadQueuePolicy.fromName("unknown"));
+    }
+
+    private DownloadInfo buildInfo(int uid, long totalBytes, long currentBytes,
+            boolean visible) {
+        final DownloadInfo info = new DownloadInfo(getContext());
+        info.mUid = uid;
+        info.mTotalBytes = totalBytes;
+        info.mCurrentBytes = currentBytes;
+        info.mVisibility = visible ? Downloads.Impl.VISIBILITY_VISIBLE
+                : Downloads.Impl.VISIBILITY_HIDDEN;
+        return info;
+    }
+}
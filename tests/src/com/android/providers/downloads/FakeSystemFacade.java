@@ -77,6 +77,11 @@ public class FakeSystemFacade implements SystemFacade {
 
     @Override
     public Network getNetwork(JobParameters params) {
+        return getActiveNetwork();
+    }
+
+    @Override
+    public Network getActiveNetwork() {
         if (mActiveNetworkType == null) {
             return null;
         } else {
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import android.text.format.DateUtils;
+
+import androidx.test.filters.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+@SmallTest
+public class HostHealthTrackerTest extends TestCase {
+    private static final String HOST = "cdn.example.com";
+
+    public void testOpensAfterConsecutiveFailures() throws Exception {
+        final HostHealthTracker tracker = new HostHealthTracker();
+        for (int i = 0; i < HostHealthTracker.FAILURE_THRESHOLD - 1; i++) {
+            tracker.onFailure(HOST, i, 0, 0);
+        }
+        assertEquals(0, tracker.getDelay(HOST, 100, 0));
+        assertTrue(tracker.tryStart(HOST, 100, 0));
+
+        tracker.onFailure(HOST, 100, 0, 0);
+        final long delay = tracker.getDelay(HOST, 101, 0);
+        assertTrue(delay > 0);
+        assertFalse(tracker.tryStart(HOST, 101, 0));
+        assertEquals(0, tracker.getDelay("other.example.com", 102, 0));
+    }
+
+    public void testSingleProbeReleasesOthers() throws Exception {
+        final HostHealthTracker tracker = new HostHealthTracker();
+        final long retryAfter = 60 * DateUtils.SECOND_IN_MILLIS;
+        for (int i = 0; i < HostHealthTracker.FAILURE_THRESHOLD; i++) {
+            tracker.onFailure(HOST, i, retryAfter, 0);
+        }
+        assertEquals(retryAfter, tracker.getDelay(HOST, 200, 0));
+
+        // Once the backoff has passed only one download gets through
+        assertTrue(tracker.tryStart(HOST, 201, retryAfter));
+        assertFalse(tracker.tryStart(HOST, 202, retryAfter));
+        assertTrue(tracker.getDelay(HOST, 203, retryAfter) > 0);
+
+        // Only downloads actually turned away are released; asking for a
+        // delay doesn't hold anything back
+        final ArrayList<Long> released = tracker.onSuccess(HOST);
+        assertTrue(released.contains(202L));
+        assertFalse(released.contains(200L));
+        assertFalse(released.contains(203L));
+        assertEquals(0, tracker.getDelay(HOST, 202, retryAfter));
+    }
+
+    public void testFailedProbeBacksOffFurther() throws Exception {
+        final HostHealthTracker tracker = new HostHealthTracker();
+        for (int i = 0; i < HostHealthTracker.FAILURE_THRESHOLD; i++) {
+            tracker.onFailure(HOST, i, 0, 0);
+        }
+        final long first = tracker.getDelay(HOST, 300, 0);
+
+        assertTrue(tracker.tryStart(HOST, 301, first));
+        tracker.onFailure(HOST, 301, 0, first);
+        assertEquals(first * 2, tracker.getDelay(HOST, 300, first));
+
+        // A stuck probe doesn't hold the host forever
+        final long reopen = first * 3;
+        assertTrue(tracker.tryStart(HOST, 302, reopen));
+        assertFalse(tracker.tryStart(HOST, 303, reopen));
+        assertTrue(tracker.tryStart(HOST, 303, reopen + HostHealthTracker.PROBE_TIMEOUT + 1));
+    }
+}
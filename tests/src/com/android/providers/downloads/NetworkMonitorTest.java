@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2026 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.downloads;
+
+import static android.net.NetworkCapabilities.NET_CAPABILITY_NOT_METERED;
+
+import static org.mockito.Mockito.mock;
+
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.test.AndroidTestCase;
+
+import androidx.test.filters.SmallTest;
+
+@SmallTest
+public class NetworkMonitorTest extends AndroidTestCase {
+    private static final int UID = 10001;
+
+    private FakeSystemFacade mSystemFacade;
+    private NetworkMonitor mMonitor;
+
+    private static class TestWatcher implements NetworkMonitor.Watcher {
+        final int mUid;
+        final Network mNetwork;
+        boolean mInvalidated;
+
+        TestWatcher(int uid, Network network) {
+            mUid = uid;
+            mNetwork = network;
+        }
+
+        @Override
+        public int getUid() {
+            return mUid;
+        }
+
+        @Override
+        public Network getNetwork() {
+            return mNetwork;
+        }
+
+        @Override
+        public void onConnectivityInvalidated() {
+            mInvalidated = true;
+        }
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSystemFacade = new FakeSystemFacade();
+        mSystemFacade.setUp();
+        Helpers.setSystemFacade(mSystemFacade);
+        mMonitor = new NetworkMonitor(getContext());
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Helpers.setSystemFacade(null);
+        super.tearDown();
+    }
+
+    public void testUncachedWithoutWatchers() throws Exception {
+        final Network network = mock(Network.class);
+        assertTrue(mMonitor.getNetworkCapabilities(network)
+                .hasCapability(NET_CAPABILITY_NOT_METERED));
+
+        mSystemFacade.mIsMetered = true;
+        assertFalse(mMonitor.getNetworkCapabilities(network)
+                .hasCapability(NET_CAPABILITY_NOT_METERED));
+    }
+
+    public void testInvalidationReachesAffectedWatchers() throws Exception {
+        final Network network = mock(Network.class);
+        final Network other = mock(Network.class);
+        final TestWatcher watcher = new TestWatcher(UID, network);
+        final TestWatcher otherUid = new TestWatcher(UID + 1, other);
+        mMonitor.addWatcher(watcher);
+        mMonitor.addWatcher(otherUid);
+        try {
+            assertTrue(mMonitor.getNetworkCapabilities(network)
+                    .hasCapability(NET_CAPABILITY_NOT_METERED));
+
+            // Cached until something says otherwise
+            mSystemFacade.mIsMetered = true;
+            assertTrue(mMonitor.getNetworkCapabilities(network)
+                    .hasCapability(NET_CAPABILITY_NOT_METERED));
+
+            // Policy of one UID doesn't change the network itself
+            mMonitor.invalidateUid(UID);
+            assertTrue(watcher.mInvalidated);
+            assertFalse(otherUid.mInvalidated);
+            assertTrue(mMonitor.getNetworkCapabilities(network)
+                    .hasCapability(NET_CAPABILITY_NOT_METERED));
+
+            watcher.mInvalidated = false;
+            mMonitor.invalidateNetwork(other);
+            assertFalse(watcher.mInvalidated);
+            assertTrue(otherUid.mInvalidated);
+
+            mMonitor.invalidateNetwork(network);
+            assertFalse(mMonitor.getNetworkCapabilities(network)
+                    .hasCapability(NET_CAPABILITY_NOT_METERED));
+
+            mMonitor.invalidateAll();
+            assertTrue(watcher.mInvalidated);
+        } finally {
+            mMonitor.removeWatcher(watcher);
+            mMonitor.removeWatcher(otherUid);
+        }
+    }
+
+    public void testLostDuringLookupNotCached() throws Exception {
+        final Network network = mock(Network.class);
+        final TestWatcher watcher = new TestWatcher(UID, network);
+        // Network goes away while we're asking about it
+        Helpers.setSystemFacade(new FakeSystemFacade() {
+            @Override
+            public NetworkCapabilities getNetworkCapabilities(Network n) {
+                final NetworkCapabilities caps = super.getNetworkCapabilities(n);
+                mMonitor.invalidateNetwork(n);
+                mActiveNetworkType = null;
+                return caps;
+            }
+        });
+        mMonitor.addWatcher(watcher);
+        try {
+            assertNotNull(mMonitor.getNetworkCapabilities(network));
+            assertNull(mMonitor.getNetworkCapabilities(network));
+        } finally {
+            mMonitor.removeWatcher(watcher);
+        }
+    }
+}
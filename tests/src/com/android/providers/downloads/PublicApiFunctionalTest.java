@@ -39,6 +39,8 @@ import android.app.BroadcastOptions;
 import android.app.DownloadManager;
 import android.app.Notification;
 import android.app.NotificationManager;
+import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Intent;
 import android.database.Cursor;
 import android.net.ConnectivityManager;
@@ -366,6 +368,36 @@ public class PublicApiFunctionalTest extends AbstractPublicApiTest {
         }
     }
 
+    public void testBulkUpdateReconcilesMediaStore() throws Exception {
+        final long[] ids = {
+                enqueueRequest(getRequest()).mId, enqueueRequest(getRequest()).mId };
+        for (long id : ids) {
+            final ContentValues values = new ContentValues();
+            values.put(Downloads.Impl._DATA,
+                    new File(mTestDirectory, "bulk" + id + ".txt").getPath());
+            values.put(Downloads.Impl.COLUMN_DESTINATION, Downloads.Impl.DESTINATION_FILE_URI);
+            values.put(Downloads.Impl.COLUMN_IS_VISIBLE_IN_DOWNLOADS_UI, true);
+            values.put(Downloads.Impl.COLUMN_CONTROL, Downloads.Impl.CONTROL_PAUSED);
+            mResolver.update(ContentUris.withAppendedId(
+                    Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, id), values, null, null);
+        }
+
+        // Completing both at once goes through the batched MediaStore path
+        final ContentValues values = new ContentValues();
+        values.put(Downloads.Impl.COLUMN_STATUS, Downloads.Impl.STATUS_SUCCESS);
+        assertEquals(2, mResolver.update(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI, values,
+                Downloads.Impl._ID + " IN (" + ids[0] + "," + ids[1] + ")", null));
+
+        try (Cursor cursor = mResolver.query(Downloads.Impl.ALL_DOWNLOADS_CONTENT_URI,
+                new String[] { Downloads.Impl.COLUMN_MEDIASTORE_URI },
+                Downloads.Impl._ID + " IN (" + ids[0] + "," + ids[1] + ")", null, null)) {
+            assertEquals(2, cursor.getCount());
+            while (cursor.moveToNext()) {
+                assertNotNull(cursor.getString(0));
+            }
+        }
+    }
+
     private Uri getExternalUri() {
         return Uri.fromFile(mTestDirectory).buildUpon().appendPath("testfile.txt").build();
     }
@@ -392,6 +424,27 @@ public class PublicApiFunctionalTest extends AbstractPublicApiTest {
         }
     }
 
+    public void testDeleteRemovesFile() throws Exception {
+        enqueueResponse(buildResponse(HTTP_OK, FILE_CONTENT));
+        Uri destination = getExternalUri();
+        Download download = enqueueRequest(getRequest().setDestinationUri(destination));
+        download.runUntilStatus(DownloadManager.STATUS_SUCCESSFUL);
+
+        final File file = new File(destination.getPath());
+        assertTrue(file.exists());
+        mManager.remove(download.mId);
+        assertEquals(-1, download.getStatusIfExists());
+
+        // File cleanup happens in the background after the row is gone
+        final long timeout = SystemClock.elapsedRealtime() + (15 * SECOND_IN_MILLIS);
+        while (file.exists()) {
+            if (SystemClock.elapsedRealtime() > timeout) {
+                throw new TimeoutException("File wasn't removed");
+            }
+            SystemClock.sleep(100);
+        }
+    }
+
     public void testSizeLimitOverMobile() throws Exception {
         enqueueResponse(buildResponse(HTTP_OK, FILE_CONTENT));
         enqueueResponse(buildResponse(HTTP_OK, FILE_CONTENT));
@@ -638,6 +691,9 @@ public class PublicApiFunctionalTest extends AbstractPublicApiTest {
         mResolver.resetNotified();
         final Download download = enqueueRequest(getRequest());
         download.runUntilStatus(DownloadManager.STATUS_SUCCESSFUL);
+
+        // Notifications are coalesced, so give the last window time to close
+        SystemClock.sleep(DownloadChangeDispatcher.CHANGE_WINDOW_MILLIS * 2);
         assertTrue(mResolver.mNotifyWasCalled);
     }
 